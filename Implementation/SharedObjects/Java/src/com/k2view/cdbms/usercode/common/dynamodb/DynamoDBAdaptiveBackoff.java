@@ -0,0 +1,98 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.RequestLimitExceededException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adapts the pace of the requests of an interface to the throttling it gets from DynamoDB (AIMD).
+ * <p>
+ * Every throttled request doubles a pacing delay that all the requests wait before they are sent,
+ * and every successful request decreases it by a fixed step, so the request rate ramps up slowly and backs off fast.
+ * Retries of throttled statements also wait an exponential backoff with full jitter.
+ */
+public class DynamoDBAdaptiveBackoff {
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final AtomicLong pacingDelayMillis = new AtomicLong();
+
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder backoffMillis = new LongAdder();
+
+    DynamoDBAdaptiveBackoff(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    static boolean isThrottling(Throwable error) {
+        return error instanceof ProvisionedThroughputExceededException
+                || error instanceof RequestLimitExceededException
+                || (error instanceof AwsServiceException && ((AwsServiceException) error).isThrottlingException());
+    }
+
+    /**
+     * Multiplicative decrease of the request rate
+     */
+    void onThrottle() {
+        throttles.increment();
+        pacingDelayMillis.updateAndGet(delay -> Math.min(maxDelayMillis, Math.max(baseDelayMillis, delay * 2)));
+    }
+
+    /**
+     * Additive increase of the request rate
+     */
+    void onSuccess() {
+        if (pacingDelayMillis.get() == 0) return;
+        pacingDelayMillis.updateAndGet(delay -> Math.max(0, delay - baseDelayMillis));
+    }
+
+    /**
+     * Waits the current pacing delay, if any
+     */
+    void pace() {
+        long delay = pacingDelayMillis.get();
+        if (delay <= 0) return;
+        backoffMillis.add(delay);
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while backing off", e);
+        }
+    }
+
+    /**
+     * @param attempt The number of the retry, starting from 0
+     * @param statements The number of statements retried
+     * @return The time to wait before the retry
+     */
+    long retryDelay(int attempt, int statements) {
+        retries.add(statements);
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1) + pacingDelayMillis.get();
+        backoffMillis.add(delay);
+        return delay;
+    }
+
+    public long throttles() {
+        return throttles.sum();
+    }
+
+    public long retries() {
+        return retries.sum();
+    }
+
+    public long backoffMillis() {
+        return backoffMillis.sum();
+    }
+
+    public long pacingDelayMillis() {
+        return pacingDelayMillis.get();
+    }
+}
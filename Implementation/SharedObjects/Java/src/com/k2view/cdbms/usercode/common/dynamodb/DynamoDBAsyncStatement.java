@@ -0,0 +1,31 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.io.IoCommand;
+import org.reactivestreams.Publisher;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A DynamoDB statement that can be executed without blocking the calling thread.
+ * <p>
+ * All the statements created by {@link DynamoDBIoSession} implement this interface, e.g.:
+ * <pre>
+ * DynamoDBAsyncStatement statement = (DynamoDBAsyncStatement) session.prepareStatement(command);
+ * statement.executeAsync(params).thenAccept(result -> ...);
+ * </pre>
+ */
+public interface DynamoDBAsyncStatement extends IoCommand.Statement {
+    /**
+     * @param params The statement parameters, same as in {@link #execute(Object...)}
+     * @return A future completed with the statement's result once its first page is received.
+     * Inside a transaction, the statement is added to the transaction and the future is already completed.
+     */
+    CompletableFuture<IoCommand.Result> executeAsync(Object... params);
+
+    /**
+     * @param params The statement parameters, same as in {@link #execute(Object...)}
+     * @return A publisher of the result rows. Each subscription executes the statement,
+     * and the next page is fetched only when the subscriber requests more rows than already received.
+     */
+    Publisher<IoCommand.Row> publish(Object... params);
+}
@@ -0,0 +1,447 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Groups batch items (PartiQL statements, or native write requests) into chunks and sends each full chunk
+ * as a single request, keeping up to a fixed number of requests in flight.
+ * <p>
+ * Producers keep filling the next chunk while the previous ones are in flight, and wait only when
+ * the maximum number of requests is already in flight. A failure of any request is thrown by {@link #await()}.
+ * <p>
+ * A chunk is sent only once the earlier chunks that write any of its items are done, including their retries,
+ * see {@link DynamoDBWriteOrder}, so the writes of an item are applied in order.
+ * <p>
+ * Items of a chunk that fail on throttling (or another transient error) are sent again,
+ * after a backoff, until they succeed or run out of retries. Items that fail on any other error
+ * (e.g. a failed condition) fail the pipeline, unless the pipeline has a failure listener, which is then given
+ * each failed item instead.
+ * <p>
+ * A write to an item that the chunk being filled already writes may be coalesced with the earlier write,
+ * see {@link DynamoDBWriteCoalescing}, otherwise it starts a new chunk.
+ *
+ * @param <T> The type of the batch items
+ */
+class DynamoDBBatchPipeline<T> {
+    private static final Set<BatchStatementErrorCodeEnum> THROTTLING_ERRORS = EnumSet.of(
+            BatchStatementErrorCodeEnum.PROVISIONED_THROUGHPUT_EXCEEDED,
+            BatchStatementErrorCodeEnum.THROTTLING_ERROR,
+            BatchStatementErrorCodeEnum.REQUEST_LIMIT_EXCEEDED);
+    private static final Set<BatchStatementErrorCodeEnum> TRANSIENT_ERRORS = EnumSet.of(
+            BatchStatementErrorCodeEnum.INTERNAL_SERVER_ERROR,
+            BatchStatementErrorCodeEnum.TRANSACTION_CONFLICT);
+
+    private final Log log = Log.a(this.getClass());
+    private final int batchSize;
+    private final int maxRetries;
+    private final DynamoDBAdaptiveBackoff backoff;
+    private final DynamoDBWriteOrder order;
+    private final Function<T, Object> itemKey;
+    private final Function<T, String> itemTable;
+    private final BinaryOperator<T> coalesce;
+    private final Function<List<T>, CompletableFuture<Outcome<T>>> sender;
+    private final BiConsumer<T, Throwable> failureListener;
+
+    private final Object chunkLock = new Object();
+    @GuardedBy("chunkLock")
+    private List<T> chunk;
+    // The index in the chunk of the item written by each key
+    @GuardedBy("chunkLock")
+    private final Map<Object, Integer> chunkKeys = new HashMap<>();
+    // The tables of the items of known keys, and of the other items (null for an unknown table)
+    @GuardedBy("chunkLock")
+    private final Set<String> chunkTables = new HashSet<>();
+    @GuardedBy("chunkLock")
+    private final Set<String> chunkUnknownTables = new HashSet<>();
+
+    private final Semaphore inFlight;
+    // The chunks cut and not done yet, including the chunks still waiting for a request in flight
+    private final Set<CompletableFuture<Void>> unfinished = ConcurrentHashMap.newKeySet();
+    // The first failure of the chunks cut since the last discard. A discard replaces it, so the chunks
+    // still in flight from before report their failures to the replaced one.
+    private volatile AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final LongAdder retriedItems = new LongAdder();
+    private final LongAdder backoffMillis = new LongAdder();
+    private final LongAdder coalescedItems = new LongAdder();
+
+    /**
+     * @param batchSize The number of items in a single request
+     * @param maxInFlight The maximum number of requests in flight
+     * @param maxRetries The maximum number of times a throttled item is sent again
+     * @param backoff The backoff shared by all the sessions of the interface
+     * @param order The order of the writes, shared by the pipelines of a session
+     * @param itemKey The key of the item a batch item writes, or null if it isn't known.
+     *                An item that is already written by the current chunk starts a new chunk.
+     *                Batch items of an unknown key are never coalesced, and don't start a new chunk.
+     * @param itemTable The table a batch item writes to, or null if it isn't known
+     * @param coalesce Given a batch item of the current chunk and a later item of the same key, returns the single
+     *                 item that writes both, or null if they can't be coalesced. Null to never coalesce items.
+     * @param sender Sends a chunk, the returned future is completed with its outcome
+     * @param failureListener Given each item that failed, instead of failing the pipeline, or null
+     */
+    DynamoDBBatchPipeline(int batchSize, int maxInFlight, int maxRetries, DynamoDBAdaptiveBackoff backoff,
+                          DynamoDBWriteOrder order, Function<T, Object> itemKey, Function<T, String> itemTable,
+                          BinaryOperator<T> coalesce, Function<List<T>, CompletableFuture<Outcome<T>>> sender,
+                          BiConsumer<T, Throwable> failureListener) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Batch concurrency must be a positive number");
+        }
+        this.batchSize = batchSize;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = backoff;
+        this.order = order;
+        this.itemKey = itemKey;
+        this.itemTable = itemTable;
+        this.coalesce = coalesce;
+        this.sender = sender;
+        this.failureListener = failureListener;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.chunk = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * @return The outcome of a BatchExecuteStatement request: the statements to retry, and the non-retryable failures
+     */
+    static Outcome<BatchStatementRequest> outcomeOf(List<BatchStatementRequest> statements, BatchExecuteStatementResponse response) {
+        List<BatchStatementRequest> retry = new ArrayList<>();
+        boolean throttled = false;
+        List<Failed<BatchStatementRequest>> failed = new ArrayList<>();
+        List<BatchStatementResponse> responses = response.responses();
+        for (int i = 0; i < responses.size() && i < statements.size(); i++) {
+            BatchStatementError error = responses.get(i).error();
+            if (error == null) continue;
+            BatchStatementErrorCodeEnum code = error.code();
+            if (THROTTLING_ERRORS.contains(code)) {
+                throttled = true;
+                retry.add(statements.get(i));
+            } else if (TRANSIENT_ERRORS.contains(code)) {
+                retry.add(statements.get(i));
+            } else {
+                failed.add(new Failed<>(statements.get(i), DynamoDbException.builder()
+                        .message(String.format("Batch statement failed with %s: %s, statement: %s",
+                                error.codeAsString(), error.message(), statements.get(i).statement()))
+                        .build()));
+            }
+        }
+        return new Outcome<>(retry, throttled, failed);
+    }
+
+    void add(T item) {
+        // Looked up before taking the lock, since finding the key may describe the table
+        add(item, itemKey == null ? null : itemKey.apply(item));
+    }
+
+    /**
+     * @param key The key of the item written, already looked up by the caller, or null if it isn't known
+     */
+    void add(T item, Object key) {
+        String table = itemTable.apply(item);
+        Chunk<T> ready = null;
+        synchronized (chunkLock) {
+            Integer index = key == null ? null : chunkKeys.get(key);
+            if (index != null) {
+                T coalesced = coalesce == null ? null : coalesce.apply(chunk.get(index), item);
+                if (coalesced != null) {
+                    chunk.set(index, coalesced);
+                    coalescedItems.increment();
+                    return;
+                }
+                // A request can't write the same item twice. The new chunk is sent after this one is done.
+                ready = cut();
+            } else if (chunk.size() >= batchSize) {
+                // Left full when the chunk before it was cut
+                ready = cut();
+            }
+            if (key != null) {
+                chunkKeys.put(key, chunk.size());
+                chunkTables.add(table);
+            } else {
+                chunkUnknownTables.add(table);
+            }
+            chunk.add(item);
+            if (ready == null && chunk.size() >= batchSize) {
+                ready = cut();
+            }
+        }
+        if (ready != null) {
+            send(ready);
+        }
+    }
+
+    /**
+     * Sends the items buffered so far, without waiting for them
+     */
+    void flush() {
+        Chunk<T> lastChunk;
+        synchronized (chunkLock) {
+            if (chunk.isEmpty()) return;
+            lastChunk = cut();
+        }
+        send(lastChunk);
+    }
+
+    /**
+     * Sends the items buffered so far if a request can be sent right away, never waiting for capacity or pacing,
+     * e.g. from a timer shared by many pipelines. The pacing delay is applied in the background instead.
+     *
+     * @return False if all the requests are in flight, so the items are left buffered
+     */
+    boolean tryFlush() {
+        if (!inFlight.tryAcquire()) return false;
+        Chunk<T> lastChunk;
+        synchronized (chunkLock) {
+            if (chunk.isEmpty()) {
+                inFlight.release();
+                return true;
+            }
+            lastChunk = cut();
+        }
+        dispatch(lastChunk, backoff.pacingDelayMillis());
+        return true;
+    }
+
+    /**
+     * Sends the items buffered so far if any of them may write the given item, so that a write of the item
+     * through another pipeline sharing the same order is applied after them
+     *
+     * @param key The key of the item, or null if it isn't known
+     * @param table The table of the item, or null if it isn't known
+     */
+    void flushBefore(Object key, String table) {
+        Chunk<T> conflicting;
+        synchronized (chunkLock) {
+            if (chunk.isEmpty()) return;
+            boolean conflicts = table == null || chunkUnknownTables.contains(table) || chunkUnknownTables.contains(null)
+                    || (key != null ? chunkKeys.containsKey(key) : chunkTables.contains(table));
+            if (!conflicts) return;
+            conflicting = cut();
+        }
+        send(conflicting);
+    }
+
+    /**
+     * Takes the chunk being filled, and takes its place in the order of the writes.
+     * It's taken under the chunk lock, so the chunks are ordered as they're cut. It waits for a request
+     * in flight only once it's sent, outside of the lock, so the other producers keep filling the next chunk.
+     */
+    @GuardedBy("chunkLock")
+    private Chunk<T> cut() {
+        Chunk<T> cut = new Chunk<>(chunk, failure);
+        cut.after = order.register(new ArrayList<>(chunkKeys.keySet()), new ArrayList<>(chunkTables),
+                new ArrayList<>(chunkUnknownTables), cut.done);
+        unfinished.add(cut.done);
+        cut.done.whenComplete((result, error) -> unfinished.remove(cut.done));
+        chunk = new ArrayList<>(batchSize);
+        chunkKeys.clear();
+        chunkTables.clear();
+        chunkUnknownTables.clear();
+        return cut;
+    }
+
+    /**
+     * Waits for all the requests in flight, and throws the failure of any of them
+     */
+    void await() {
+        try {
+            CompletableFuture.allOf(unfinished.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batches in flight", e);
+        } catch (ExecutionException e) {
+            // Chunks are always completed normally, their failures are kept apart
+        }
+        long retried = retriedItems.sumThenReset();
+        long backedOff = backoffMillis.sumThenReset();
+        if (retried > 0) {
+            log.info("Batch statements retried after throttling: {}, time spent backing off: {} ms", retried, backedOff);
+        }
+        long coalesced = coalescedItems.sumThenReset();
+        if (coalesced > 0) {
+            log.info("Batch statements coalesced with an earlier statement of the same item: {}", coalesced);
+        }
+        Throwable error = failure.getAndSet(null);
+        if (error != null) {
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            throw new CompletionException(error);
+        }
+    }
+
+    /**
+     * Drops the buffered items and any failure so far. Requests already in flight can't be undone,
+     * their failures are dropped as well.
+     */
+    void discard() {
+        synchronized (chunkLock) {
+            chunk = new ArrayList<>(batchSize);
+            chunkKeys.clear();
+            chunkTables.clear();
+            chunkUnknownTables.clear();
+            failure = new AtomicReference<>();
+        }
+    }
+
+    private void send(Chunk<T> chunk) {
+        boolean acquired = false;
+        try {
+            acquire(1);
+            acquired = true;
+            backoff.pace();
+        } catch (RuntimeException e) {
+            if (acquired) inFlight.release();
+            // The later chunks of the same items aren't held by a chunk that was never sent
+            chunk.done.complete(null);
+            throw e;
+        }
+        dispatch(chunk, 0);
+    }
+
+    /**
+     * Sends a chunk that already holds its permit, once the earlier chunks of its items are done
+     *
+     * @param delayMillis The time to wait in the background before sending it
+     */
+    private void dispatch(Chunk<T> chunk, long delayMillis) {
+        List<T> items = chunk.items;
+        CompletableFuture<Void> after = delayMillis <= 0 ? chunk.after : chunk.after.thenCompose(ignored ->
+                CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS)));
+        CompletableFuture<Void> sent = after.thenCompose(ignored -> execute(items, 0, chunk.failure));
+        // The chunk holds its permit until all its retries are done
+        sent.whenComplete((result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (DynamoDBAdaptiveBackoff.isThrottling(cause)) backoff.onThrottle();
+                if (failureListener != null) {
+                    items.forEach(item -> failureListener.accept(item, cause));
+                } else {
+                    chunk.failure.compareAndSet(null, cause);
+                }
+            }
+            inFlight.release();
+            // The later chunks of the same items are sent even if this one failed, as they would have been one by one
+            chunk.done.complete(null);
+        });
+    }
+
+    private CompletableFuture<Void> execute(List<T> items, int attempt, AtomicReference<Throwable> failure) {
+        log.debug("Executing batch of {} statements, attempt {}", items.size(), attempt + 1);
+        CompletableFuture<Outcome<T>> request = sender.apply(items);
+        if (failureListener != null) {
+            // The items of a failed request are reported, rather than failing the pipeline
+            request = request.exceptionally(error -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                List<Failed<T>> failed = new ArrayList<>(items.size());
+                items.forEach(item -> failed.add(new Failed<>(item, cause)));
+                return new Outcome<>(Collections.emptyList(), DynamoDBAdaptiveBackoff.isThrottling(cause), failed);
+            });
+        }
+        return request.thenCompose(outcome -> {
+            if (!outcome.failed.isEmpty()) {
+                if (failureListener != null) {
+                    outcome.failed.forEach(failed -> failureListener.accept(failed.item, failed.error));
+                } else {
+                    failure.compareAndSet(null, outcome.failed.get(0).error);
+                }
+            }
+            if (outcome.throttled) {
+                backoff.onThrottle();
+            } else {
+                backoff.onSuccess();
+            }
+            List<T> retry = outcome.retry;
+            if (retry.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempt >= maxRetries) {
+                RuntimeException exhausted = DynamoDbException.builder()
+                        .message(String.format("%d batch statements still failed after %d retries, first statement: %s",
+                                retry.size(), maxRetries, retry.get(0)))
+                        .build();
+                if (failureListener != null) {
+                    retry.forEach(item -> failureListener.accept(item, exhausted));
+                } else {
+                    failure.compareAndSet(null, exhausted);
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            long delay = backoff.retryDelay(attempt, retry.size());
+            retriedItems.add(retry.size());
+            backoffMillis.add(delay);
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> execute(retry, attempt + 1, failure));
+        });
+    }
+
+    private void acquire(int permits) {
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batches in flight", e);
+        }
+    }
+
+    /**
+     * A chunk cut from the pipeline, waiting to be sent
+     */
+    private static final class Chunk<T> {
+        private final List<T> items;
+        // Where the chunk reports its failure, the pipeline's failure when the chunk was cut
+        private final AtomicReference<Throwable> failure;
+        // Completed once the earlier chunks of the same items are done
+        private CompletableFuture<Void> after;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Chunk(List<T> items, AtomicReference<Throwable> failure) {
+            this.items = items;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * The outcome of a single batch request
+     */
+    static final class Outcome<T> {
+        private final List<T> retry;
+        private final boolean throttled;
+        private final List<Failed<T>> failed;
+
+        /**
+         * @param retry The items to send again
+         * @param throttled Whether any of the items were throttled
+         * @param failed The items that failed and can't be retried
+         */
+        Outcome(List<T> retry, boolean throttled, List<Failed<T>> failed) {
+            this.retry = retry;
+            this.throttled = throttled;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * An item that failed, and the error it failed on
+     */
+    static final class Failed<T> {
+        private final T item;
+        private final Throwable error;
+
+        Failed(T item, Throwable error) {
+            this.item = item;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static com.k2view.fabric.common.ParamConvertor.toBuffer;
+
+/**
+ * How binary (B) attributes are written and read
+ */
+public enum DynamoDBBinaryMode {
+    /**
+     * The bytes are Base64 encoded before they're written, and read back as a byte array of the stored (encoded) value.
+     * Kept for compatibility with the data written by earlier versions of the connector.
+     */
+    BASE64 {
+        @Override
+        SdkBytes toSdkBytes(Object value) {
+            return SdkBytes.fromByteArray(Base64.getEncoder().encode(toBuffer(value)));
+        }
+
+        @Override
+        Object fromSdkBytes(SdkBytes bytes) {
+            return bytes.asByteArray();
+        }
+    },
+    /**
+     * The bytes are written as they are, without copying byte arrays and array backed buffers,
+     * and read back as read-only ByteBuffer views of the response. Writes that are buffered are copied, see {@link #detached}.
+     */
+    RAW {
+        @Override
+        SdkBytes toSdkBytes(Object value) {
+            if (value instanceof byte[]) {
+                return SdkBytes.fromByteArrayUnsafe((byte[]) value);
+            }
+            if (value instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) value;
+                if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                        && buffer.remaining() == buffer.array().length) {
+                    return SdkBytes.fromByteArrayUnsafe(buffer.array());
+                }
+                // A slice, a read-only or a direct buffer can't be wrapped as is
+                return SdkBytes.fromByteBuffer(buffer);
+            }
+            // Streams and blobs are read once into an array of their own
+            return SdkBytes.fromByteArrayUnsafe(toBuffer(value));
+        }
+
+        @Override
+        Object fromSdkBytes(SdkBytes bytes) {
+            return bytes.asByteBuffer();
+        }
+
+        @Override
+        List<AttributeValue> detached(List<AttributeValue> values) {
+            if (values == null) return null;
+            List<AttributeValue> detached = null;
+            for (int i = 0; i < values.size(); i++) {
+                AttributeValue value = detachedValue(values.get(i));
+                if (value != values.get(i) && detached == null) detached = new ArrayList<>(values);
+                if (detached != null) detached.set(i, value);
+            }
+            return detached == null ? values : detached;
+        }
+    };
+
+    /**
+     * @param value A byte[], ByteBuffer, ByteStream or Blob
+     * @return The value to write
+     */
+    abstract SdkBytes toSdkBytes(Object value);
+
+    /**
+     * @param bytes A value read
+     * @return The value returned in result rows
+     */
+    abstract Object fromSdkBytes(SdkBytes bytes);
+
+    /**
+     * @param values The parameters of a write that is buffered (batched, written behind or in a transaction) rather than sent at once
+     * @return The parameters, with binary values that don't share their bytes with the caller's,
+     * so the caller may reuse its arrays once the statement returns
+     */
+    List<AttributeValue> detached(List<AttributeValue> values) {
+        return values;
+    }
+
+    private static AttributeValue detachedValue(AttributeValue value) {
+        if (value.b() != null) {
+            return value.toBuilder().b(SdkBytes.fromByteArray(value.b().asByteArrayUnsafe())).build();
+        }
+        if (value.hasBs()) {
+            List<SdkBytes> set = new ArrayList<>(value.bs().size());
+            value.bs().forEach(bytes -> set.add(SdkBytes.fromByteArray(bytes.asByteArrayUnsafe())));
+            return value.toBuilder().bs(set).build();
+        }
+        if (value.hasL()) {
+            List<AttributeValue> list = RAW.detached(value.l());
+            return list == value.l() ? value : value.toBuilder().l(list).build();
+        }
+        if (value.hasM()) {
+            Map<String, AttributeValue> map = null;
+            for (Map.Entry<String, AttributeValue> entry : value.m().entrySet()) {
+                AttributeValue member = detachedValue(entry.getValue());
+                if (member != entry.getValue() && map == null) map = new LinkedHashMap<>(value.m());
+                if (map != null) map.put(entry.getKey(), member);
+            }
+            return map == null ? value : value.toBuilder().m(map).build();
+        }
+        return value;
+    }
+
+    /**
+     * @param mode The mode name, case insensitive
+     * @return The mode, or BASE64 if the name is empty
+     */
+    public static DynamoDBBinaryMode of(String mode) {
+        if (mode == null || mode.trim().isEmpty()) return BASE64;
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown binary mode " + mode + ", expected one of BASE64 or RAW!", e);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.core.ClientType;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Limits the read and write capacity that the sessions of an interface consume from each table.
+ * <p>
+ * Each table has a token bucket of read capacity units and one of write capacity units, refilled at the configured
+ * rate per second. A request waits while the buckets of its tables are in debt, and is then charged the capacity
+ * that DynamoDB reports it consumed (ReturnConsumedCapacity), so the limit holds however large the items are.
+ * <p>
+ * Registered as an interceptor of the interface's clients, so every request they send is metered,
+ * whether it's PartiQL or a native key-value request. Requests of the blocking client wait in the interceptor,
+ * in the caller's thread. Requests of the async client must not block, so they wait before they're sent,
+ * see {@link #whenAvailable(SdkRequest)}.
+ */
+class DynamoDBCapacityLimiter implements ExecutionInterceptor {
+    private static final ExecutionAttribute<TableUsage> TABLE_USAGE = new ExecutionAttribute<>("DynamoDBTableUsage");
+    // Charged upfront to every request, and deducted from its actual consumed capacity once known
+    private static final double ESTIMATED_UNITS = 1;
+
+    private final Log log = Log.a(this.getClass());
+    private final Function<String, CompletableFuture<TableDescription>> describeTable;
+    private final double readUnitsPerSecond;
+    private final double writeUnitsPerSecond;
+    private final double provisionedFraction;
+    private final Map<String, CompletableFuture<TableCapacity>> tables = new ConcurrentHashMap<>();
+
+    /**
+     * @param describeTable Describes a table in the background, for reading its provisioned throughput
+     * @param readUnitsPerSecond The read capacity limit of every table, 0 to use a fraction of the table's provisioned read capacity
+     * @param writeUnitsPerSecond The write capacity limit of every table, 0 to use a fraction of the table's provisioned write capacity
+     * @param provisionedFraction The fraction of the provisioned capacity used when no limit is given
+     */
+    DynamoDBCapacityLimiter(Function<String, CompletableFuture<TableDescription>> describeTable, double readUnitsPerSecond, double writeUnitsPerSecond, double provisionedFraction) {
+        this.describeTable = describeTable;
+        this.readUnitsPerSecond = readUnitsPerSecond;
+        this.writeUnitsPerSecond = writeUnitsPerSecond;
+        this.provisionedFraction = provisionedFraction;
+    }
+
+    @Override
+    public SdkRequest modifyRequest(Context.ModifyRequest context, ExecutionAttributes executionAttributes) {
+        SdkRequest request = context.request();
+        TableUsage usage = TableUsage.of(request);
+        if (usage.isEmpty()) return request;
+        if (executionAttributes.getAttribute(SdkExecutionAttribute.CLIENT_TYPE) == ClientType.ASYNC) {
+            // Already waited for in whenAvailable(), since blocking here would block an SDK thread
+            usage.reads.forEach(table -> capacityNow(table).ifPresent(capacity -> capacity.read.take()));
+            usage.writes.forEach(table -> capacityNow(table).ifPresent(capacity -> capacity.write.take()));
+        } else {
+            usage.reads.forEach(table -> capacity(table).join().read.acquire());
+            usage.writes.forEach(table -> capacity(table).join().write.acquire());
+        }
+        executionAttributes.putAttribute(TABLE_USAGE, usage);
+        return withConsumedCapacity(request);
+    }
+
+    /**
+     * @param request A request to send through the async client
+     * @return Completed once the buckets of the request's tables are out of debt, without blocking any thread meanwhile
+     */
+    CompletableFuture<Void> whenAvailable(SdkRequest request) {
+        TableUsage usage = TableUsage.of(request);
+        if (usage.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<CompletableFuture<TableCapacity>> reads = new ArrayList<>(usage.reads.size());
+        List<CompletableFuture<TableCapacity>> writes = new ArrayList<>(usage.writes.size());
+        usage.reads.forEach(table -> reads.add(capacity(table)));
+        usage.writes.forEach(table -> writes.add(capacity(table)));
+        List<CompletableFuture<TableCapacity>> all = new ArrayList<>(reads);
+        all.addAll(writes);
+        CompletableFuture<Void> available = new CompletableFuture<>();
+        CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+            List<TokenBucket> buckets = new ArrayList<>(all.size());
+            reads.forEach(capacity -> buckets.add(capacity.join().read));
+            writes.forEach(capacity -> buckets.add(capacity.join().write));
+            awaitBuckets(buckets, available);
+        });
+        return available;
+    }
+
+    private static void awaitBuckets(List<TokenBucket> buckets, CompletableFuture<Void> available) {
+        long waitNanos = 0;
+        for (TokenBucket bucket : buckets) {
+            waitNanos = Math.max(waitNanos, bucket.debtNanos());
+        }
+        if (waitNanos == 0) {
+            available.complete(null);
+        } else {
+            CompletableFuture.runAsync(() -> awaitBuckets(buckets, available),
+                    CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * @return The request, asking for the total capacity it consumed if it doesn't ask for it already
+     */
+    static SdkRequest withConsumedCapacity(SdkRequest request) {
+        if (request instanceof ExecuteStatementRequest) {
+            ExecuteStatementRequest statementRequest = (ExecuteStatementRequest) request;
+            if (statementRequest.returnConsumedCapacity() == null) {
+                return statementRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof BatchExecuteStatementRequest) {
+            BatchExecuteStatementRequest batchRequest = (BatchExecuteStatementRequest) request;
+            if (batchRequest.returnConsumedCapacity() == null) {
+                return batchRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof ExecuteTransactionRequest) {
+            ExecuteTransactionRequest transactionRequest = (ExecuteTransactionRequest) request;
+            if (transactionRequest.returnConsumedCapacity() == null) {
+                return transactionRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof ScanRequest) {
+            ScanRequest scanRequest = (ScanRequest) request;
+            if (scanRequest.returnConsumedCapacity() == null) {
+                return scanRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof GetItemRequest) {
+            GetItemRequest getItemRequest = (GetItemRequest) request;
+            if (getItemRequest.returnConsumedCapacity() == null) {
+                return getItemRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof QueryRequest) {
+            QueryRequest queryRequest = (QueryRequest) request;
+            if (queryRequest.returnConsumedCapacity() == null) {
+                return queryRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof PutItemRequest) {
+            PutItemRequest putItemRequest = (PutItemRequest) request;
+            if (putItemRequest.returnConsumedCapacity() == null) {
+                return putItemRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof DeleteItemRequest) {
+            DeleteItemRequest deleteItemRequest = (DeleteItemRequest) request;
+            if (deleteItemRequest.returnConsumedCapacity() == null) {
+                return deleteItemRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof BatchGetItemRequest) {
+            BatchGetItemRequest batchGetRequest = (BatchGetItemRequest) request;
+            if (batchGetRequest.returnConsumedCapacity() == null) {
+                return batchGetRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        } else if (request instanceof BatchWriteItemRequest) {
+            BatchWriteItemRequest batchWriteRequest = (BatchWriteItemRequest) request;
+            if (batchWriteRequest.returnConsumedCapacity() == null) {
+                return batchWriteRequest.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build();
+            }
+        }
+        return request;
+    }
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+        TableUsage usage = executionAttributes.getAttribute(TABLE_USAGE);
+        if (usage == null) return;
+        consumedCapacity(context.response()).forEach(consumed -> {
+            if (consumed == null || consumed.tableName() == null) return;
+            TableCapacity capacity = capacityNow(consumed.tableName()).orElse(null);
+            if (capacity == null) return;
+            if (consumed.readCapacityUnits() != null || consumed.writeCapacityUnits() != null) {
+                if (consumed.readCapacityUnits() != null) capacity.read.charge(consumed.readCapacityUnits(), usage.reads.contains(consumed.tableName()));
+                if (consumed.writeCapacityUnits() != null) capacity.write.charge(consumed.writeCapacityUnits(), usage.writes.contains(consumed.tableName()));
+            } else if (consumed.capacityUnits() != null) {
+                if (usage.writes.contains(consumed.tableName())) {
+                    capacity.write.charge(consumed.capacityUnits(), true);
+                } else {
+                    capacity.read.charge(consumed.capacityUnits(), usage.reads.contains(consumed.tableName()));
+                }
+            }
+        });
+    }
+
+    static List<ConsumedCapacity> consumedCapacity(SdkResponse response) {
+        if (response instanceof ExecuteStatementResponse) {
+            return Collections.singletonList(((ExecuteStatementResponse) response).consumedCapacity());
+        } else if (response instanceof BatchExecuteStatementResponse) {
+            return ((BatchExecuteStatementResponse) response).consumedCapacity();
+        } else if (response instanceof ExecuteTransactionResponse) {
+            return ((ExecuteTransactionResponse) response).consumedCapacity();
+        } else if (response instanceof ScanResponse) {
+            return Collections.singletonList(((ScanResponse) response).consumedCapacity());
+        } else if (response instanceof GetItemResponse) {
+            return Collections.singletonList(((GetItemResponse) response).consumedCapacity());
+        } else if (response instanceof QueryResponse) {
+            return Collections.singletonList(((QueryResponse) response).consumedCapacity());
+        } else if (response instanceof PutItemResponse) {
+            return Collections.singletonList(((PutItemResponse) response).consumedCapacity());
+        } else if (response instanceof DeleteItemResponse) {
+            return Collections.singletonList(((DeleteItemResponse) response).consumedCapacity());
+        } else if (response instanceof BatchGetItemResponse) {
+            return ((BatchGetItemResponse) response).consumedCapacity();
+        } else if (response instanceof BatchWriteItemResponse) {
+            return ((BatchWriteItemResponse) response).consumedCapacity();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return The capacity of the table, once its limits are known
+     */
+    private CompletableFuture<TableCapacity> capacity(String table) {
+        CompletableFuture<TableCapacity> capacity = tables.get(table);
+        if (capacity != null) return capacity;
+        // The table is described outside the map, which mustn't be locked for the duration of a request
+        CompletableFuture<TableCapacity> created = new CompletableFuture<>();
+        capacity = tables.putIfAbsent(table, created);
+        if (capacity != null) return capacity;
+        if (readUnitsPerSecond > 0 && writeUnitsPerSecond > 0) {
+            created.complete(createCapacity(table, null));
+        } else {
+            CompletableFuture<TableDescription> description;
+            try {
+                description = describeTable.apply(table);
+            } catch (RuntimeException e) {
+                description = new CompletableFuture<>();
+                description.completeExceptionally(e);
+            }
+            description.whenComplete((result, error) -> {
+                if (error != null) {
+                    log.warn("Failed to read the provisioned throughput of table {}, its capacity is not limited", table, error);
+                }
+                created.complete(createCapacity(table, error == null ? result.provisionedThroughput() : null));
+            });
+        }
+        return created;
+    }
+
+    private Optional<TableCapacity> capacityNow(String table) {
+        CompletableFuture<TableCapacity> capacity = tables.get(table);
+        return capacity == null ? Optional.empty() : Optional.ofNullable(capacity.getNow(null));
+    }
+
+    private TableCapacity createCapacity(String table, ProvisionedThroughputDescription provisioned) {
+        double readLimit = readUnitsPerSecond;
+        double writeLimit = writeUnitsPerSecond;
+        // On-demand tables have no provisioned throughput, and aren't limited unless a limit is given
+        if (readLimit <= 0 && provisioned != null && provisioned.readCapacityUnits() != null) {
+            readLimit = provisioned.readCapacityUnits() * provisionedFraction;
+        }
+        if (writeLimit <= 0 && provisioned != null && provisioned.writeCapacityUnits() != null) {
+            writeLimit = provisioned.writeCapacityUnits() * provisionedFraction;
+        }
+        log.debug("Capacity limit of table {}: {} RCU/s, {} WCU/s", table, readLimit, writeLimit);
+        return new TableCapacity(new TokenBucket(readLimit), new TokenBucket(writeLimit));
+    }
+
+    /**
+     * The tables a request reads and writes
+     */
+    static class TableUsage {
+        private final Set<String> reads = new HashSet<>(2);
+        private final Set<String> writes = new HashSet<>(2);
+
+        static TableUsage of(SdkRequest request) {
+            TableUsage usage = new TableUsage();
+            if (request instanceof ExecuteStatementRequest) {
+                usage.add(((ExecuteStatementRequest) request).statement());
+            } else if (request instanceof BatchExecuteStatementRequest) {
+                ((BatchExecuteStatementRequest) request).statements().forEach(statement -> usage.add(statement.statement()));
+            } else if (request instanceof ExecuteTransactionRequest) {
+                ((ExecuteTransactionRequest) request).transactStatements().forEach(statement -> usage.add(statement.statement()));
+            } else if (request instanceof ScanRequest) {
+                usage.add(((ScanRequest) request).tableName(), true);
+            } else if (request instanceof GetItemRequest) {
+                usage.add(((GetItemRequest) request).tableName(), true);
+            } else if (request instanceof QueryRequest) {
+                usage.add(((QueryRequest) request).tableName(), true);
+            } else if (request instanceof PutItemRequest) {
+                usage.add(((PutItemRequest) request).tableName(), false);
+            } else if (request instanceof DeleteItemRequest) {
+                usage.add(((DeleteItemRequest) request).tableName(), false);
+            } else if (request instanceof BatchGetItemRequest) {
+                ((BatchGetItemRequest) request).requestItems().keySet().forEach(table -> usage.add(table, true));
+            } else if (request instanceof BatchWriteItemRequest) {
+                ((BatchWriteItemRequest) request).requestItems().keySet().forEach(table -> usage.add(table, false));
+            }
+            return usage;
+        }
+
+        Set<String> reads() {
+            return reads;
+        }
+
+        Set<String> writes() {
+            return writes;
+        }
+
+        private void add(String table, boolean read) {
+            if (table == null) return;
+            (read ? reads : writes).add(table);
+        }
+
+        private void add(String statement) {
+            if (statement == null) return;
+            DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.lookup(statement);
+            add(descriptor.table, descriptor.kind == DynamoDBStatementDescriptor.Kind.SELECT);
+        }
+
+        boolean isEmpty() {
+            return reads.isEmpty() && writes.isEmpty();
+        }
+    }
+
+    private static class TableCapacity {
+        private final TokenBucket read;
+        private final TokenBucket write;
+
+        private TableCapacity(TokenBucket read, TokenBucket write) {
+            this.read = read;
+            this.write = write;
+        }
+    }
+
+    /**
+     * A token bucket that may go into debt: requests wait only while it's in debt,
+     * since their cost is known only after they are executed.
+     */
+    private static class TokenBucket {
+        private final double unitsPerSecond;
+        // Allows bursts of up to a second worth of capacity
+        private final double maxTokens;
+        @GuardedBy("this")
+        private double tokens;
+        @GuardedBy("this")
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double unitsPerSecond) {
+            this.unitsPerSecond = unitsPerSecond;
+            this.maxTokens = Math.max(unitsPerSecond, ESTIMATED_UNITS);
+            this.tokens = maxTokens;
+        }
+
+        private void acquire() {
+            if (unitsPerSecond <= 0) return;
+            long waitNanos;
+            while ((waitNanos = tryAcquire()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for DynamoDB capacity", e);
+                }
+            }
+        }
+
+        /**
+         * @return 0 if the estimated units were taken, otherwise the time until the bucket is out of debt
+         */
+        private synchronized long tryAcquire() {
+            refill();
+            if (tokens < 0) {
+                return (long) Math.ceil(-tokens / unitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            }
+            tokens -= ESTIMATED_UNITS;
+            return 0;
+        }
+
+        /**
+         * Takes the estimated units without waiting, once {@link #debtNanos()} was waited for
+         */
+        private synchronized void take() {
+            if (unitsPerSecond <= 0) return;
+            refill();
+            tokens -= ESTIMATED_UNITS;
+        }
+
+        /**
+         * @return The time until the bucket is out of debt, 0 if it isn't in debt
+         */
+        private synchronized long debtNanos() {
+            if (unitsPerSecond <= 0) return 0;
+            refill();
+            return tokens < 0 ? (long) Math.ceil(-tokens / unitsPerSecond * TimeUnit.SECONDS.toNanos(1)) : 0;
+        }
+
+        private synchronized void charge(double units, boolean acquired) {
+            if (unitsPerSecond <= 0) return;
+            refill();
+            tokens -= acquired ? units - ESTIMATED_UNITS : units;
+        }
+
+        @GuardedBy("this")
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(maxTokens, tokens + (now - lastRefill) * unitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Commits the statements of a transaction as several transactions (chunks), each within the DynamoDB limits
+ * of 100 statements and 4 MB, instead of failing when the statements exceed them.
+ * <p>
+ * Each chunk is atomic, the transaction as a whole isn't. Chunks run concurrently, up to a fixed number in flight,
+ * except that a chunk waits for the earlier chunks that write any of its items. The item of an INSERT or DELETE
+ * is known from its key parameters; any other statement is ordered after all the earlier chunks of its table,
+ * and before all the later ones. A chunk whose earlier chunk failed is skipped, so the items are never written
+ * out of order.
+ * <p>
+ * Each chunk has its own ClientRequestToken, which the SDK sends again on its own retries, so a chunk that
+ * committed without its response being received isn't committed twice. A chunk canceled on throttling or
+ * a transaction conflict wasn't committed, and is retried with a new token after a backoff.
+ */
+class DynamoDBChunkedTransaction {
+    // AWS limits of a single transaction
+    static final int MAX_STATEMENTS = 100;
+    static final long MAX_BYTES = 4L * 1024 * 1024;
+    private static final Set<String> RETRYABLE_REASONS = new HashSet<>(Arrays.asList(
+            "None", "ThrottlingError", "TransactionConflict", "ProvisionedThroughputExceeded", "RequestLimitExceeded"));
+
+    private final Log log = Log.a(this.getClass());
+    private final int maxRetries;
+    private final DynamoDBAdaptiveBackoff backoff;
+    private final Function<ExecuteTransactionRequest, CompletableFuture<ExecuteTransactionResponse>> sender;
+    private final Semaphore inFlight;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    /**
+     * @param statements The statements of the transaction, in order
+     * @param chunkSize The maximal number of statements of a chunk, up to 100
+     * @param maxInFlight The maximal number of chunks in flight
+     * @param maxRetries The maximal number of times a throttled chunk is sent again
+     * @param backoff The backoff shared by all the sessions of the interface
+     * @param itemKey The item a statement writes, or null if it isn't known
+     * @param table The table a statement writes to
+     * @param sender Sends the transaction of a chunk
+     */
+    DynamoDBChunkedTransaction(List<ParameterizedStatement> statements, int chunkSize, int maxInFlight, int maxRetries,
+                               DynamoDBAdaptiveBackoff backoff, Function<ParameterizedStatement, Object> itemKey,
+                               Function<ParameterizedStatement, String> table,
+                               Function<ExecuteTransactionRequest, CompletableFuture<ExecuteTransactionResponse>> sender) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Transaction chunk concurrency must be a positive number");
+        }
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = backoff;
+        this.sender = sender;
+        this.inFlight = new Semaphore(maxInFlight);
+        split(statements, Math.max(1, Math.min(chunkSize, MAX_STATEMENTS)), itemKey, table);
+    }
+
+    private void split(List<ParameterizedStatement> statements, int chunkSize, Function<ParameterizedStatement, Object> itemKey,
+                       Function<ParameterizedStatement, String> table) {
+        Chunk chunk = null;
+        for (int i = 0; i < statements.size(); i++) {
+            ParameterizedStatement statement = statements.get(i);
+            Object key = itemKey.apply(statement);
+            long bytes = sizeOf(statement);
+            // A transaction can't write the same item twice
+            if (chunk == null || chunk.statements.size() >= chunkSize || (chunk.bytes + bytes > MAX_BYTES && !chunk.statements.isEmpty())
+                    || (key != null && chunk.items.contains(key))) {
+                chunk = new Chunk(chunks.size(), i);
+                chunks.add(chunk);
+            }
+            chunk.add(statement, bytes, key, table.apply(statement));
+        }
+    }
+
+    /**
+     * @return The approximate size of a statement: its text and its parameters
+     */
+    private static long sizeOf(ParameterizedStatement statement) {
+        long size = DynamoDBParseUtils.utf8Length(statement.statement());
+        if (statement.hasParameters()) {
+            for (AttributeValue parameter : statement.parameters()) size += DynamoDBParseUtils.sizeOf(parameter);
+        }
+        return size;
+    }
+
+    /**
+     * Sends the chunks, in order, waiting only while the maximal number of chunks is in flight
+     */
+    void send() {
+        Map<Object, CompletableFuture<?>> lastByItem = new HashMap<>();
+        // All the chunks of a table so far, and the last chunk of a table with statements of unknown items
+        Map<String, CompletableFuture<?>> allByTable = new HashMap<>();
+        Map<String, CompletableFuture<?>> lastUnknownByTable = new HashMap<>();
+        // A statement of an unknown table may write any item, so it's ordered after all the chunks before it,
+        // and all the chunks after it are ordered after it
+        List<CompletableFuture<?>> all = new ArrayList<>();
+        CompletableFuture<?> lastUnknownTable = null;
+        for (Chunk chunk : chunks) {
+            List<CompletableFuture<?>> dependencies = new ArrayList<>();
+            boolean unknownTable = chunk.unknownTables.contains(null);
+            add(dependencies, lastUnknownTable);
+            if (unknownTable) all.forEach(dependency -> add(dependencies, dependency));
+            chunk.items.forEach(item -> add(dependencies, lastByItem.get(item)));
+            chunk.tables.forEach(table -> add(dependencies, lastUnknownByTable.get(table)));
+            chunk.unknownTables.forEach(table -> add(dependencies, allByTable.get(table)));
+            acquire();
+            backoff.pace();
+            CompletableFuture<Void> done = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0]))
+                    .handle((ignored, error) -> error)
+                    .thenCompose(error -> {
+                        if (error != null) {
+                            chunk.skip();
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        return execute(chunk, 0);
+                    });
+            chunk.done = done.whenComplete((ignored, error) -> inFlight.release())
+                    .thenRun(() -> {
+                        if (chunk.status != Status.COMMITTED) throw new CompletionException(chunk.error);
+                    });
+            chunk.items.forEach(item -> lastByItem.put(item, chunk.done));
+            chunk.unknownTables.forEach(table -> lastUnknownByTable.put(table, chunk.done));
+            chunk.tables.forEach(table -> allByTable.merge(table, chunk.done, CompletableFuture::allOf));
+            all.add(chunk.done);
+            if (unknownTable) lastUnknownTable = chunk.done;
+        }
+    }
+
+    private static void add(List<CompletableFuture<?>> dependencies, CompletableFuture<?> dependency) {
+        if (dependency != null && !dependencies.contains(dependency)) dependencies.add(dependency);
+    }
+
+    private CompletableFuture<Void> execute(Chunk chunk, int attempt) {
+        // A new token for each attempt, since a canceled transaction wasn't committed, while the SDK retries
+        // of an attempt keep its token
+        ExecuteTransactionRequest request = ExecuteTransactionRequest.builder()
+                .transactStatements(chunk.statements)
+                .clientRequestToken(UUID.randomUUID().toString())
+                .build();
+        log.debug("Executing transaction chunk {} of {} statements, attempt {}", chunk.index, chunk.statements.size(), attempt + 1);
+        return sender.apply(request).handle((response, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause == null) {
+                backoff.onSuccess();
+                chunk.commit(attempt);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            boolean throttled = DynamoDBAdaptiveBackoff.isThrottling(cause) || hasReason(cause, "ThrottlingError")
+                    || hasReason(cause, "ProvisionedThroughputExceeded") || hasReason(cause, "RequestLimitExceeded");
+            if (throttled) backoff.onThrottle();
+            if (!(throttled || hasReason(cause, "TransactionConflict")) || !isRetryable(cause) || attempt >= maxRetries) {
+                chunk.fail(cause, attempt);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            long delay = backoff.retryDelay(attempt, chunk.statements.size());
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> execute(chunk, attempt + 1));
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * @return Whether the transaction wasn't committed, and only failed on transient errors
+     */
+    private static boolean isRetryable(Throwable error) {
+        if (DynamoDBAdaptiveBackoff.isThrottling(error)) return true;
+        if (!(error instanceof TransactionCanceledException)) return false;
+        TransactionCanceledException canceled = (TransactionCanceledException) error;
+        if (!canceled.hasCancellationReasons()) return false;
+        return canceled.cancellationReasons().stream().allMatch(reason -> RETRYABLE_REASONS.contains(reason.code()));
+    }
+
+    private static boolean hasReason(Throwable error, String code) {
+        if (!(error instanceof TransactionCanceledException)) return false;
+        TransactionCanceledException canceled = (TransactionCanceledException) error;
+        return canceled.hasCancellationReasons()
+                && canceled.cancellationReasons().stream().anyMatch(reason -> code.equals(reason.code()));
+    }
+
+    private void acquire() {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for transaction chunks in flight", e);
+        }
+    }
+
+    /**
+     * Waits for all the chunks, logs the outcome of each failed or skipped chunk, and throws if any of them wasn't committed
+     */
+    void await() {
+        for (Chunk chunk : chunks) {
+            if (chunk.done == null) continue;
+            try {
+                chunk.done.join();
+            } catch (CompletionException e) {
+                // Reported below
+            }
+        }
+        List<Chunk> failed = new ArrayList<>();
+        Throwable firstError = null;
+        for (Chunk chunk : chunks) {
+            if (chunk.status == Status.COMMITTED) continue;
+            failed.add(chunk);
+            log.warn("Transaction chunk {} ({}): {}", chunk.index, chunk.describe(),
+                    chunk.error == null ? chunk.status : chunk.error.getMessage());
+            if (firstError == null && chunk.status == Status.FAILED) firstError = chunk.error;
+        }
+        if (failed.isEmpty()) {
+            log.debug("Committed {} transaction chunks", chunks.size());
+            return;
+        }
+        Chunk first = failed.get(0);
+        throw DynamoDbException.builder()
+                .message(String.format("%d of %d transaction chunks committed, chunk %d (%s) failed: %s",
+                        chunks.size() - failed.size(), chunks.size(), first.index, first.describe(), first.error.getMessage()))
+                .cause(firstError)
+                .build();
+    }
+
+    /**
+     * @return The outcome of each chunk: its index, first statement, number of statements, size, status
+     * (COMMITTED, FAILED, SKIPPED or PENDING), retries and error
+     */
+    List<Map<String, Object>> outcomes() {
+        List<Map<String, Object>> outcomes = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            Map<String, Object> outcome = new LinkedHashMap<>();
+            outcome.put("chunk", chunk.index);
+            outcome.put("firstStatement", chunk.firstStatement);
+            outcome.put("statements", chunk.statements.size());
+            outcome.put("bytes", chunk.bytes);
+            outcome.put("status", chunk.status.name());
+            outcome.put("retries", chunk.retries);
+            outcome.put("error", chunk.error == null ? null : chunk.error.getMessage());
+            outcomes.add(outcome);
+        }
+        return outcomes;
+    }
+
+    int chunks() {
+        return chunks.size();
+    }
+
+    enum Status {
+        PENDING, COMMITTED, FAILED, SKIPPED
+    }
+
+    private static final class Chunk {
+        private final int index;
+        private final int firstStatement;
+        private final List<ParameterizedStatement> statements = new ArrayList<>();
+        private final Set<Object> items = new HashSet<>();
+        // The tables of the statements, and of the statements of unknown items (null for an unknown table)
+        private final Set<String> tables = new HashSet<>();
+        private final Set<String> unknownTables = new HashSet<>();
+        private long bytes;
+        private CompletableFuture<Void> done;
+        private volatile Status status = Status.PENDING;
+        private volatile Throwable error;
+        private volatile int retries;
+
+        private Chunk(int index, int firstStatement) {
+            this.index = index;
+            this.firstStatement = firstStatement;
+        }
+
+        private void add(ParameterizedStatement statement, long size, Object key, String table) {
+            statements.add(statement);
+            bytes += size;
+            tables.add(table);
+            if (key != null && table != null) {
+                items.add(key);
+            } else {
+                unknownTables.add(table);
+            }
+        }
+
+        private void commit(int attempt) {
+            retries = attempt;
+            status = Status.COMMITTED;
+        }
+
+        private void fail(Throwable cause, int attempt) {
+            retries = attempt;
+            error = cause;
+            status = Status.FAILED;
+        }
+
+        private void skip() {
+            status = Status.SKIPPED;
+            error = new IllegalStateException("Skipped, since an earlier chunk writing the same items wasn't committed");
+        }
+
+        private String describe() {
+            return String.format("statements %d-%d", firstStatement, firstStatement + statements.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
+import com.k2view.fabric.common.Log;
+import com.k2view.fabric.common.Util;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBDefaults.*;
+
+/**
+ * Process-wide registry of DynamoDB clients.
+ * <p>
+ * Building a DynamoDbClient resolves credentials and the region and creates a new HTTP connection pool,
+ * so sessions of the same interface share a single client. Clients are reference counted by the sessions
+ * using them, and closed once no session has used them for a grace period, so an interface whose sessions
+ * come and go keeps its connections. A client is built outside of the registry's lock, so building the client
+ * of one interface doesn't hold up the sessions of the others.
+ */
+public final class DynamoDBClientRegistry {
+    private static final Log log = Log.a(DynamoDBClientRegistry.class);
+    // The time an unused client is kept for, before it's closed
+    private static final long IDLE_CLOSE_MILLIS = 30_000;
+
+    @GuardedBy("clients")
+    private static final Map<ClientKey, Registration> clients = new HashMap<>();
+    private static volatile ScheduledExecutorService closer;
+
+    private DynamoDBClientRegistry() {}
+
+    /**
+     * @param identifier The interface identifier
+     * @param params The interface properties
+     * @return The client shared by all sessions having the same identifier and client settings.
+     * Must be released with {@link #release(SharedClient)} once the caller is done with it.
+     */
+    public static SharedClient acquire(String identifier, Map<String, Object> params) {
+        return acquire(identifier, params, null);
+    }
+
+    /**
+     * @param clientFactory Given a supplier of the client that would have been built, returns the client to use,
+     *                      e.g. an in-memory stand-in; null to build it. Sessions share a client only if they have the same factory.
+     * @see #acquire(String, Map)
+     */
+    static SharedClient acquire(String identifier, Map<String, Object> params, Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory) {
+        ClientKey key = new ClientKey(identifier, ClientSettings.of(params), clientFactory);
+        Registration registration;
+        boolean build;
+        synchronized (clients) {
+            registration = clients.get(key);
+            build = registration == null;
+            if (build) {
+                registration = new Registration(key);
+                clients.put(key, registration);
+            }
+            registration.references++;
+            if (registration.idleClose != null) {
+                registration.idleClose.cancel(false);
+                registration.idleClose = null;
+            }
+        }
+        if (build) {
+            try {
+                registration.client.complete(new SharedClient(key));
+            } catch (RuntimeException e) {
+                synchronized (clients) {
+                    clients.remove(key, registration);
+                }
+                registration.client.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return registration.client.join();
+        } catch (CompletionException e) {
+            // Built by a concurrent session, which removed the registration
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    public static void release(SharedClient sharedClient) {
+        if (sharedClient == null) return;
+        synchronized (clients) {
+            Registration registration = clients.get(sharedClient.key);
+            if (registration == null || registration.client.getNow(null) != sharedClient) return;
+            if (--registration.references > 0) return;
+            registration.idleClose = closer().schedule(() -> closeIdle(registration), IDLE_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void closeIdle(Registration registration) {
+        synchronized (clients) {
+            // Acquired again since the task was scheduled
+            if (registration.references > 0 || !clients.remove(registration.key, registration)) return;
+        }
+        SharedClient sharedClient = registration.client.join();
+        log.debug("Closing DynamoDB client of interface {}", sharedClient.key.identifier);
+        sharedClient.close();
+    }
+
+    private static ScheduledExecutorService closer() {
+        ScheduledExecutorService scheduler = closer;
+        if (scheduler == null) {
+            synchronized (DynamoDBClientRegistry.class) {
+                if (closer == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "DynamoDB-ClientRegistry");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    closer = executor;
+                }
+                scheduler = closer;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * A client of the registry, built by the first session that acquires it, and the sessions using it
+     */
+    private static final class Registration {
+        private final ClientKey key;
+        private final CompletableFuture<SharedClient> client = new CompletableFuture<>();
+        @GuardedBy("clients")
+        private int references;
+        // Closes the client once it's been unused for the grace period, null while it's used
+        @GuardedBy("clients")
+        private ScheduledFuture<?> idleClose;
+
+        private Registration(ClientKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A DynamoDB client and the state shared by all the sessions using it
+     */
+    public static final class SharedClient {
+        private final ClientKey key;
+        private final DynamoDbClient dbClient;
+        private volatile DynamoDbAsyncClient dbAsyncClient;
+        private volatile ExecutorService executor;
+        private final DynamoDBAdaptiveBackoff backoff;
+        private final DynamoDBCapacityLimiter capacityLimiter;
+        private final DynamoDBMetrics metrics;
+        private final DynamoDBLookupCoalescer lookupCoalescer;
+        private final DynamoDBTableDescriptions tableDescriptions;
+
+        private SharedClient(ClientKey key) {
+            log.debug("Creating DynamoDB client of interface {}", key.identifier);
+            this.key = key;
+            this.tableDescriptions = new DynamoDBTableDescriptions(this::dbClient, key.identifier, key.settings.describeCacheTtl,
+                    key.settings.describeConcurrency, key.settings.describeRateLimit);
+            this.capacityLimiter = key.settings.capacityLimit ?
+                    new DynamoDBCapacityLimiter(tableDescriptions::describeAsync, key.settings.readCapacityLimit,
+                            key.settings.writeCapacityLimit, key.settings.capacityLimitPercent / 100.0)
+                    : null;
+            this.metrics = key.settings.metrics ? DynamoDBMetrics.of(key.identifier) : null;
+            this.dbClient = key.clientFactory == null ?
+                    key.settings.buildClient(interceptors(), publisher())
+                    : key.clientFactory.apply(() -> key.settings.buildClient(interceptors(), publisher()));
+            this.backoff = new DynamoDBAdaptiveBackoff(key.settings.backoffBaseDelay, key.settings.backoffMaxDelay);
+            this.lookupCoalescer = key.settings.lookupCoalescing ?
+                    new DynamoDBLookupCoalescer(key.settings.lookupCoalescingWindow, DEFAULT_BATCH_MAX_RETRIES, backoff,
+                            request -> CompletableFuture.supplyAsync(() -> dbClient.batchGetItem(request), executor()))
+                    : null;
+        }
+
+        public String identifier() {
+            return key.identifier;
+        }
+
+        private List<ExecutionInterceptor> interceptors() {
+            List<ExecutionInterceptor> interceptors = new ArrayList<>(2);
+            if (metrics != null) interceptors.add(metrics.interceptor());
+            if (capacityLimiter != null) interceptors.add(capacityLimiter);
+            return interceptors;
+        }
+
+        private MetricPublisher publisher() {
+            return metrics == null ? null : metrics.publisher();
+        }
+
+        public DynamoDbClient dbClient() {
+            return dbClient;
+        }
+
+        /**
+         * @return The backoff of the requests sent by all the sessions of the interface
+         */
+        public DynamoDBAdaptiveBackoff backoff() {
+            return backoff;
+        }
+
+        /**
+         * @return The coalescer of the point lookups of all the sessions of the interface, or null if lookups aren't coalesced
+         */
+        DynamoDBLookupCoalescer lookupCoalescer() {
+            return lookupCoalescer;
+        }
+
+        /**
+         * @param table The table name
+         * @return The description of the table, shared by the sessions of the interface and cached for DESCRIBE_CACHE_TTL
+         */
+        public TableDescription describeTable(String table) {
+            return tableDescriptions.describe(table);
+        }
+
+        /**
+         * @param table The table name
+         * @return The description of the table, read in the background at a limited rate unless it's cached
+         */
+        public CompletableFuture<TableDescription> describeTableAsync(String table) {
+            return tableDescriptions.describeAsync(table);
+        }
+
+        /**
+         * @param table The table name
+         * @return The key schema of the table, or null if the table can't be described
+         */
+        KeySchema keySchema(String table) {
+            try {
+                return tableDescriptions.keySchema(table);
+            } catch (DynamoDbException e) {
+                log.debug("Failed to read the key schema of table {}", table, e);
+                return null;
+            }
+        }
+
+        /**
+         * @param table The table name
+         * @return The key schema of the table if it's already described, otherwise null while it's described in the background
+         */
+        KeySchema cachedKeySchema(String table) {
+            return tableDescriptions.cachedKeySchema(table);
+        }
+
+        /**
+         * @return The asynchronous client of the interface, created on first use
+         * since it starts its own event loop threads
+         */
+        public DynamoDbAsyncClient dbAsyncClient() {
+            DynamoDbAsyncClient client = dbAsyncClient;
+            if (client == null) {
+                synchronized (this) {
+                    if (dbAsyncClient == null) {
+                        log.debug("Creating DynamoDB async client of interface {}", key.identifier);
+                        dbAsyncClient = key.settings.buildAsyncClient(interceptors(), publisher());
+                    }
+                    client = dbAsyncClient;
+                }
+            }
+            return client;
+        }
+
+        /**
+         * Sends a request through the async client, once the capacity limit of its tables allows it (see CAPACITY_LIMIT).
+         * Waiting for capacity doesn't block any thread.
+         */
+        <R extends SdkRequest, S> CompletableFuture<S> sendAsync(R request, BiFunction<DynamoDbAsyncClient, R, CompletableFuture<S>> send) {
+            if (capacityLimiter == null) return send.apply(dbAsyncClient(), request);
+            return capacityLimiter.whenAvailable(request).thenCompose(available -> send.apply(dbAsyncClient(), request));
+        }
+
+        /**
+         * @return A thread pool for requests sent with the blocking client in the background.
+         * It has as many threads as the client has connections, since any more threads would just wait for a connection.
+         */
+        public ExecutorService executor() {
+            ExecutorService pool = executor;
+            if (pool == null) {
+                synchronized (this) {
+                    if (executor == null) {
+                        AtomicInteger threadNumber = new AtomicInteger();
+                        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(key.settings.maxConnections, key.settings.maxConnections,
+                                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                            Thread thread = new Thread(runnable, "DynamoDB-" + key.identifier + "-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                        threadPool.allowCoreThreadTimeOut(true);
+                        executor = threadPool;
+                    }
+                    pool = executor;
+                }
+            }
+            return pool;
+        }
+
+        private void close() {
+            if (executor != null) executor.shutdown();
+            tableDescriptions.close();
+            Util.safeClose(dbClient);
+            Util.safeClose(dbAsyncClient);
+        }
+    }
+
+    private static final class ClientKey {
+        private final String identifier;
+        private final ClientSettings settings;
+        private final Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory;
+
+        private ClientKey(String identifier, ClientSettings settings, Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory) {
+            this.identifier = identifier;
+            this.settings = settings;
+            this.clientFactory = clientFactory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientKey)) return false;
+            ClientKey other = (ClientKey) o;
+            return Objects.equals(identifier, other.identifier) && settings.equals(other.settings)
+                    && clientFactory == other.clientFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identifier, settings, clientFactory);
+        }
+    }
+
+    /**
+     * The interface properties a client is built from. Sessions whose properties differ
+     * (e.g. after an environment override) get a client of their own.
+     * Credentials always come from the default credentials provider chain.
+     */
+    private static final class ClientSettings {
+        private final String region;
+        private final String endpointOverride;
+        private final int maxConnections;
+        private final long connectionTtl;
+        private final long connectionTimeout;
+        private final long socketTimeout;
+        private final long connectionAcquisitionTimeout;
+        private final boolean tcpKeepAlive;
+        private final long backoffBaseDelay;
+        private final long backoffMaxDelay;
+        private final boolean lookupCoalescing;
+        private final long lookupCoalescingWindow;
+        private final boolean capacityLimit;
+        private final long readCapacityLimit;
+        private final long writeCapacityLimit;
+        private final int capacityLimitPercent;
+        private final boolean metrics;
+        private final long describeCacheTtl;
+        private final int describeConcurrency;
+        private final int describeRateLimit;
+
+        private ClientSettings(Map<String, Object> params) {
+            String regionParam = getString(params, REGION, null);
+            this.region = regionParam == null ? null : regionParam.toLowerCase();
+            this.endpointOverride = getString(params, ENDPOINT_OVERRIDE, null);
+            this.maxConnections = getInt(params, MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+            this.connectionTtl = getLong(params, CONNECTION_TTL, DEFAULT_CONNECTION_TTL);
+            this.connectionTimeout = getLong(params, CONNECTION_TIMEOUT, DEFAULT_CONNECTION_TIMEOUT);
+            this.socketTimeout = getLong(params, SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+            this.connectionAcquisitionTimeout = getLong(params, CONNECTION_ACQUISITION_TIMEOUT, DEFAULT_CONNECTION_ACQUISITION_TIMEOUT);
+            this.tcpKeepAlive = getBoolean(params, TCP_KEEP_ALIVE, DEFAULT_TCP_KEEP_ALIVE);
+            this.backoffBaseDelay = getLong(params, BACKOFF_BASE_DELAY, DEFAULT_BACKOFF_BASE_DELAY);
+            this.backoffMaxDelay = getLong(params, BACKOFF_MAX_DELAY, DEFAULT_BACKOFF_MAX_DELAY);
+            this.lookupCoalescing = getBoolean(params, LOOKUP_COALESCING, DEFAULT_LOOKUP_COALESCING);
+            this.lookupCoalescingWindow = getLong(params, LOOKUP_COALESCING_WINDOW, DEFAULT_LOOKUP_COALESCING_WINDOW);
+            this.capacityLimit = getBoolean(params, CAPACITY_LIMIT, DEFAULT_CAPACITY_LIMIT);
+            this.readCapacityLimit = getLong(params, READ_CAPACITY_LIMIT, DEFAULT_CAPACITY_UNITS_LIMIT);
+            this.writeCapacityLimit = getLong(params, WRITE_CAPACITY_LIMIT, DEFAULT_CAPACITY_UNITS_LIMIT);
+            this.capacityLimitPercent = getInt(params, CAPACITY_LIMIT_PERCENT, DEFAULT_CAPACITY_LIMIT_PERCENT);
+            this.metrics = getBoolean(params, METRICS, DEFAULT_METRICS);
+            this.describeCacheTtl = getLong(params, DESCRIBE_CACHE_TTL, DEFAULT_DESCRIBE_CACHE_TTL);
+            this.describeConcurrency = getInt(params, DESCRIBE_CONCURRENCY, DEFAULT_DESCRIBE_CONCURRENCY);
+            this.describeRateLimit = getInt(params, DESCRIBE_RATE_LIMIT, DEFAULT_DESCRIBE_RATE_LIMIT);
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Max connections must be a positive number");
+            }
+            if (capacityLimitPercent < 1 || capacityLimitPercent > 100) {
+                throw new IllegalArgumentException("Capacity limit percent must be between 1 and 100");
+            }
+        }
+
+        private static ClientSettings of(Map<String, Object> params) {
+            return new ClientSettings(params);
+        }
+
+        private DynamoDbClient buildClient(List<ExecutionInterceptor> interceptors, MetricPublisher publisher) {
+            DynamoDbClientBuilder dynamoDbClientBuilder = DynamoDbClient
+                    .builder()
+                    .credentialsProvider(DefaultCredentialsProvider.create())
+                    .httpClientBuilder(ApacheHttpClient.builder()
+                            .maxConnections(maxConnections)
+                            .connectionTimeToLive(Duration.ofMillis(Math.max(connectionTtl, 0)))
+                            .connectionTimeout(Duration.ofMillis(connectionTimeout))
+                            .socketTimeout(Duration.ofMillis(socketTimeout))
+                            .connectionAcquisitionTimeout(Duration.ofMillis(connectionAcquisitionTimeout))
+                            .tcpKeepAlive(tcpKeepAlive));
+            if (region != null) {
+                dynamoDbClientBuilder.region(Region.of(region));
+            }
+            if (endpointOverride != null) {
+                dynamoDbClientBuilder.endpointOverride(URI.create(endpointOverride));
+            }
+            dynamoDbClientBuilder.overrideConfiguration(config -> {
+                interceptors.forEach(config::addExecutionInterceptor);
+                if (publisher != null) config.addMetricPublisher(publisher);
+            });
+            return dynamoDbClientBuilder.build();
+        }
+
+        private DynamoDbAsyncClient buildAsyncClient(List<ExecutionInterceptor> interceptors, MetricPublisher publisher) {
+            DynamoDbAsyncClientBuilder dynamoDbClientBuilder = DynamoDbAsyncClient
+                    .builder()
+                    .credentialsProvider(DefaultCredentialsProvider.create())
+                    .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                            .maxConcurrency(maxConnections)
+                            .connectionTimeToLive(Duration.ofMillis(Math.max(connectionTtl, 0)))
+                            .connectionTimeout(Duration.ofMillis(connectionTimeout))
+                            .readTimeout(Duration.ofMillis(socketTimeout))
+                            .writeTimeout(Duration.ofMillis(socketTimeout))
+                            .connectionAcquisitionTimeout(Duration.ofMillis(connectionAcquisitionTimeout))
+                            .tcpKeepAlive(tcpKeepAlive));
+            if (region != null) {
+                dynamoDbClientBuilder.region(Region.of(region));
+            }
+            if (endpointOverride != null) {
+                dynamoDbClientBuilder.endpointOverride(URI.create(endpointOverride));
+            }
+            dynamoDbClientBuilder.overrideConfiguration(config -> {
+                interceptors.forEach(config::addExecutionInterceptor);
+                if (publisher != null) config.addMetricPublisher(publisher);
+            });
+            return dynamoDbClientBuilder.build();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientSettings)) return false;
+            ClientSettings other = (ClientSettings) o;
+            return maxConnections == other.maxConnections
+                    && connectionTtl == other.connectionTtl
+                    && connectionTimeout == other.connectionTimeout
+                    && socketTimeout == other.socketTimeout
+                    && connectionAcquisitionTimeout == other.connectionAcquisitionTimeout
+                    && tcpKeepAlive == other.tcpKeepAlive
+                    && backoffBaseDelay == other.backoffBaseDelay
+                    && backoffMaxDelay == other.backoffMaxDelay
+                    && lookupCoalescing == other.lookupCoalescing
+                    && lookupCoalescingWindow == other.lookupCoalescingWindow
+                    && capacityLimit == other.capacityLimit
+                    && readCapacityLimit == other.readCapacityLimit
+                    && writeCapacityLimit == other.writeCapacityLimit
+                    && capacityLimitPercent == other.capacityLimitPercent
+                    && metrics == other.metrics
+                    && describeCacheTtl == other.describeCacheTtl
+                    && describeConcurrency == other.describeConcurrency
+                    && describeRateLimit == other.describeRateLimit
+                    && Objects.equals(region, other.region)
+                    && Objects.equals(endpointOverride, other.endpointOverride);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(region, endpointOverride, maxConnections, connectionTtl, connectionTimeout, socketTimeout,
+                    connectionAcquisitionTimeout, tcpKeepAlive, backoffBaseDelay, backoffMaxDelay,
+                    lookupCoalescing, lookupCoalescingWindow, capacityLimit, readCapacityLimit, writeCapacityLimit, capacityLimitPercent, metrics,
+                    describeCacheTtl, describeConcurrency, describeRateLimit);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The converters of statement parameters to AttributeValue, resolved once per runtime class.
+ * <p>
+ * Types the connector doesn't support (e.g. UUID or the java.time classes) can be bound as parameters
+ * by registering a converter for them, which maps a value to a supported one (such as a String, a Number or a Map),
+ * or directly to an AttributeValue:
+ * <pre>
+ * DynamoDBConverters.register(UUID.class, UUID::toString);
+ * DynamoDBConverters.register(Instant.class, Instant::toEpochMilli);
+ * </pre>
+ * A converter registered for a type applies to its subtypes as well, and takes precedence over the built-in conversion.
+ * Converters are meant to be registered once, at startup. Each registration discards the resolved converters.
+ */
+public final class DynamoDBConverters {
+    @GuardedBy("DynamoDBConverters.class")
+    private static final Map<Class<?>, Function<Object, ?>> registered = new LinkedHashMap<>();
+    // Replaced on each registration, as ClassValue entries can't be invalidated all at once
+    private static volatile ClassValue<Converter> converters = newConverters(Collections.emptyMap());
+
+    private DynamoDBConverters() {}
+
+    /**
+     * Converts a value of a specific runtime class
+     */
+    @FunctionalInterface
+    interface Converter {
+        /**
+         * @param value A non null value
+         * @param fallout Applied to the values that can't be converted
+         * @param binaryMode How binary values are written
+         * @return The converted value, or null if it needs to be skipped
+         */
+        AttributeValue convert(Object value, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode);
+    }
+
+    /**
+     * @param type The type converted, including its subtypes
+     * @param converter Maps a value to a supported one, or to an AttributeValue
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> void register(Class<T> type, Function<? super T, ?> converter) {
+        if (type == null || converter == null) {
+            throw new IllegalArgumentException("A converter requires a type and a function!");
+        }
+        registered.put(type, (Function<Object, ?>) converter);
+        converters = newConverters(new LinkedHashMap<>(registered));
+    }
+
+    /**
+     * @param type A type previously registered
+     */
+    public static synchronized void unregister(Class<?> type) {
+        if (registered.remove(type) != null) {
+            converters = newConverters(new LinkedHashMap<>(registered));
+        }
+    }
+
+    /**
+     * @param type The runtime class of a value
+     * @return The converter of its values
+     */
+    static Converter converterOf(Class<?> type) {
+        return converters.get(type);
+    }
+
+    /**
+     * @param type The runtime class of a value
+     * @return Whether a converter was registered for it, or one of its super types
+     */
+    static boolean isRegistered(Class<?> type) {
+        return converters.get(type) instanceof Registered;
+    }
+
+    private static ClassValue<Converter> newConverters(Map<Class<?>, Function<Object, ?>> registered) {
+        return new ClassValue<Converter>() {
+            @Override
+            protected Converter computeValue(Class<?> type) {
+                Function<Object, ?> function = registered.get(type);
+                if (function == null) {
+                    for (Map.Entry<Class<?>, Function<Object, ?>> entry : registered.entrySet()) {
+                        if (entry.getKey().isAssignableFrom(type)) {
+                            function = entry.getValue();
+                            break;
+                        }
+                    }
+                }
+                return function != null ? new Registered(function) : DynamoDBParseUtils.builtInConverter(type);
+            }
+        };
+    }
+
+    private static final class Registered implements Converter {
+        private final Function<Object, ?> function;
+
+        private Registered(Function<Object, ?> function) {
+            this.function = function;
+        }
+
+        @Override
+        public AttributeValue convert(Object value, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+            Object converted = function.apply(value);
+            if (converted instanceof AttributeValue) return (AttributeValue) converted;
+            return DynamoDBParseUtils.toAttributeValue(converted, fallout, binaryMode);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.ParamConvertor;
+import com.k2view.fabric.common.Util;
+
+import java.util.Map;
+
+/**
+ * Names and default values of the DynamoDB interface properties
+ */
+public final class DynamoDBDefaults {
+    public static final String REGION = "REGION";
+    // e.g. http://localhost:8000 for DynamoDB Local
+    public static final String ENDPOINT_OVERRIDE = "ENDPOINT_OVERRIDE";
+    public static final String BATCH_SIZE = "BATCH_SIZE";
+    public static final int DEFAULT_BATCH_SIZE = 25;
+    public static final String BATCH_CONCURRENCY = "BATCH_CONCURRENCY";
+    public static final int DEFAULT_BATCH_CONCURRENCY = 4;
+    public static final String BATCH_MAX_RETRIES = "BATCH_MAX_RETRIES";
+    public static final int DEFAULT_BATCH_MAX_RETRIES = 10;
+    // Commits a transaction of more than TRANSACTION_CHUNK_SIZE statements (or 4 MB) as several transactions
+    public static final String CHUNKED_COMMIT = "CHUNKED_COMMIT";
+    public static final boolean DEFAULT_CHUNKED_COMMIT = false;
+    public static final String TRANSACTION_CHUNK_SIZE = "TRANSACTION_CHUNK_SIZE";
+    public static final int DEFAULT_TRANSACTION_CHUNK_SIZE = 100;
+    // Sends the writes outside of a transaction in the background, in batches
+    public static final String WRITE_BEHIND = "WRITE_BEHIND";
+    public static final boolean DEFAULT_WRITE_BEHIND = false;
+    // Partial batches are sent at this interval, 0 to send them only on flush or close
+    public static final String WRITE_BEHIND_FLUSH_INTERVAL = "WRITE_BEHIND_FLUSH_INTERVAL";
+    public static final long DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL = 1000;
+    // Coalesces the writes of a batch to the same item into a single write
+    public static final String WRITE_COALESCING = "WRITE_COALESCING";
+    public static final boolean DEFAULT_WRITE_COALESCING = false;
+
+    // Backoff on throttling, shared by all the sessions of an interface
+    public static final String BACKOFF_BASE_DELAY = "BACKOFF_BASE_DELAY";
+    public static final long DEFAULT_BACKOFF_BASE_DELAY = 25;
+    public static final String BACKOFF_MAX_DELAY = "BACKOFF_MAX_DELAY";
+    public static final long DEFAULT_BACKOFF_MAX_DELAY = 10_000;
+
+    // HTTP client settings, shared by all the sessions of an interface
+    public static final String MAX_CONNECTIONS = "MAX_CONNECTIONS";
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final String CONNECTION_TTL = "CONNECTION_TTL";
+    public static final long DEFAULT_CONNECTION_TTL = 60_000;
+    public static final String CONNECTION_TIMEOUT = "CONNECTION_TIMEOUT";
+    public static final long DEFAULT_CONNECTION_TIMEOUT = 2_000;
+    public static final String SOCKET_TIMEOUT = "SOCKET_TIMEOUT";
+    public static final long DEFAULT_SOCKET_TIMEOUT = 30_000;
+    public static final String CONNECTION_ACQUISITION_TIMEOUT = "CONNECTION_ACQUISITION_TIMEOUT";
+    public static final long DEFAULT_CONNECTION_ACQUISITION_TIMEOUT = 10_000;
+    public static final String TCP_KEEP_ALIVE = "TCP_KEEP_ALIVE";
+    public static final boolean DEFAULT_TCP_KEEP_ALIVE = true;
+
+    // Execute statements, fetch pages and send batches through the asynchronous client
+    public static final String ASYNC_MODE = "ASYNC_MODE";
+    public static final boolean DEFAULT_ASYNC_MODE = false;
+
+    // Read-ahead of result pages while the current page is consumed
+    public static final String PREFETCH_PAGES = "PREFETCH_PAGES";
+    public static final int DEFAULT_PREFETCH_PAGES = 0;
+    public static final String PREFETCH_MAX_BYTES = "PREFETCH_MAX_BYTES";
+    public static final long DEFAULT_PREFETCH_MAX_BYTES = 16L * 1024 * 1024;
+
+    // Full table reads with a parallel, segmented Scan
+    public static final String PARALLEL_SCAN = "PARALLEL_SCAN";
+    public static final boolean DEFAULT_PARALLEL_SCAN = false;
+    public static final String PARALLEL_SCAN_WORKERS = "PARALLEL_SCAN_WORKERS";
+    public static final int DEFAULT_PARALLEL_SCAN_WORKERS = 8;
+    public static final String PARALLEL_SCAN_SEGMENT_BYTES = "PARALLEL_SCAN_SEGMENT_BYTES";
+    public static final long DEFAULT_PARALLEL_SCAN_SEGMENT_BYTES = 1024L * 1024 * 1024;
+    // The items sampled from each random segment of a table, 0 to sample the first items read by a parallel scan
+    public static final String SAMPLE_SLICE_ITEMS = "SAMPLE_SLICE_ITEMS";
+    public static final int DEFAULT_SAMPLE_SLICE_ITEMS = 50;
+
+    // Decode the attributes of result rows on first access
+    public static final String LAZY_DECODING = "LAZY_DECODING";
+    public static final boolean DEFAULT_LAZY_DECODING = false;
+
+    // Decoding of number attributes, one of BIG_DECIMAL, AUTO (Long when integral) or DOUBLE
+    public static final String NUMBER_MODE = "NUMBER_MODE";
+    public static final String DEFAULT_NUMBER_MODE = DynamoDBNumberMode.BIG_DECIMAL.name();
+
+    // Binary attributes are Base64 encoded unless RAW, as written by earlier versions
+    public static final String BINARY_MODE = "BINARY_MODE";
+    public static final String DEFAULT_BINARY_MODE = DynamoDBBinaryMode.BASE64.name();
+
+    // Execute simple key-value statements with GetItem/Query/PutItem/DeleteItem/BatchWriteItem (batched DELETEs) instead of PartiQL
+    public static final String NATIVE_KEY_VALUE = "NATIVE_KEY_VALUE";
+    public static final boolean DEFAULT_NATIVE_KEY_VALUE = false;
+
+    // Coalesce concurrent point lookups of the interface into BatchGetItem requests
+    public static final String LOOKUP_COALESCING = "LOOKUP_COALESCING";
+    public static final boolean DEFAULT_LOOKUP_COALESCING = false;
+    public static final String LOOKUP_COALESCING_WINDOW = "LOOKUP_COALESCING_WINDOW";
+    public static final long DEFAULT_LOOKUP_COALESCING_WINDOW = 2;
+
+    // Read/write capacity limit per table, shared by all the sessions of an interface
+    public static final String CAPACITY_LIMIT = "CAPACITY_LIMIT";
+    public static final boolean DEFAULT_CAPACITY_LIMIT = false;
+    public static final String READ_CAPACITY_LIMIT = "READ_CAPACITY_LIMIT";
+    public static final String WRITE_CAPACITY_LIMIT = "WRITE_CAPACITY_LIMIT";
+    // 0 limits each table to a percentage of its provisioned capacity
+    public static final long DEFAULT_CAPACITY_UNITS_LIMIT = 0;
+    public static final String CAPACITY_LIMIT_PERCENT = "CAPACITY_LIMIT_PERCENT";
+    public static final int DEFAULT_CAPACITY_LIMIT_PERCENT = 80;
+
+    // Latency, capacity and throttling metrics per table, exposed through JMX and DynamoDBMetrics.snapshot()
+    public static final String METRICS = "METRICS";
+    public static final boolean DEFAULT_METRICS = true;
+
+    // On-disk cache of the table snapshots read by discovery
+    public static final String SNAPSHOT_CACHE = "SNAPSHOT_CACHE";
+    public static final boolean DEFAULT_SNAPSHOT_CACHE = false;
+    // Defaults to a directory under java.io.tmpdir
+    public static final String SNAPSHOT_CACHE_DIR = "SNAPSHOT_CACHE_DIR";
+    public static final String DEFAULT_SNAPSHOT_CACHE_DIR = "k2view-dynamodb-snapshots";
+    public static final String SNAPSHOT_CACHE_TTL = "SNAPSHOT_CACHE_TTL";
+    public static final long DEFAULT_SNAPSHOT_CACHE_TTL = 3_600_000;
+
+    // Table descriptions, cached per interface and read concurrently by discovery
+    public static final String DESCRIBE_CACHE_TTL = "DESCRIBE_CACHE_TTL";
+    public static final long DEFAULT_DESCRIBE_CACHE_TTL = 300_000;
+    public static final String DESCRIBE_CONCURRENCY = "DESCRIBE_CONCURRENCY";
+    public static final int DEFAULT_DESCRIBE_CONCURRENCY = 8;
+    // DescribeTable requests per second, 0 for no limit
+    public static final String DESCRIBE_RATE_LIMIT = "DESCRIBE_RATE_LIMIT";
+    public static final int DEFAULT_DESCRIBE_RATE_LIMIT = 20;
+
+    // Discovery of the non-key attributes of tables, from a sample of their items
+    public static final String SCHEMA_INFERENCE = "SCHEMA_INFERENCE";
+    public static final boolean DEFAULT_SCHEMA_INFERENCE = false;
+    public static final String SCHEMA_INFERENCE_SAMPLE_SIZE = "SCHEMA_INFERENCE_SAMPLE_SIZE";
+    public static final int DEFAULT_SCHEMA_INFERENCE_SAMPLE_SIZE = 1000;
+    // Read capacity units per table
+    public static final String SCHEMA_INFERENCE_CAPACITY = "SCHEMA_INFERENCE_CAPACITY";
+    public static final int DEFAULT_SCHEMA_INFERENCE_CAPACITY = 100;
+    public static final String SCHEMA_INFERENCE_MAX_ATTRIBUTES = "SCHEMA_INFERENCE_MAX_ATTRIBUTES";
+    public static final int DEFAULT_SCHEMA_INFERENCE_MAX_ATTRIBUTES = 1000;
+
+    private DynamoDBDefaults() {}
+
+    static String getString(Map<String, Object> params, String name, String defaultValue) {
+        Object value = params == null ? null : params.get(name);
+        if (value == null || Util.isEmpty(value.toString())) return defaultValue;
+        return value.toString();
+    }
+
+    static int getInt(Map<String, Object> params, String name, int defaultValue) {
+        String value = getString(params, name, null);
+        return value == null ? defaultValue : ParamConvertor.toNumber(value).intValue();
+    }
+
+    static long getLong(Map<String, Object> params, String name, long defaultValue) {
+        String value = getString(params, name, null);
+        return value == null ? defaultValue : ParamConvertor.toNumber(value).longValue();
+    }
+
+    static boolean getBoolean(Map<String, Object> params, String name, boolean defaultValue) {
+        String value = getString(params, name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
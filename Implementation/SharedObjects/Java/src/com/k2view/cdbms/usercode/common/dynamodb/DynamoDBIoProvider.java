@@ -4,13 +4,30 @@ import com.k2view.fabric.common.Json;
 import com.k2view.fabric.common.Util;
 import com.k2view.fabric.common.io.IoProvider;
 import com.k2view.fabric.common.io.IoSession;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class DynamoDBIoProvider implements IoProvider {
+    private final Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory;
+
+    public DynamoDBIoProvider() {
+        this(null);
+    }
+
+    /**
+     * @param clientFactory Builds the DynamoDB client of the sessions, e.g. an in-memory stand-in,
+     *                      see {@link DynamoDBClientRegistry#acquire(String, Map, Function)}
+     */
+    DynamoDBIoProvider(Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
     @Override
     public IoSession createSession(String identifier, Map<String, Object> params) {
-        return new DynamoDBIoSession(identifier, params);
+        return new DynamoDBIoSession(identifier, params, clientFactory);
     }
 
     @Override
@@ -1,25 +1,34 @@
 package com.k2view.cdbms.usercode.common.dynamodb;
 
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBClientRegistry.SharedClient;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.BatchWrite;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
 import com.k2view.cdbms.usercode.common.dynamodb.metadata.DynamoDbMetadata;
 import com.k2view.fabric.common.Log;
-import com.k2view.fabric.common.ParamConvertor;
 import com.k2view.fabric.common.Util;
 import com.k2view.fabric.common.io.AbstractIoSession;
 import com.k2view.fabric.common.io.IoCommand;
 import com.k2view.fabric.common.io.IoSession;
 import com.k2view.fabric.common.io.basic.IoSimpleResultSet;
-import com.k2view.fabric.common.io.basic.IoSimpleRow;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
+import org.reactivestreams.Publisher;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
 import javax.annotation.concurrent.GuardedBy;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBDefaults.*;
 import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBParseUtils.toAttributeValueList;
 
 @SuppressWarnings("all")
@@ -31,13 +40,38 @@ public class DynamoDBIoSession extends AbstractIoSession {
     @GuardedBy("transactionStatementsLock")
     private List<ParameterizedStatement> transactionStatements;
 
-    private final Object batchStatementsLock = new Object();
-    @GuardedBy("batchStatementsLock")
-    private List<BatchStatementRequest> batchStatementRequests;
+    private final DynamoDBBatchPipeline<BatchStatementRequest> batchPipeline;
+    private final DynamoDBBatchPipeline<BatchWrite> batchWritePipeline;
+    private final boolean chunkedCommit;
+    private final int transactionChunkSize;
+    private final int batchConcurrency;
+    private final int batchMaxRetries;
+    private volatile List<Map<String, Object>> lastCommitChunks = Collections.emptyList();
+    // Null unless the writes outside of a transaction are written behind
+    private final DynamoDBWriteBehind writeBehind;
 
     private final int recordsInBatch;
+    private final boolean asyncMode;
+    private final int prefetchPages;
+    private final long prefetchMaxBytes;
+    private final boolean parallelScanMode;
+    private final int parallelScanWorkers;
+    private final long parallelScanSegmentBytes;
+    private final int sampleSliceItems;
+    private final boolean nativeKeyValue;
+    // Whether the items batch statements write are told apart, to coalesce or reorder them, or to order them with native writes
+    private final boolean statementItemKeys;
+    private final boolean lazyDecoding;
+    private final DynamoDBNumberMode numberMode;
+    private final DynamoDBBinaryMode binaryMode;
     private final String interfaceIdentifier;
+    private final DynamoDBSnapshotCache snapshotCache;
+    private final boolean schemaInference;
+    private final int schemaInferenceSampleSize;
+    private final int schemaInferenceCapacity;
+    private final int schemaInferenceMaxAttributes;
 
+    private SharedClient sharedClient;
     private DynamoDbClient dbClient;
     private final Map<String, Object> sessionParams;
 
@@ -46,35 +80,79 @@ public class DynamoDBIoSession extends AbstractIoSession {
     }
 
     public DynamoDBIoSession(String identifier, Map<String, Object> params) {
+        this(identifier, params, null);
+    }
+
+    /**
+     * @param clientFactory Builds the DynamoDB client instead of the interface properties, see {@link DynamoDBClientRegistry#acquire(String, Map, Function)}
+     */
+    DynamoDBIoSession(String identifier, Map<String, Object> params, Function<Supplier<DynamoDbClient>, DynamoDbClient> clientFactory) {
         log.debug("Creating DynamoDBIoSession {}", this);
         this.sessionParams = new HashMap<>();
         if (params != null) this.sessionParams.putAll(params);
         this.inTransaction = false;
         this.interfaceIdentifier = identifier;
-        this.recordsInBatch = ParamConvertor.toNumber(params.get("BATCH_SIZE")).intValue();
+        this.recordsInBatch = getInt(sessionParams, BATCH_SIZE, DEFAULT_BATCH_SIZE);
         if (recordsInBatch < 1) {
             throw new IllegalArgumentException("Batch size must be between 1 and the maximum defined by AWS");
         }
-        this.dbClient = this.createDbClient();
-    }
-
-    private DynamoDbClient createDbClient() {
-        Object region = sessionParams.get("REGION");
-        DynamoDbClientBuilder dynamoDbClientBuilder = DynamoDbClient
-                .builder()
-                .credentialsProvider(DefaultCredentialsProvider.create());
-        if (region != null && !Util.isEmpty(region.toString())) {
-            dynamoDbClientBuilder.region(Region.of(region.toString().toLowerCase()));
+        this.asyncMode = getBoolean(sessionParams, ASYNC_MODE, DEFAULT_ASYNC_MODE);
+        this.prefetchPages = getInt(sessionParams, PREFETCH_PAGES, DEFAULT_PREFETCH_PAGES);
+        this.prefetchMaxBytes = getLong(sessionParams, PREFETCH_MAX_BYTES, DEFAULT_PREFETCH_MAX_BYTES);
+        this.parallelScanMode = getBoolean(sessionParams, PARALLEL_SCAN, DEFAULT_PARALLEL_SCAN);
+        this.parallelScanWorkers = getInt(sessionParams, PARALLEL_SCAN_WORKERS, DEFAULT_PARALLEL_SCAN_WORKERS);
+        this.parallelScanSegmentBytes = getLong(sessionParams, PARALLEL_SCAN_SEGMENT_BYTES, DEFAULT_PARALLEL_SCAN_SEGMENT_BYTES);
+        this.sampleSliceItems = getInt(sessionParams, SAMPLE_SLICE_ITEMS, DEFAULT_SAMPLE_SLICE_ITEMS);
+        if (parallelScanWorkers < 1) {
+            throw new IllegalArgumentException("Parallel scan workers must be a positive number");
         }
-        return dynamoDbClientBuilder.build();
+        this.nativeKeyValue = getBoolean(sessionParams, NATIVE_KEY_VALUE, DEFAULT_NATIVE_KEY_VALUE);
+        this.lazyDecoding = getBoolean(sessionParams, LAZY_DECODING, DEFAULT_LAZY_DECODING);
+        this.numberMode = DynamoDBNumberMode.of(getString(sessionParams, NUMBER_MODE, DEFAULT_NUMBER_MODE));
+        this.binaryMode = DynamoDBBinaryMode.of(getString(sessionParams, BINARY_MODE, DEFAULT_BINARY_MODE));
+        this.snapshotCache = DynamoDBSnapshotCache.of(identifier, sessionParams);
+        this.schemaInference = getBoolean(sessionParams, SCHEMA_INFERENCE, DEFAULT_SCHEMA_INFERENCE);
+        this.schemaInferenceSampleSize = getInt(sessionParams, SCHEMA_INFERENCE_SAMPLE_SIZE, DEFAULT_SCHEMA_INFERENCE_SAMPLE_SIZE);
+        this.schemaInferenceCapacity = getInt(sessionParams, SCHEMA_INFERENCE_CAPACITY, DEFAULT_SCHEMA_INFERENCE_CAPACITY);
+        this.schemaInferenceMaxAttributes = getInt(sessionParams, SCHEMA_INFERENCE_MAX_ATTRIBUTES, DEFAULT_SCHEMA_INFERENCE_MAX_ATTRIBUTES);
+        this.sharedClient = DynamoDBClientRegistry.acquire(identifier, sessionParams, clientFactory);
+        this.dbClient = sharedClient.dbClient();
+        this.batchConcurrency = getInt(sessionParams, BATCH_CONCURRENCY, DEFAULT_BATCH_CONCURRENCY);
+        this.batchMaxRetries = getInt(sessionParams, BATCH_MAX_RETRIES, DEFAULT_BATCH_MAX_RETRIES);
+        this.chunkedCommit = getBoolean(sessionParams, CHUNKED_COMMIT, DEFAULT_CHUNKED_COMMIT);
+        this.transactionChunkSize = getInt(sessionParams, TRANSACTION_CHUNK_SIZE, DEFAULT_TRANSACTION_CHUNK_SIZE);
+        DynamoDBWriteCoalescing coalescing = getBoolean(sessionParams, WRITE_COALESCING, DEFAULT_WRITE_COALESCING) ?
+                new DynamoDBWriteCoalescing()
+                : null;
+        this.statementItemKeys = coalescing != null || batchConcurrency > 1 || nativeKeyValue;
+        // The writes of the same items are kept in order across both pipelines
+        DynamoDBWriteOrder order = new DynamoDBWriteOrder();
+        this.batchPipeline = new DynamoDBBatchPipeline<>(recordsInBatch, batchConcurrency, batchMaxRetries, sharedClient.backoff(),
+                order, this::statementItemKey, DynamoDBIoSession::statementTable,
+                coalescing == null ? null : coalescing::coalesce, this::sendBatch, null);
+        this.batchWritePipeline = new DynamoDBBatchPipeline<>(recordsInBatch, batchConcurrency, batchMaxRetries, sharedClient.backoff(),
+                order, BatchWrite::itemKey, write -> write.table,
+                coalescing == null ? null : coalescing::coalesce, this::sendBatchWrite, null);
+        this.writeBehind = getBoolean(sessionParams, WRITE_BEHIND, DEFAULT_WRITE_BEHIND) ?
+                new DynamoDBWriteBehind(recordsInBatch, batchConcurrency, batchMaxRetries, sharedClient.backoff(),
+                        this::statementItemKey, this::sendBatch, this::sendBatchWrite, coalescing,
+                        getLong(sessionParams, WRITE_BEHIND_FLUSH_INTERVAL, DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL))
+                : null;
     }
 
     @Override
     public void close() {
         log.debug("Closing DynamoDBIoSession {}", this);
-        Util.safeClose(dbClient);
+        if (writeBehind != null) {
+            // The writes still buffered are sent with the client, before it's released
+            writeBehind.close();
+        }
+        // The client is shared with the other sessions of the interface, release it instead of closing it
+        DynamoDBClientRegistry.release(sharedClient);
+        sharedClient=null;
         dbClient=null;
-        batchStatementRequests=null;
+        batchPipeline.discard();
+        batchWritePipeline.discard();
         transactionStatements=null;
     }
 
@@ -98,15 +176,107 @@ public class DynamoDBIoSession extends AbstractIoSession {
     @Override
     public void commit() {
         log.debug("Committing DynamoDB transaction");
-        if (transactionStatements != null && !transactionStatements.isEmpty()) {
-            ExecuteTransactionRequest executeTransactionRequest = ExecuteTransactionRequest.builder().transactStatements(transactionStatements).build();
-            dbClient.executeTransaction(executeTransactionRequest);
-            transactionStatements.clear();
-        }
-        if (batchStatementRequests != null && !batchStatementRequests.isEmpty()) {
-            executeBatch();
+        try {
+            CompletableFuture<?> transaction = null;
+            DynamoDBChunkedTransaction chunkedTransaction = null;
+            try {
+                if (chunkedCommit && transactionStatements != null && !transactionStatements.isEmpty()) {
+                    // The chunks are sent in the background, and are in flight with the batches below
+                    chunkedTransaction = new DynamoDBChunkedTransaction(new ArrayList<>(transactionStatements), transactionChunkSize,
+                            batchConcurrency, batchMaxRetries, sharedClient.backoff(), this::transactionItemKey,
+                            statement -> DynamoDBStatementDescriptor.lookup(statement.statement()).table,
+                            request -> sendInBackground(request, DynamoDbClient::executeTransaction, DynamoDbAsyncClient::executeTransaction));
+                    chunkedTransaction.send();
+                } else if (transactionStatements != null && !transactionStatements.isEmpty()) {
+                    ExecuteTransactionRequest executeTransactionRequest = ExecuteTransactionRequest.builder().transactStatements(transactionStatements).build();
+                    if (asyncMode) {
+                        transaction = sharedClient.sendAsync(executeTransactionRequest, DynamoDbAsyncClient::executeTransaction);
+                    } else {
+                        dbClient.executeTransaction(executeTransactionRequest);
+                    }
+                }
+                batchPipeline.flush();
+                batchWritePipeline.flush();
+                // In async mode, the transaction and the batches are all in flight at this point
+                if (transaction != null) {
+                    join(transaction);
+                }
+                if (chunkedTransaction != null) {
+                    try {
+                        chunkedTransaction.await();
+                    } finally {
+                        lastCommitChunks = chunkedTransaction.outcomes();
+                    }
+                }
+            } finally {
+                // The batches already sent are awaited even if the transaction failed, so their errors aren't lost
+                try {
+                    batchPipeline.await();
+                } finally {
+                    batchWritePipeline.await();
+                }
+            }
+        } finally {
+            // The transaction is over whether it succeeded or not, nothing of it is left for the next one
+            batchPipeline.discard();
+            batchWritePipeline.discard();
+            if (transactionStatements != null) {
+                transactionStatements.clear();
+            }
+            inTransaction = false;
         }
-        inTransaction=false;
+    }
+
+    /**
+     * Sends the writes buffered outside of a transaction (see WRITE_BEHIND), and waits for all of them
+     */
+    public void flush() {
+        if (writeBehind != null) writeBehind.flush();
+    }
+
+    /**
+     * @param failureHandler Given the statement and error of each write-behind write that failed (see WRITE_BEHIND),
+     *                       or null to log them as errors
+     */
+    public void onWriteFailure(BiConsumer<String, Throwable> failureHandler) {
+        if (writeBehind != null) writeBehind.onFailure(failureHandler);
+    }
+
+    /**
+     * @return The outcome of each chunk of the last chunked commit (see CHUNKED_COMMIT): its index, first statement,
+     * number of statements, size in bytes, status (COMMITTED, FAILED or SKIPPED), retries and error
+     */
+    public List<Map<String, Object>> lastCommitChunks() {
+        return lastCommitChunks;
+    }
+
+    /**
+     * @return The item a statement of a transaction writes, or null if it can't be told from the statement
+     */
+    private Object transactionItemKey(ParameterizedStatement statement) {
+        DynamoDBKeyValueStatement keyValue = DynamoDBStatementDescriptor.lookup(statement.statement()).keyValue;
+        if (keyValue == null || keyValue.kind == DynamoDBStatementDescriptor.Kind.SELECT || !statement.hasParameters()) return null;
+        KeySchema keySchema = sharedClient.cachedKeySchema(keyValue.table);
+        if (keyValue.operation(keySchema, statement.parameters()) == null) return null;
+        return keyValue.batchWrite(keySchema, statement.parameters()).itemKey();
+    }
+
+    /**
+     * @return The item a batch statement writes, or null if it can't be told from the statement,
+     * or the key schema of its table isn't described yet, so it's ordered with all the writes of the table
+     */
+    private Object statementItemKey(BatchStatementRequest statement) {
+        if (!statementItemKeys) return null;
+        DynamoDBKeyValueStatement keyValue = DynamoDBStatementDescriptor.lookup(statement.statement()).keyValue;
+        if (keyValue == null || !statement.hasParameters()) return null;
+        return keyValue.itemKey(sharedClient.cachedKeySchema(keyValue.table), statement.parameters());
+    }
+
+    /**
+     * @return The table a batch statement writes to, or null if it can't be told from the statement
+     */
+    static String statementTable(BatchStatementRequest statement) {
+        return DynamoDBStatementDescriptor.lookup(statement.statement()).table;
     }
 
     @Override
@@ -117,9 +287,9 @@ public class DynamoDBIoSession extends AbstractIoSession {
     @Override
     public void abort() {
         log.debug("Aborting DynamoDB session");
-        if (batchStatementRequests!=null) {
-            batchStatementRequests.clear();
-        }
+        // Batches already sent can't be undone
+        batchPipeline.discard();
+        batchWritePipeline.discard();
         if (transactionStatements != null) {
             transactionStatements.clear();
         }
@@ -136,11 +306,197 @@ public class DynamoDBIoSession extends AbstractIoSession {
         return IoSessionCompartment.SHARED;
     }
 
-    private void executeBatch() {
-        log.debug("Executing batch");
-        BatchExecuteStatementRequest request = BatchExecuteStatementRequest.builder().statements(batchStatementRequests).build();
-        batchStatementRequests.clear();
-        dbClient.batchExecuteStatement(request);
+    private CompletableFuture<DynamoDBBatchPipeline.Outcome<BatchStatementRequest>> sendBatch(List<BatchStatementRequest> statements) {
+        BatchExecuteStatementRequest request = BatchExecuteStatementRequest.builder().statements(statements).build();
+        return sendInBackground(request, DynamoDbClient::batchExecuteStatement, DynamoDbAsyncClient::batchExecuteStatement)
+                .thenApply(response -> DynamoDBBatchPipeline.outcomeOf(statements, response));
+    }
+
+    private CompletableFuture<DynamoDBBatchPipeline.Outcome<BatchWrite>> sendBatchWrite(List<BatchWrite> writes) {
+        Map<String, List<WriteRequest>> requestItems = new LinkedHashMap<>();
+        writes.forEach(write -> requestItems.computeIfAbsent(write.table, table -> new ArrayList<>()).add(write.request));
+        BatchWriteItemRequest request = BatchWriteItemRequest.builder().requestItems(requestItems).build();
+        return sendInBackground(request, DynamoDbClient::batchWriteItem, DynamoDbAsyncClient::batchWriteItem).thenApply(response -> {
+            List<BatchWrite> retry = new ArrayList<>();
+            if (response.hasUnprocessedItems()) {
+                response.unprocessedItems().forEach((table, requests) ->
+                        requests.forEach(writeRequest -> retry.add(new BatchWrite(table, writeRequest, null))));
+            }
+            // Items are left unprocessed when the throughput of their table is exceeded
+            return new DynamoDBBatchPipeline.Outcome<>(retry, !retry.isEmpty(), Collections.emptyList());
+        });
+    }
+
+    /**
+     * Sends a request without blocking the caller: through the async client in async mode,
+     * otherwise through the blocking client on the interface's thread pool
+     */
+    private <R extends SdkRequest, S> CompletableFuture<S> sendInBackground(R request, BiFunction<DynamoDbClient, R, S> sync,
+                                                          BiFunction<DynamoDbAsyncClient, R, CompletableFuture<S>> async) {
+        if (asyncMode) {
+            return sharedClient.sendAsync(request, async);
+        }
+        DynamoDbClient client = dbClient;
+        return CompletableFuture.supplyAsync(() -> sync.apply(client, request), sharedClient.executor());
+    }
+
+    /**
+     * Sends a request through the async client, or through the blocking client in the caller's thread
+     */
+    private <R extends SdkRequest, S> CompletableFuture<S> send(boolean async, R request, BiFunction<DynamoDbClient, R, S> sync,
+                                             BiFunction<DynamoDbAsyncClient, R, CompletableFuture<S>> asyncCall) {
+        if (async) {
+            return sharedClient.sendAsync(request, asyncCall);
+        }
+        return CompletableFuture.completedFuture(sync.apply(dbClient, request));
+    }
+
+    private ExecuteStatementResponse executeStatement(ExecuteStatementRequest request) {
+        if (asyncMode) {
+            return join(sharedClient.sendAsync(request, DynamoDbAsyncClient::executeStatement));
+        }
+        return dbClient.executeStatement(request);
+    }
+
+    private QueryResponse query(QueryRequest request) {
+        if (asyncMode) {
+            return join(sharedClient.sendAsync(request, DynamoDbAsyncClient::query));
+        }
+        return dbClient.query(request);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a whole table with a parallel Scan, see {@link DynamoDBParallelScan}
+     * @param table The table name
+     * @param segments The number of segments to split the table into, or null to derive it from the table size
+     * @param limit The maximum number of rows to read, or null to read the whole table
+     * @return The rows of the table, in no particular order
+     */
+    public IoCommand.Result parallelScan(String table, Integer segments, Integer limit) {
+        return parallelScan(table, segments, limit, null);
+    }
+
+    /**
+     * @param items Given each raw item as it's read, before it's translated to a row, or null
+     * @see #parallelScan(String, Integer, Integer)
+     */
+    IoCommand.Result parallelScan(String table, Integer segments, Integer limit, Consumer<Map<String, AttributeValue>> items) {
+        int totalSegments = segments != null ? segments : segmentsFor(sharedClient.describeTable(table));
+        return new DynamoDBParallelScan(dbClient, table, totalSegments, parallelScanWorkers, limit, rowTranslator(items));
+    }
+
+    /**
+     * Samples a table with a parallel Scan of a slice of SAMPLE_SLICE_ITEMS items from each of its segments,
+     * in a random order of the segments, see {@link DynamoDBParallelScan}
+     * @param table The table name
+     * @param sampleSize The number of rows to sample
+     * @return The sampled rows, in no particular order
+     */
+    public IoCommand.Result sampleScan(String table, int sampleSize) {
+        return sampleScan(table, sampleSize, null);
+    }
+
+    /**
+     * @param items Given each raw item as it's read, before it's translated to a row, or null
+     * @see #sampleScan(String, int)
+     */
+    IoCommand.Result sampleScan(String table, int sampleSize, Consumer<Map<String, AttributeValue>> items) {
+        return sample(table, sampleSize, 0, rowTranslator(items));
+    }
+
+    private DynamoDBParallelScan sample(String table, int sampleSize, double capacityBudget,
+                                        Function<Map<String, AttributeValue>, IoCommand.Row> translator) {
+        TableDescription description = sharedClient.describeTable(table);
+        long itemCount = description.itemCount() == null ? 0 : description.itemCount();
+        if (sampleSliceItems < 1 || itemCount <= sampleSize) {
+            // The sample is (as far as the item count tells) the whole table, which is cheaper to read in large segments
+            return new DynamoDBParallelScan(dbClient, table, segmentsFor(description), parallelScanWorkers, sampleSize,
+                    capacityBudget, translator);
+        }
+        // Segments of about a slice each, so that the sample is spread over the table. The item count is only
+        // refreshed every 6 hours by AWS, so a segment may hold fewer items, in which case more segments are read
+        int totalSegments = DynamoDBParallelScan.sampleSegmentsFor(itemCount, sampleSize, sampleSliceItems);
+        return new DynamoDBParallelScan(dbClient, table, totalSegments, parallelScanWorkers, sampleSize,
+                capacityBudget, sampleSliceItems, translator);
+    }
+
+    private int segmentsFor(TableDescription description) {
+        Long tableSizeBytes = description.tableSizeBytes();
+        return DynamoDBParallelScan.segmentsFor(tableSizeBytes == null ? 0 : tableSizeBytes, parallelScanSegmentBytes);
+    }
+
+    private Function<Map<String, AttributeValue>, IoCommand.Row> rowTranslator(Consumer<Map<String, AttributeValue>> items) {
+        DynamoDBRowTranslator translator = rowTranslator();
+        return items == null ? translator : item -> {
+            items.accept(item);
+            return translator.apply(item);
+        };
+    }
+
+    /**
+     * Infers the attributes of a table from a sample of its items, see {@link #sampleScan(String, int)},
+     * of at most SCHEMA_INFERENCE_SAMPLE_SIZE items and SCHEMA_INFERENCE_CAPACITY read capacity units
+     * @param table The table name
+     * @return The statistics of the sampled attributes, or null if schema inference is disabled
+     */
+    public DynamoDBSchemaInference inferSchema(String table) {
+        if (!schemaInference || schemaInferenceSampleSize < 1) return null;
+        DynamoDBSchemaInference inference = new DynamoDBSchemaInference(schemaInferenceMaxAttributes);
+        // The items are only folded into the statistics, they aren't translated to rows
+        try (DynamoDBParallelScan scan = sample(table, schemaInferenceSampleSize, schemaInferenceCapacity, item -> {
+            inference.add(item);
+            return null;
+        })) {
+            Iterator<IoCommand.Row> items = scan.iterator();
+            while (items.hasNext()) items.next();
+        }
+        return inference;
+    }
+
+    /**
+     * @param table The table name
+     * @return The description of the table, cached by the interface, see {@link SharedClient#describeTable(String)}
+     */
+    public TableDescription describeTable(String table) {
+        return sharedClient.describeTable(table);
+    }
+
+    /**
+     * @param table The table name
+     * @return The description of the table, read in the background unless it's cached
+     */
+    public CompletableFuture<TableDescription> describeTableAsync(String table) {
+        return sharedClient.describeTableAsync(table);
+    }
+
+    /**
+     * @return A translator of items to rows, with the decoding settings of the session
+     */
+    DynamoDBRowTranslator rowTranslator() {
+        return new DynamoDBRowTranslator(lazyDecoding, numberMode, binaryMode);
+    }
+
+    /**
+     * @return The on-disk cache of table snapshots, or null if snapshots aren't cached
+     */
+    public DynamoDBSnapshotCache snapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * @return How the number attributes of result rows are decoded
+     */
+    public DynamoDBNumberMode numberMode() {
+        return numberMode;
     }
 
     @Override
@@ -149,72 +505,210 @@ public class DynamoDBIoSession extends AbstractIoSession {
         return (T) new DynamoDbMetadata(interfaceIdentifier, this, dbClient, params);
     }
 
-    private abstract class AbstractDynamoDBStatement implements IoCommand.Statement {
+    private abstract class AbstractDynamoDBStatement implements DynamoDBAsyncStatement {
         private final Log log = Log.a(this.getClass());
-        protected Integer limit;
-
-        IoCommand.Result execute(String command, List<AttributeValue> parameters) {
-            log.debug("Executing DynamoDb command={}, params={}", command, parameters);
-            if (!inTransaction) {
-                try (ProcessCommandWithLimit processCommandWithLimit = new ProcessCommandWithLimit().process(command, parameters)) {
-                    this.limit = processCommandWithLimit.limit;
-                    ExecuteStatementRequest.Builder requestBuilder = ExecuteStatementRequest.builder()
-                            .statement(processCommandWithLimit.commandWithoutLimit)
-                            .limit(limit);
-                    if (!Util.isEmpty(processCommandWithLimit.paramsWithoutLimit)) {
-                        requestBuilder.parameters(processCommandWithLimit.paramsWithoutLimit);
-                    }
-                    ExecuteStatementResponse executeStatementResponse = dbClient.executeStatement(requestBuilder.build());
-                    if (limit != null) limit = limit - executeStatementResponse.items().size();
-                    return new DynamoDBResult(
-                            executeStatementResponse,
-                            processCommandWithLimit.commandWithoutLimit,
-                            processCommandWithLimit.paramsWithoutLimit,
-                            limit);
+
+        IoCommand.Result execute(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters) {
+            log.debug("Executing DynamoDb command={}, params={}", statement.command, parameters);
+            if (!inTransaction && isWrittenBehind(statement)) {
+                enqueue(statement, parameters, writeBehind::add, writeBehind::add);
+                return new IoSimpleResultSet(-1);
+            } else if (!inTransaction) {
+                IoCommand.Result scan = parallelScanOf(statement);
+                if (scan != null) return scan;
+                CompletableFuture<IoCommand.Result> keyValue = executeKeyValue(statement, parameters, asyncMode);
+                if (keyValue != null) return join(keyValue);
+                if (asyncMode) {
+                    return join(executeAsync(statement, parameters));
                 }
+                List<AttributeValue> params = statement.parameters(parameters);
+                Integer limit = statement.limit(parameters);
+                ExecuteStatementResponse executeStatementResponse = dbClient.executeStatement(request(statement, params, limit));
+                return result(executeStatementResponse, statement, params, limit);
             } else {
-                if (command!=null && command.toLowerCase().startsWith("select")) {
-                    throw new UnsupportedOperationException("Select statements in transactions are unsupported!");
-                }
-                ParameterizedStatement parameterizedStatement = ParameterizedStatement.builder().statement(command)
-                        .parameters(parameters).build();
-                synchronized (transactionStatementsLock) {
-                    if (transactionStatements == null) {
-                        transactionStatements = Collections.synchronizedList(new ArrayList<>());
-                    }
-                }
-                transactionStatements.add(parameterizedStatement);
+                addToTransaction(statement, parameters);
                 return new IoSimpleResultSet(-1);
             }
         }
 
-        void batch(String command, List<AttributeValue> parameters) {
+        CompletableFuture<IoCommand.Result> executeAsync(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters) {
+            log.debug("Executing DynamoDb command asynchronously command={}, params={}", statement.command, parameters);
+            if (!inTransaction && isWrittenBehind(statement)) {
+                enqueue(statement, parameters, writeBehind::add, writeBehind::add);
+                return CompletableFuture.completedFuture(new IoSimpleResultSet(-1));
+            } else if (!inTransaction) {
+                IoCommand.Result scan = parallelScanOf(statement);
+                if (scan != null) return CompletableFuture.completedFuture(scan);
+                CompletableFuture<IoCommand.Result> keyValue = executeKeyValue(statement, parameters, true);
+                if (keyValue != null) return keyValue;
+                List<AttributeValue> params = statement.parameters(parameters);
+                Integer limit = statement.limit(parameters);
+                return sharedClient.sendAsync(request(statement, params, limit), DynamoDbAsyncClient::executeStatement)
+                        .thenApply(executeStatementResponse -> result(executeStatementResponse, statement, params, limit));
+            } else {
+                addToTransaction(statement, parameters);
+                return CompletableFuture.completedFuture(new IoSimpleResultSet(-1));
+            }
+        }
+
+        Publisher<IoCommand.Row> publish(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters) {
+            if (inTransaction) {
+                throw new UnsupportedOperationException("Publishing statements in transactions is unsupported!");
+            }
+            return new DynamoDBRowPublisher(request -> sharedClient.sendAsync(request, DynamoDbAsyncClient::executeStatement),
+                    statement.commandWithoutLimit,
+                    statement.parameters(parameters),
+                    statement.limit(parameters),
+                    new DynamoDBRowTranslator(lazyDecoding, numberMode, binaryMode));
+        }
+
+        /**
+         * @return A parallel scan of the table if the command reads a whole table,
+         * and either it's hinted or the session is in parallel scan mode; otherwise null
+         */
+        private IoCommand.Result parallelScanOf(DynamoDBStatementDescriptor statement) {
+            if (!statement.parallelScanHint && !parallelScanMode) return null;
+            if (statement.fullTableSelect == null) {
+                if (statement.parallelScanHint) log.debug("Ignoring parallel scan hint, not a full table select: {}", statement.command);
+                return null;
+            }
+            // A full table select has no parameters, other than its limit
+            return parallelScan(statement.fullTableSelect, statement.parallelScanSegments, statement.limit(null));
+        }
+
+        /**
+         * @return The result of the command executed with the native key-value API,
+         * or null if it must be executed with PartiQL, see {@link DynamoDBKeyValueStatement}
+         */
+        private CompletableFuture<IoCommand.Result> executeKeyValue(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters, boolean async) {
+            DynamoDBKeyValueStatement keyValue = statement.keyValue;
+            DynamoDBLookupCoalescer lookupCoalescer = sharedClient.lookupCoalescer();
+            if (keyValue == null || (!nativeKeyValue && lookupCoalescer == null)) return null;
+            List<AttributeValue> params = statement.parameters(parameters);
+            KeySchema keySchema = sharedClient.keySchema(keyValue.table);
+            DynamoDBKeyValueStatement.Operation operation = keyValue.operation(keySchema, params);
+            if (operation == null) return null;
+            if (operation == DynamoDBKeyValueStatement.Operation.GET_ITEM && lookupCoalescer != null && keyValue.selectsKey(keySchema)) {
+                return lookupCoalescer.lookup(keyValue, keySchema, keyValue.key(params))
+                        .thenApply(item -> new DynamoDBItemsResult(item == null ?
+                                Collections.emptyList()
+                                : Collections.singletonList(item), null, null));
+            }
+            // Only point lookups are executed natively when just lookup coalescing is on
+            if (!nativeKeyValue) return null;
+            switch (operation) {
+                case GET_ITEM:
+                    return send(async, keyValue.getItem(params), DynamoDbClient::getItem, DynamoDbAsyncClient::getItem)
+                            .thenApply(response -> new DynamoDBItemsResult(response.hasItem() && !response.item().isEmpty() ?
+                                    Collections.singletonList(response.item())
+                                    : Collections.emptyList(), null, null));
+                case QUERY:
+                    QueryRequest request = keyValue.query(params, statement.limit(parameters));
+                    return send(async, request, DynamoDbClient::query, DynamoDbAsyncClient::query)
+                            .thenApply(response -> new DynamoDBItemsResult(response.items(), request, response.lastEvaluatedKey()));
+                case PUT_ITEM:
+                    return send(async, keyValue.putItem(keySchema, params), DynamoDbClient::putItem, DynamoDbAsyncClient::putItem)
+                            .thenApply(response -> new IoSimpleResultSet(-1));
+                case DELETE_ITEM:
+                    return send(async, keyValue.deleteItem(params), DynamoDbClient::deleteItem, DynamoDbAsyncClient::deleteItem)
+                            .thenApply(response -> new IoSimpleResultSet(-1));
+                default:
+                    return null;
+            }
+        }
+
+        private ExecuteStatementRequest request(DynamoDBStatementDescriptor statement, List<AttributeValue> params, Integer limit) {
+            ExecuteStatementRequest.Builder requestBuilder = ExecuteStatementRequest.builder()
+                    .statement(statement.commandWithoutLimit)
+                    .limit(limit);
+            if (!Util.isEmpty(params)) {
+                requestBuilder.parameters(params);
+            }
+            return requestBuilder.build();
+        }
+
+        private IoCommand.Result result(ExecuteStatementResponse executeStatementResponse, DynamoDBStatementDescriptor statement,
+                                        List<AttributeValue> params, Integer limit) {
+            if (limit != null) limit = limit - executeStatementResponse.items().size();
+            return new DynamoDBResult(executeStatementResponse, statement.commandWithoutLimit, params, limit);
+        }
+
+        private void addToTransaction(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters) {
+            if (statement.kind == DynamoDBStatementDescriptor.Kind.SELECT) {
+                throw new UnsupportedOperationException("Select statements in transactions are unsupported!");
+            }
+            ParameterizedStatement parameterizedStatement = ParameterizedStatement.builder().statement(statement.command)
+                    .parameters(binaryMode.detached(parameters)).build();
+            synchronized (transactionStatementsLock) {
+                if (transactionStatements == null) {
+                    transactionStatements = Collections.synchronizedList(new ArrayList<>());
+                }
+            }
+            transactionStatements.add(parameterizedStatement);
+        }
+
+        void batch(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters) {
             log.debug("In statement batch()");
-            if (!inTransaction) {
+            if (!inTransaction && writeBehind == null) {
                 throw new UnsupportedOperationException("Batch mode outside of a transaction is not allowed!");
             }
-            if (command!=null && command.toLowerCase().startsWith("select")) {
+            if (statement.kind == DynamoDBStatementDescriptor.Kind.SELECT) {
                 throw new UnsupportedOperationException("Batch select statements are unsupported!");
             }
-            synchronized (batchStatementsLock) {
-                if (batchStatementRequests == null) {
-                    batchStatementRequests = Collections.synchronizedList(new ArrayList<>());
-                }
+            if (inTransaction) {
+                enqueue(statement, parameters, this::addBatchStatement, this::addBatchWrite);
+            } else {
+                enqueue(statement, parameters, writeBehind::add, writeBehind::add);
             }
-            BatchStatementRequest statementRequest = BatchStatementRequest.builder().statement(command).parameters(parameters).build();
-            batchStatementRequests.add(statementRequest);
-            synchronized (batchStatementsLock) {
-                if (batchStatementRequests.size() >= recordsInBatch) {
-                    executeBatch();
+        }
+
+        /**
+         * @return Whether the command is a write to send in the background, outside of a transaction
+         */
+        private boolean isWrittenBehind(DynamoDBStatementDescriptor statement) {
+            return writeBehind != null && (statement.kind == DynamoDBStatementDescriptor.Kind.INSERT
+                    || statement.kind == DynamoDBStatementDescriptor.Kind.UPDATE
+                    || statement.kind == DynamoDBStatementDescriptor.Kind.DELETE);
+        }
+
+        private void addBatchStatement(BatchStatementRequest statement) {
+            // A buffered native write of the same item is sent first, so the statement is applied after it
+            Object key = statementItemKey(statement);
+            batchWritePipeline.flushBefore(key, statementTable(statement));
+            batchPipeline.add(statement, key);
+        }
+
+        private void addBatchWrite(BatchWrite write) {
+            batchPipeline.flushBefore(write.itemKey(), write.table);
+            batchWritePipeline.add(write);
+        }
+
+        /**
+         * Adds a write to a batch: a native write if it's simple enough (see NATIVE_KEY_VALUE), otherwise a PartiQL statement
+         */
+        private void enqueue(DynamoDBStatementDescriptor statement, List<AttributeValue> parameters,
+                             Consumer<BatchStatementRequest> statements, Consumer<BatchWrite> writes) {
+            // The write is sent after the statement returns, when the caller may already reuse its binary values
+            parameters = binaryMode.detached(parameters);
+            DynamoDBKeyValueStatement keyValue = statement.keyValue;
+            if (nativeKeyValue && keyValue != null) {
+                // Written with PartiQL until the key schema of the table is described
+                KeySchema keySchema = sharedClient.cachedKeySchema(keyValue.table);
+                if (keyValue.batchWritable(keySchema, parameters)) {
+                    writes.accept(keyValue.batchWrite(keySchema, parameters));
+                    return;
                 }
             }
+            BatchStatementRequest statementRequest = BatchStatementRequest.builder().statement(statement.command).parameters(parameters).build();
+            statements.accept(statementRequest);
         }
 
         private class DynamoDBResult implements IoCommand.Result {
             private final ExecuteStatementResponse executeStatementResponse;
             private final String command;
             private final List<AttributeValue> params;
-            private Integer limit;
+            private final Integer limit;
+            private final List<DynamoDBIterator> iterators = new ArrayList<>();
 
             public DynamoDBResult(ExecuteStatementResponse executeStatementResponse, String command, List<AttributeValue> params, Integer limit) {
                 this.executeStatementResponse = executeStatementResponse;
@@ -236,14 +730,50 @@ public class DynamoDBIoSession extends AbstractIoSession {
 
             @Override
             public Iterator<IoCommand.Row> iterator() {
-                return new DynamoDBIterator(executeStatementResponse);
+                DynamoDBIterator iterator = new DynamoDBIterator(executeStatementResponse);
+                synchronized (iterators) {
+                    iterators.add(iterator);
+                }
+                return iterator;
+            }
+
+            @Override
+            public void close() {
+                synchronized (iterators) {
+                    iterators.forEach(DynamoDBIterator::cancelPrefetch);
+                    iterators.clear();
+                }
+            }
+
+            private ExecuteStatementRequest nextRequest(String nextToken, Integer limit) {
+                ExecuteStatementRequest.Builder requestBuilder = ExecuteStatementRequest.builder()
+                        .statement(command)
+                        .nextToken(nextToken)
+                        .limit(limit);
+                if (!Util.isEmpty(params)) {
+                    requestBuilder.parameters(params);
+                }
+                return requestBuilder.build();
             }
 
             private class DynamoDBIterator implements Iterator<IoCommand.Row> {
                 private ExecuteStatementResponse response;
                 private Iterator<Map<String, AttributeValue>> responseIterator;
+                private Integer limit = DynamoDBResult.this.limit;
+                private final DynamoDBRowTranslator translator = new DynamoDBRowTranslator(lazyDecoding, numberMode, binaryMode);
+
+                // Pages requested ahead of the consumer, in order. A page completed with null ends the read-ahead chain
+                // (last page, limit reached or memory cap exceeded), the pages after it are then fetched on demand.
+                // Concurrent, since the result may be closed from another thread than the consumer's.
+                private final Deque<CompletableFuture<PrefetchedPage>> prefetchedPages = new ConcurrentLinkedDeque<>();
+                private final AtomicLong prefetchedBytes = new AtomicLong();
+                private volatile boolean prefetchCancelled;
+                // The size of the page being consumed, the expected size of the next page, or -1 if it's unknown
+                private long responseBytes = -1;
+
                 public DynamoDBIterator(ExecuteStatementResponse response) {
                     this.setResponse(response);
+                    this.prefetch();
                 }
 
                 @Override
@@ -254,34 +784,26 @@ public class DynamoDBIoSession extends AbstractIoSession {
 
                 @Override
                 public IoCommand.Row next() {
-                    if (responseIterator.hasNext()) return this.translate(this.responseIterator.next());
+                    if (responseIterator.hasNext()) return translator.apply(this.responseIterator.next());
                     if (this.shouldFetchNext()) {
-                        ExecuteStatementRequest nextRequest = ExecuteStatementRequest.builder()
-                                .statement(command)
-                                .parameters(params)
-                                .nextToken(response.nextToken())
-                                .limit(limit)
-                                .build();
-                        this.setResponse(dbClient.executeStatement(nextRequest));
-                        if (limit != null) {
-                            limit = limit - this.response.items().size();
+                        PrefetchedPage page = this.takePrefetchedPage();
+                        if (page != null) {
+                            this.setResponse(page.response);
+                            responseBytes = page.bytes;
+                            limit = page.limit;
+                        } else {
+                            this.setResponse(executeStatement(nextRequest(response.nextToken(), limit)));
+                            responseBytes = -1;
+                            if (limit != null) {
+                                limit = limit - this.response.items().size();
+                            }
                         }
+                        this.prefetch();
                         return this.next();
                     }
                     return null;
                 }
 
-                private IoCommand.Row translate(Map<String, AttributeValue> item) {
-                    Map<String, Object> parsedItem = new LinkedHashMap<>();
-                    Map<String, Integer> keys = new LinkedHashMap<>();
-                    item.forEach((key, value) -> parsedItem.put(key, DynamoDBParseUtils.fromAttributeValue(value)));
-                    Iterator<String> keySetItr = parsedItem.keySet().iterator();
-                    for (int i = 0; i < parsedItem.keySet().size(); i++) {
-                        keys.put(keySetItr.next(), i);
-                    }
-                    return new IoSimpleRow(parsedItem.values().toArray(), keys);
-                }
-
                 private void setResponse(ExecuteStatementResponse response) {
                    this.response = response;
                    this.responseIterator = response.hasItems() ?
@@ -292,26 +814,140 @@ public class DynamoDBIoSession extends AbstractIoSession {
                 private boolean shouldFetchNext() {
                     return response.nextToken() != null && (limit == null || limit > 0);
                 }
+
+                private void prefetch() {
+                    if (prefetchPages < 1 || prefetchCancelled) return;
+                    while (prefetchedPages.size() < prefetchPages) {
+                        CompletableFuture<PrefetchedPage> previous = prefetchedPages.peekLast();
+                        CompletableFuture<PrefetchedPage> page;
+                        if (previous == null) {
+                            if (!shouldFetchNext()) return;
+                            if (responseBytes < 0) responseBytes = PrefetchedPage.sizeOf(response);
+                            // The next page is expected to be about as large as the current one
+                            if (prefetchedBytes.get() + responseBytes > prefetchMaxBytes) return;
+                            page = fetchPage(response.nextToken(), limit);
+                        } else {
+                            // The previous page is already counted in the prefetched bytes
+                            page = previous.thenCompose(previousPage -> previousPage == null
+                                    || !previousPage.hasNext()
+                                    || prefetchedBytes.get() >= prefetchMaxBytes
+                                    || prefetchCancelled ?
+                                    CompletableFuture.completedFuture(null)
+                                    : fetchPage(previousPage.response.nextToken(), previousPage.limit));
+                        }
+                        prefetchedPages.addLast(page);
+                        // Closed while the page was requested
+                        if (prefetchCancelled) page.cancel(false);
+                    }
+                }
+
+                private CompletableFuture<PrefetchedPage> fetchPage(String nextToken, Integer limit) {
+                    // In sync mode, pages are fetched on the interface's thread pool, without starting the async client
+                    return sendInBackground(nextRequest(nextToken, limit), DynamoDbClient::executeStatement,
+                            DynamoDbAsyncClient::executeStatement).thenApply(nextResponse -> {
+                        PrefetchedPage page = new PrefetchedPage(nextResponse,
+                                limit == null ? null : limit - nextResponse.items().size());
+                        prefetchedBytes.addAndGet(page.bytes);
+                        return page;
+                    });
+                }
+
+                private PrefetchedPage takePrefetchedPage() {
+                    CompletableFuture<PrefetchedPage> next = prefetchedPages.pollFirst();
+                    if (next == null) return null;
+                    PrefetchedPage page = join(next);
+                    if (page == null) {
+                        // The read-ahead chain ended here, the rest of the queue is completed with null as well
+                        prefetchedPages.clear();
+                        return null;
+                    }
+                    prefetchedBytes.addAndGet(-page.bytes);
+                    return page;
+                }
+
+                private void cancelPrefetch() {
+                    prefetchCancelled = true;
+                    prefetchedPages.forEach(page -> page.cancel(false));
+                }
             }
         }
     }
 
+    /**
+     * The items of a GetItem or a Query. The next pages of a Query are fetched as the rows are consumed.
+     */
+    private class DynamoDBItemsResult implements IoCommand.Result {
+        private final List<Map<String, AttributeValue>> items;
+        private final QueryRequest request;
+        private final Map<String, AttributeValue> lastEvaluatedKey;
+
+        private DynamoDBItemsResult(List<Map<String, AttributeValue>> items, QueryRequest request, Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.request = request;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+
+        @Override
+        public String[] labels() {
+            // Each item may have different attributes/fields
+            return new String[]{};
+        }
+
+        @Override
+        public Iterator<IoCommand.Row> iterator() {
+            return new Iterator<IoCommand.Row>() {
+                private Iterator<Map<String, AttributeValue>> page = items.iterator();
+                private Map<String, AttributeValue> lastKey = lastEvaluatedKey;
+                private Integer limit = request == null || request.limit() == null ? null : request.limit() - items.size();
+                private final DynamoDBRowTranslator translator = new DynamoDBRowTranslator(lazyDecoding, numberMode, binaryMode);
+
+                @Override
+                public boolean hasNext() {
+                    while (!page.hasNext()) {
+                        if (request == null || lastKey == null || lastKey.isEmpty() || (limit != null && limit <= 0)) return false;
+                        QueryResponse response = query(request.toBuilder().exclusiveStartKey(lastKey).limit(limit).build());
+                        page = response.items().iterator();
+                        lastKey = response.lastEvaluatedKey();
+                        if (limit != null) limit = limit - response.items().size();
+                    }
+                    return true;
+                }
+
+                @Override
+                public IoCommand.Row next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return translator.apply(page.next());
+                }
+            };
+        }
+    }
+
     private class DynamoDBPreparedStatement extends DynamoDBIoSession.AbstractDynamoDBStatement {
-        private final String command;
+        private final DynamoDBStatementDescriptor command;
 
         public DynamoDBPreparedStatement(String command) {
             super();
-            this.command = command;
+            this.command = DynamoDBStatementDescriptor.of(command);
         }
 
         @Override
         public IoCommand.Result execute(Object... objects) {
-            return super.execute(command, toAttributeValueList(objects));
+            return super.execute(command, toAttributeValueList(binaryMode, objects));
+        }
+
+        @Override
+        public CompletableFuture<IoCommand.Result> executeAsync(Object... objects) {
+            return super.executeAsync(command, toAttributeValueList(binaryMode, objects));
+        }
+
+        @Override
+        public Publisher<IoCommand.Row> publish(Object... objects) {
+            return super.publish(command, toAttributeValueList(binaryMode, objects));
         }
 
         @Override
         public void batch(Object... params) {
-            super.batch(command, toAttributeValueList(params));
+            super.batch(command, toAttributeValueList(binaryMode, params));
         }
     }
 
@@ -322,7 +958,25 @@ public class DynamoDBIoSession extends AbstractIoSession {
                 throw new IllegalArgumentException("A Statement must have exactly one parameter which is the PartiQL command");
             }
             String command = (String) objects[0];
-            return super.execute(command, null);
+            return super.execute(DynamoDBStatementDescriptor.of(command), null);
+        }
+
+        @Override
+        public CompletableFuture<IoCommand.Result> executeAsync(Object... objects) {
+            if (objects.length != 1) {
+                throw new IllegalArgumentException("A Statement must have exactly one parameter which is the PartiQL command");
+            }
+            String command = (String) objects[0];
+            return super.executeAsync(DynamoDBStatementDescriptor.of(command), null);
+        }
+
+        @Override
+        public Publisher<IoCommand.Row> publish(Object... objects) {
+            if (objects.length != 1) {
+                throw new IllegalArgumentException("A Statement must have exactly one parameter which is the PartiQL command");
+            }
+            String command = (String) objects[0];
+            return super.publish(DynamoDBStatementDescriptor.of(command), null);
         }
 
         @Override
@@ -331,38 +985,33 @@ public class DynamoDBIoSession extends AbstractIoSession {
                 throw new IllegalArgumentException("A Statement must have exactly one parameter which is the command");
             }
             String command = (String) params[0];
-            super.batch(command, null);
-        }
-    }
-
-    private static class ProcessCommandWithLimit implements AutoCloseable {
-        private String commandWithoutLimit;
-        private Integer limit;
-        private List<AttributeValue> paramsWithoutLimit;
-        private final Pattern pattern;
-        ProcessCommandWithLimit() {
-            this.pattern = Pattern.compile("(.*)\\blimit\\b\\s*(\\d+|\\?)\\s*$", Pattern.CASE_INSENSITIVE);
-        }
-        private ProcessCommandWithLimit process(String origStatement, List<AttributeValue> parameters) {
-            Matcher matcher = pattern.matcher(origStatement);
-            this.paramsWithoutLimit = new LinkedList<>(parameters);
-            this.commandWithoutLimit = origStatement;
-            if (matcher.find()) {
-                String beforeLimit = matcher.group(1);
-                String numOrQuestionMark = matcher.group(2);
-                String limitNum = numOrQuestionMark;
-                if (numOrQuestionMark.equals("?")) {
-                    limitNum = paramsWithoutLimit.remove(parameters.size()-1).n();
+            super.batch(DynamoDBStatementDescriptor.of(command), null);
+        }
+    }
+
+    private static class PrefetchedPage {
+        private final ExecuteStatementResponse response;
+        private final Integer limit;
+        private final long bytes;
+
+        private PrefetchedPage(ExecuteStatementResponse response, Integer limit) {
+            this.response = response;
+            this.limit = limit;
+            this.bytes = sizeOf(response);
+        }
+
+        private static long sizeOf(ExecuteStatementResponse response) {
+            long size = 0;
+            if (response.hasItems()) {
+                for (Map<String, AttributeValue> item : response.items()) {
+                    size += DynamoDBParseUtils.estimateSize(item);
                 }
-                this.limit = Integer.parseInt(limitNum);
-                this.commandWithoutLimit=beforeLimit;
             }
-            return this;
+            return size;
         }
 
-        @Override
-        public void close() {
-            if (!Util.isEmpty(this.paramsWithoutLimit)) this.paramsWithoutLimit.clear();
+        private boolean hasNext() {
+            return response.nextToken() != null && (limit == null || limit > 0);
         }
     }
 
@@ -0,0 +1,419 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A PartiQL command simple enough to be executed with the native key-value API instead of PartiQL, e.g.
+ * <ul>
+ *     <li><code>SELECT * FROM "table" WHERE "pk" = ? [AND "sk" = ?]</code>, executed as GetItem or Query</li>
+ *     <li><code>INSERT INTO "table" VALUE {'pk': ?, 'sk': ?, 'a': ?}</code>, executed as PutItem</li>
+ *     <li><code>DELETE FROM "table" WHERE "pk" = ? [AND "sk" = ?]</code>, executed as DeleteItem</li>
+ * </ul>
+ * <code>UPDATE "table" SET "a" = ? [SET "b" = ?] WHERE "pk" = ? [AND "sk" = ?]</code> is parsed as well, to tell
+ * the item it writes, but is always executed with PartiQL.
+ * <p>
+ * Only the shape of the command is parsed here; whether it can actually be executed natively depends on
+ * the key schema of the table, see {@link #operation(KeySchema, List)}. Any other command is executed with PartiQL.
+ */
+final class DynamoDBKeyValueStatement {
+    private static final String NAME = "(?:\"([^\"]+)\"|([A-Za-z_][\\w\\-]*))";
+    private static final Pattern NAME_PATTERN = Pattern.compile("\\s*" + NAME + "\\s*");
+    private static final Pattern SELECT = Pattern.compile("^\\s*select\\s+(.+?)\\s+from\\s+(\\S+)\\s+where\\s+(.+?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DELETE = Pattern.compile("^\\s*delete\\s+from\\s+(\\S+)\\s+where\\s+(.+?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern INSERT = Pattern.compile("^\\s*insert\\s+into\\s+(\\S+)\\s+value\\s*\\{(.*)}\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern UPDATE = Pattern.compile("^\\s*update\\s+(\\S+)\\s+set\\s+(.+?)\\s+where\\s+(.+?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ASSIGNMENTS = Pattern.compile("\\s*,\\s*|\\s+set\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern AND = Pattern.compile("\\s+and\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONDITION = Pattern.compile("\\s*" + NAME + "\\s*=\\s*\\?\\s*");
+    private static final Pattern ENTRY = Pattern.compile("\\s*'([^']+)'\\s*:\\s*\\?\\s*");
+
+    enum Operation {
+        GET_ITEM, QUERY, PUT_ITEM, DELETE_ITEM
+    }
+
+    final DynamoDBStatementDescriptor.Kind kind;
+    final String table;
+    /**
+     * The attributes bound to the parameters of the command, in order:
+     * the WHERE attributes of a SELECT or DELETE, the item attributes of an INSERT,
+     * or the SET attributes and then the WHERE attributes of an UPDATE
+     */
+    private final List<String> attributes;
+    /**
+     * The number of SET attributes of an UPDATE, otherwise 0
+     */
+    private final int assignments;
+    /**
+     * The attributes selected, or null for all of them
+     */
+    private final List<String> projection;
+
+    private DynamoDBKeyValueStatement(DynamoDBStatementDescriptor.Kind kind, String table, List<String> attributes,
+                                      int assignments, List<String> projection) {
+        this.kind = kind;
+        this.table = table;
+        this.attributes = attributes;
+        this.assignments = assignments;
+        this.projection = projection;
+    }
+
+    /**
+     * @param kind The statement kind
+     * @param command The command, without its LIMIT
+     * @return The parsed command, or null if it must be executed with PartiQL
+     */
+    static DynamoDBKeyValueStatement parse(DynamoDBStatementDescriptor.Kind kind, String command) {
+        Matcher matcher;
+        switch (kind) {
+            case SELECT:
+                matcher = SELECT.matcher(command);
+                if (!matcher.matches()) return null;
+                List<String> projection = null;
+                if (!matcher.group(1).trim().equals("*")) {
+                    projection = new ArrayList<>();
+                    for (String attribute : matcher.group(1).split(",")) {
+                        String name = name(NAME_PATTERN, attribute);
+                        if (name == null) return null;
+                        projection.add(name);
+                    }
+                }
+                return of(kind, matcher.group(2), conditions(matcher.group(3)), 0, projection);
+            case DELETE:
+                matcher = DELETE.matcher(command);
+                if (!matcher.matches()) return null;
+                return of(kind, matcher.group(1), conditions(matcher.group(2)), 0, null);
+            case INSERT:
+                matcher = INSERT.matcher(command);
+                if (!matcher.matches()) return null;
+                List<String> entries = new ArrayList<>();
+                for (String entry : matcher.group(2).split(",")) {
+                    Matcher entryMatcher = ENTRY.matcher(entry);
+                    if (!entryMatcher.matches()) return null;
+                    entries.add(entryMatcher.group(1));
+                }
+                return of(kind, matcher.group(1), entries, 0, null);
+            case UPDATE:
+                matcher = UPDATE.matcher(command);
+                if (!matcher.matches()) return null;
+                List<String> where = conditions(matcher.group(3));
+                if (where == null) return null;
+                List<String> assigned = new ArrayList<>();
+                for (String assignment : ASSIGNMENTS.split(matcher.group(2))) {
+                    String name = name(CONDITION, assignment);
+                    if (name == null) return null;
+                    assigned.add(name);
+                }
+                int assignments = assigned.size();
+                assigned.addAll(where);
+                return of(kind, matcher.group(1), assigned, assignments, null);
+            default:
+                return null;
+        }
+    }
+
+    private static DynamoDBKeyValueStatement of(DynamoDBStatementDescriptor.Kind kind, String table, List<String> attributes,
+                                                int assignments, List<String> projection) {
+        String tableName = name(NAME_PATTERN, table);
+        if (tableName == null || attributes == null || attributes.isEmpty()
+                || new HashSet<>(attributes).size() != attributes.size()) {
+            return null;
+        }
+        return new DynamoDBKeyValueStatement(kind, tableName, attributes, assignments, projection);
+    }
+
+    private static List<String> conditions(String where) {
+        String[] conditions = AND.split(where);
+        if (conditions.length > 2) return null;
+        List<String> attributes = new ArrayList<>(conditions.length);
+        for (String condition : conditions) {
+            String name = name(CONDITION, condition);
+            if (name == null) return null;
+            attributes.add(name);
+        }
+        return attributes;
+    }
+
+    private static String name(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        if (!matcher.matches()) return null;
+        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    }
+
+    /**
+     * @param keySchema The key schema of the table, or null if it's unknown
+     * @param params The parameters of the command, without its limit parameter
+     * @return The native operation the command is executed with, or null if it must be executed with PartiQL
+     */
+    Operation operation(KeySchema keySchema, List<AttributeValue> params) {
+        if (keySchema == null || params == null || params.size() != attributes.size()) return null;
+        switch (kind) {
+            case SELECT:
+                if (keySchema.isKey(attributes)) return Operation.GET_ITEM;
+                if (keySchema.rangeKey != null && attributes.size() == 1 && attributes.get(0).equals(keySchema.hashKey)) {
+                    return Operation.QUERY;
+                }
+                return null;
+            case DELETE:
+                return keySchema.isKey(attributes) ? Operation.DELETE_ITEM : null;
+            case INSERT:
+                return attributes.contains(keySchema.hashKey)
+                        && (keySchema.rangeKey == null || attributes.contains(keySchema.rangeKey)) ?
+                        Operation.PUT_ITEM
+                        : null;
+            default:
+                return null;
+        }
+    }
+
+    GetItemRequest getItem(List<AttributeValue> params) {
+        GetItemRequest.Builder requestBuilder = GetItemRequest.builder()
+                .tableName(table)
+                .key(item(params));
+        if (projection != null) {
+            requestBuilder.projectionExpression(projectionExpression())
+                    .expressionAttributeNames(projectionNames());
+        }
+        return requestBuilder.build();
+    }
+
+    QueryRequest query(List<AttributeValue> params, Integer limit) {
+        Map<String, String> names = projection == null ? new HashMap<>() : projectionNames();
+        names.put("#k", attributes.get(0));
+        QueryRequest.Builder requestBuilder = QueryRequest.builder()
+                .tableName(table)
+                .keyConditionExpression("#k = :k")
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(Collections.singletonMap(":k", params.get(0)))
+                .limit(limit);
+        if (projection != null) {
+            requestBuilder.projectionExpression(projectionExpression());
+        }
+        return requestBuilder.build();
+    }
+
+    /**
+     * Fails if the item already exists, as a PartiQL INSERT does
+     */
+    PutItemRequest putItem(KeySchema keySchema, List<AttributeValue> params) {
+        return PutItemRequest.builder()
+                .tableName(table)
+                .item(item(params))
+                .conditionExpression("attribute_not_exists(#k)")
+                .expressionAttributeNames(Collections.singletonMap("#k", keySchema.hashKey))
+                .build();
+    }
+
+    DeleteItemRequest deleteItem(List<AttributeValue> params) {
+        return DeleteItemRequest.builder()
+                .tableName(table)
+                .key(item(params))
+                .build();
+    }
+
+    /**
+     * A batch put can't have a condition, so an INSERT is written in a batch only with PartiQL,
+     * which fails on an existing item instead of overwriting it
+     *
+     * @param keySchema The key schema of the table, or null if it's unknown
+     * @return Whether the command can be written by {@link #batchWrite} in a BatchWriteItem request: a DELETE by key
+     */
+    boolean batchWritable(KeySchema keySchema, List<AttributeValue> params) {
+        return kind == DynamoDBStatementDescriptor.Kind.DELETE && operation(keySchema, params) != null;
+    }
+
+    /**
+     * A write of a batch. Unlike {@link #putItem}, a batch put overwrites an existing item.
+     */
+    BatchWrite batchWrite(KeySchema keySchema, List<AttributeValue> params) {
+        Map<String, AttributeValue> item = item(params);
+        if (kind == DynamoDBStatementDescriptor.Kind.DELETE) {
+            return new BatchWrite(table, WriteRequest.builder().deleteRequest(DeleteRequest.builder().key(item).build()).build(), keySchema.keyOf(item));
+        }
+        return new BatchWrite(table, WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build(), keySchema.keyOf(item));
+    }
+
+    /**
+     * @param keySchema The key schema of the table, or null if it's unknown
+     * @return The item an INSERT, UPDATE or DELETE writes, as {@link BatchWrite#itemKey()},
+     * or null if it can't be told from the attributes of the command
+     */
+    Object itemKey(KeySchema keySchema, List<AttributeValue> params) {
+        if (keySchema == null || params == null || params.size() != attributes.size()) return null;
+        switch (kind) {
+            case INSERT:
+            case DELETE:
+                if (operation(keySchema, params) == null) return null;
+                break;
+            case UPDATE:
+                if (!keySchema.isKey(attributes.subList(assignments, attributes.size()))) return null;
+                break;
+            default:
+                return null;
+        }
+        return Arrays.asList(table, keySchema.keyOf(item(params)));
+    }
+
+    /**
+     * Merges an UPDATE with a later UPDATE of the same item, both with only SET assignments
+     *
+     * @return The merged UPDATE, setting the attributes of both, where the later value of an attribute set by both wins
+     */
+    BatchStatementRequest mergeUpdate(List<AttributeValue> params, DynamoDBKeyValueStatement later, List<AttributeValue> laterParams) {
+        Map<String, AttributeValue> assigned = new LinkedHashMap<>();
+        for (int i = 0; i < assignments; i++) {
+            assigned.put(attributes.get(i), params.get(i));
+        }
+        for (int i = 0; i < later.assignments; i++) {
+            assigned.put(later.attributes.get(i), laterParams.get(i));
+        }
+        StringBuilder command = new StringBuilder("UPDATE \"").append(table).append('"');
+        List<AttributeValue> merged = new ArrayList<>(assigned.size() + attributes.size() - assignments);
+        assigned.forEach((name, value) -> {
+            command.append(" SET \"").append(name).append("\" = ?");
+            merged.add(value);
+        });
+        for (int i = assignments; i < attributes.size(); i++) {
+            command.append(i == assignments ? " WHERE \"" : " AND \"").append(attributes.get(i)).append("\" = ?");
+            merged.add(params.get(i));
+        }
+        return BatchStatementRequest.builder().statement(command.toString()).parameters(merged).build();
+    }
+
+    /**
+     * @return The key of a point lookup
+     */
+    Map<String, AttributeValue> key(List<AttributeValue> params) {
+        return item(params);
+    }
+
+    /**
+     * @return Whether the key attributes are selected, so the items of a BatchGetItem can be matched to their keys
+     */
+    boolean selectsKey(KeySchema keySchema) {
+        return projection == null || (projection.contains(keySchema.hashKey)
+                && (keySchema.rangeKey == null || projection.contains(keySchema.rangeKey)));
+    }
+
+    /**
+     * @return Lookups of the same group can be fetched with the same BatchGetItem request
+     */
+    Object lookupGroup() {
+        return Arrays.asList(table, projection);
+    }
+
+    KeysAndAttributes keysAndAttributes(List<Map<String, AttributeValue>> keys) {
+        KeysAndAttributes.Builder keysBuilder = KeysAndAttributes.builder().keys(keys);
+        if (projection != null) {
+            keysBuilder.projectionExpression(projectionExpression())
+                    .expressionAttributeNames(projectionNames());
+        }
+        return keysBuilder.build();
+    }
+
+    private Map<String, AttributeValue> item(List<AttributeValue> params) {
+        Map<String, AttributeValue> item = new HashMap<>(attributes.size() * 2);
+        for (int i = 0; i < attributes.size(); i++) {
+            item.put(attributes.get(i), params.get(i));
+        }
+        return item;
+    }
+
+    private String projectionExpression() {
+        StringJoiner expression = new StringJoiner(", ");
+        for (int i = 0; i < projection.size(); i++) {
+            expression.add("#p" + i);
+        }
+        return expression.toString();
+    }
+
+    private Map<String, String> projectionNames() {
+        Map<String, String> names = new HashMap<>();
+        for (int i = 0; i < projection.size(); i++) {
+            names.put("#p" + i, projection.get(i));
+        }
+        return names;
+    }
+
+    /**
+     * The primary key attributes of a table
+     */
+    static final class KeySchema {
+        final String hashKey;
+        final String rangeKey;
+
+        private KeySchema(String hashKey, String rangeKey) {
+            this.hashKey = hashKey;
+            this.rangeKey = rangeKey;
+        }
+
+        static KeySchema of(TableDescription table) {
+            String hashKey = null;
+            String rangeKey = null;
+            for (KeySchemaElement element : table.keySchema()) {
+                if (element.keyType() == KeyType.HASH) {
+                    hashKey = element.attributeName();
+                } else if (element.keyType() == KeyType.RANGE) {
+                    rangeKey = element.attributeName();
+                }
+            }
+            return new KeySchema(hashKey, rangeKey);
+        }
+
+        /**
+         * @return The key of the item, which equals the key of the same item however its numbers are written,
+         * since DynamoDB stores 1.0 or 10.50 as 1 and 10.5
+         */
+        Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+            Map<String, AttributeValue> key = new HashMap<>(4);
+            key.put(hashKey, normalized(item.get(hashKey)));
+            if (rangeKey != null) key.put(rangeKey, normalized(item.get(rangeKey)));
+            return key;
+        }
+
+        private static AttributeValue normalized(AttributeValue value) {
+            if (value == null || value.n() == null) return value;
+            try {
+                String n = new BigDecimal(value.n()).stripTrailingZeros().toPlainString();
+                return n.equals(value.n()) ? value : AttributeValue.builder().n(n).build();
+            } catch (NumberFormatException e) {
+                // Not a number DynamoDB accepts, the request fails as is
+                return value;
+            }
+        }
+
+        private boolean isKey(List<String> attributes) {
+            if (rangeKey == null) return attributes.size() == 1 && attributes.get(0).equals(hashKey);
+            return attributes.size() == 2 && attributes.contains(hashKey) && attributes.contains(rangeKey);
+        }
+    }
+
+    /**
+     * A single write of a BatchWriteItem request
+     */
+    static final class BatchWrite {
+        final String table;
+        final WriteRequest request;
+        // The key of the item written, since a request can't write the same item twice
+        private final Map<String, AttributeValue> key;
+
+        BatchWrite(String table, WriteRequest request, Map<String, AttributeValue> key) {
+            this.table = table;
+            this.request = request;
+            this.key = key;
+        }
+
+        Object itemKey() {
+            return Arrays.asList(table, key);
+        }
+
+        @Override
+        public String toString() {
+            return (request.deleteRequest() != null ? "DELETE FROM " : "INSERT INTO ") + table + " " + key;
+        }
+    }
+}
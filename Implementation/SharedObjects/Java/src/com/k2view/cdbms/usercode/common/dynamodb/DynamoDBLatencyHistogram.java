@@ -0,0 +1,85 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into 32 buckets,
+ * so a percentile is accurate to about 3%, at a fixed size of a few KB whatever the number of values.
+ */
+class DynamoDBLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos A latency, negative values are counted as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The highest latency of the bucket the percentile falls in, or 0 if nothing was recorded
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highestOf(i), max());
+        }
+        return max();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,161 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent point lookups of the same table into BatchGetItem requests.
+ * <p>
+ * The keys looked up are collected for a short window, or until a request is full, and then fetched with a single
+ * BatchGetItem. Each item is routed back to the callers waiting for its key, and the keys DynamoDB leaves unprocessed
+ * are fetched again after a backoff. Lookups of the same key in the same window share a single read.
+ */
+class DynamoDBLookupCoalescer {
+    // AWS limit for the keys of a BatchGetItem request
+    static final int MAX_KEYS = 100;
+
+    private final Log log = Log.a(this.getClass());
+    private final long windowMillis;
+    private final int maxRetries;
+    private final DynamoDBAdaptiveBackoff backoff;
+    private final Function<BatchGetItemRequest, CompletableFuture<BatchGetItemResponse>> sender;
+
+    @GuardedBy("pending")
+    private final Map<Object, Lookups> pending = new HashMap<>();
+
+    /**
+     * @param windowMillis The time keys are collected for, before they are fetched
+     * @param maxRetries The maximum number of times unprocessed keys are fetched again
+     * @param backoff The backoff shared by all the sessions of the interface
+     * @param sender Sends a request, the returned future is completed with its response
+     */
+    DynamoDBLookupCoalescer(long windowMillis, int maxRetries, DynamoDBAdaptiveBackoff backoff,
+                            Function<BatchGetItemRequest, CompletableFuture<BatchGetItemResponse>> sender) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = backoff;
+        this.sender = sender;
+    }
+
+    /**
+     * @param statement A point lookup, whose selected attributes include the key (see {@link DynamoDBKeyValueStatement#selectsKey})
+     * @param keySchema The key schema of the table
+     * @param key The key of the item
+     * @return The item, or null if it doesn't exist
+     */
+    CompletableFuture<Map<String, AttributeValue>> lookup(DynamoDBKeyValueStatement statement, KeySchema keySchema,
+                                                          Map<String, AttributeValue> key) {
+        // Items are matched to their waiters by key, and DynamoDB returns the numbers of the key normalized
+        Map<String, AttributeValue> itemKey = keySchema.keyOf(key);
+        Object group = statement.lookupGroup();
+        CompletableFuture<Map<String, AttributeValue>> item;
+        Lookups fullLookups = null;
+        synchronized (pending) {
+            Lookups lookups = pending.get(group);
+            if (lookups == null) {
+                lookups = new Lookups(statement, keySchema);
+                pending.put(group, lookups);
+                Lookups scheduled = lookups;
+                CompletableFuture.runAsync(() -> flush(group, scheduled),
+                        CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS));
+            }
+            item = lookups.waiters.computeIfAbsent(itemKey, k -> new CompletableFuture<>());
+            if (lookups.waiters.size() >= MAX_KEYS) {
+                pending.remove(group);
+                fullLookups = lookups;
+            }
+        }
+        if (fullLookups != null) {
+            fetch(fullLookups, new ArrayList<>(fullLookups.waiters.keySet()), 0);
+        }
+        return item;
+    }
+
+    private void flush(Object group, Lookups lookups) {
+        synchronized (pending) {
+            // Already sent if it filled up before the window ended
+            if (pending.get(group) != lookups) return;
+            pending.remove(group);
+        }
+        fetch(lookups, new ArrayList<>(lookups.waiters.keySet()), 0);
+    }
+
+    private void fetch(Lookups lookups, List<Map<String, AttributeValue>> keys, int attempt) {
+        log.debug("Fetching {} keys of table {}, attempt {}", keys.size(), lookups.statement.table, attempt + 1);
+        BatchGetItemRequest request = BatchGetItemRequest.builder()
+                .requestItems(Collections.singletonMap(lookups.statement.table, lookups.statement.keysAndAttributes(keys)))
+                .build();
+        CompletableFuture<BatchGetItemResponse> response;
+        try {
+            response = sender.apply(request);
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        response.whenComplete((result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (DynamoDBAdaptiveBackoff.isThrottling(cause)) backoff.onThrottle();
+                keys.forEach(key -> lookups.waiters.get(key).completeExceptionally(cause));
+                return;
+            }
+            List<Map<String, AttributeValue>> items = result.responses().get(lookups.statement.table);
+            if (items != null) {
+                for (Map<String, AttributeValue> item : items) {
+                    CompletableFuture<Map<String, AttributeValue>> waiter = lookups.waiters.get(lookups.keySchema.keyOf(item));
+                    if (waiter != null) waiter.complete(item);
+                }
+            }
+            KeysAndAttributes unprocessed = result.hasUnprocessedKeys() ? result.unprocessedKeys().get(lookups.statement.table) : null;
+            List<Map<String, AttributeValue>> retry = new ArrayList<>();
+            if (unprocessed != null && unprocessed.hasKeys()) {
+                unprocessed.keys().forEach(key -> retry.add(lookups.keySchema.keyOf(key)));
+            }
+            if (retry.isEmpty()) {
+                backoff.onSuccess();
+            } else if (attempt < maxRetries) {
+                // Keys are left unprocessed when the throughput of the table is exceeded
+                backoff.onThrottle();
+                long delay = backoff.retryDelay(attempt, retry.size());
+                CompletableFuture.runAsync(() -> fetch(lookups, retry, attempt + 1),
+                        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+                keys.removeAll(retry);
+            } else {
+                IllegalStateException failure = new IllegalStateException(String.format(
+                        "%d keys of table %s still unprocessed after %d retries", retry.size(), lookups.statement.table, maxRetries));
+                retry.forEach(key -> {
+                    CompletableFuture<Map<String, AttributeValue>> waiter = lookups.waiters.get(key);
+                    if (waiter != null) waiter.completeExceptionally(failure);
+                });
+            }
+            // The keys that weren't returned, and aren't retried, don't exist
+            keys.forEach(key -> lookups.waiters.get(key).complete(null));
+        });
+    }
+
+    /**
+     * The keys of the same table and selected attributes, looked up in the same window
+     */
+    private static class Lookups {
+        private final DynamoDBKeyValueStatement statement;
+        private final KeySchema keySchema;
+        // Only mutated before the lookups are fetched
+        private final Map<Map<String, AttributeValue>, CompletableFuture<Map<String, AttributeValue>>> waiters = new LinkedHashMap<>();
+
+        private Lookups(DynamoDBKeyValueStatement statement, KeySchema keySchema) {
+            this.statement = statement;
+            this.keySchema = keySchema;
+        }
+    }
+}
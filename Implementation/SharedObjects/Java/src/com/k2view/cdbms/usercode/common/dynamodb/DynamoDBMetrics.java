@@ -0,0 +1,498 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBCapacityLimiter.TableUsage;
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency, capacity and throttling metrics of a DynamoDB interface, per table and per DynamoDB operation.
+ * <p>
+ * Recorded by an interceptor and a metric publisher registered on the clients of the interface, so every request
+ * is measured, whether it's sent by a session, a batch, a prefetch or a parallel scan, with striped counters
+ * and lock-free histograms so the metrics can stay on under load.
+ * The metrics of an interface are kept for the life of the process, whatever clients its sessions share,
+ * and are exposed as JMX MBeans of the {@value #JMX_DOMAIN} domain and through {@link #snapshot()}.
+ */
+public final class DynamoDBMetrics {
+    static final String JMX_DOMAIN = "com.k2view.dynamodb";
+    private static final Log log = Log.a(DynamoDBMetrics.class);
+    private static final ExecutionAttribute<Execution> EXECUTION = new ExecutionAttribute<>("DynamoDBMetricsExecution");
+    // The error type the SDK reports for throttled attempts
+    private static final String THROTTLING_ERROR_TYPE = "Throttling";
+    private static final Map<String, DynamoDBMetrics> interfaces = new ConcurrentHashMap<>();
+
+    private final String identifier;
+    private final Map<String, TableMetrics> tables = new ConcurrentHashMap<>();
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final ExecutionInterceptor interceptor = new Interceptor();
+    private final MetricPublisher publisher = new Publisher();
+
+    private DynamoDBMetrics(String identifier) {
+        this.identifier = identifier;
+    }
+
+    /**
+     * @param identifier The interface identifier
+     * @return The metrics of the interface, created on first use
+     */
+    static DynamoDBMetrics of(String identifier) {
+        return interfaces.computeIfAbsent(identifier, DynamoDBMetrics::new);
+    }
+
+    /**
+     * @return The metrics of all the interfaces, by interface, see {@link #snapshot(String)}
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        interfaces.forEach((identifier, metrics) -> snapshot.put(identifier, metrics.snapshotOf()));
+        return snapshot;
+    }
+
+    /**
+     * @param identifier The interface identifier
+     * @return The metrics of the interface: "tables", the metrics of each table, and "operations",
+     * the metrics the SDK reports for each DynamoDB operation. Empty if the interface wasn't used.
+     */
+    public static Map<String, Object> snapshot(String identifier) {
+        DynamoDBMetrics metrics = interfaces.get(identifier);
+        return metrics == null ? Collections.emptyMap() : metrics.snapshotOf();
+    }
+
+    /**
+     * @return The interceptor recording the metrics of each table
+     */
+    ExecutionInterceptor interceptor() {
+        return interceptor;
+    }
+
+    /**
+     * @return The publisher of the metrics the SDK collects for each DynamoDB operation
+     */
+    MetricPublisher publisher() {
+        return publisher;
+    }
+
+    private Map<String, Object> snapshotOf() {
+        Map<String, Object> tablesSnapshot = new TreeMap<>();
+        tables.forEach((name, metrics) -> tablesSnapshot.put(name, metrics.snapshot()));
+        Map<String, Object> operationsSnapshot = new TreeMap<>();
+        operations.forEach((name, metrics) -> operationsSnapshot.put(name, metrics.snapshot()));
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("tables", tablesSnapshot);
+        snapshot.put("operations", operationsSnapshot);
+        return snapshot;
+    }
+
+    private TableMetrics table(String name) {
+        TableMetrics metrics = tables.get(name);
+        if (metrics != null) return metrics;
+        return tables.computeIfAbsent(name, table -> {
+            TableMetrics tableMetrics = new TableMetrics();
+            register("type=Table,interface=" + ObjectName.quote(identifier) + ",table=" + ObjectName.quote(table), tableMetrics::snapshot);
+            return tableMetrics;
+        });
+    }
+
+    private OperationMetrics operation(String name) {
+        OperationMetrics metrics = operations.get(name);
+        if (metrics != null) return metrics;
+        return operations.computeIfAbsent(name, operation -> {
+            OperationMetrics operationMetrics = new OperationMetrics();
+            register("type=Operation,interface=" + ObjectName.quote(identifier) + ",operation=" + ObjectName.quote(operation), operationMetrics::snapshot);
+            return operationMetrics;
+        });
+    }
+
+    private static void register(String properties, Supplier<Map<String, Object>> snapshot) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+            try {
+                server.registerMBean(new SnapshotMBean(snapshot), name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Left by a previous deployment of the project, whose counters are no longer updated,
+                // and which would keep its class loader alive
+                log.debug("Replacing DynamoDB metrics MBean {} of a previous deployment", properties);
+                try {
+                    server.unregisterMBean(name);
+                } catch (InstanceNotFoundException ignored) {
+                    // Unregistered meanwhile
+                }
+                server.registerMBean(new SnapshotMBean(snapshot), name);
+            }
+        } catch (JMException | RuntimeException e) {
+            log.warn("Failed to register DynamoDB metrics MBean {}", properties, e);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The calls a table's latencies are recorded for
+     */
+    enum Call {
+        // A statement, or a GetItem/Query/PutItem/DeleteItem request
+        EXECUTE("execute"),
+        // A next page of a statement or query, or a page of a scan
+        PAGE("page"),
+        // A BatchExecuteStatement, BatchWriteItem or BatchGetItem request
+        BATCH("batch"),
+        TRANSACTION("transaction");
+
+        private final String prefix;
+
+        Call(String prefix) {
+            this.prefix = prefix;
+        }
+
+        static Call of(SdkRequest request) {
+            if (request instanceof ExecuteStatementRequest) {
+                return ((ExecuteStatementRequest) request).nextToken() == null ? EXECUTE : PAGE;
+            } else if (request instanceof QueryRequest) {
+                return ((QueryRequest) request).hasExclusiveStartKey() ? PAGE : EXECUTE;
+            } else if (request instanceof ScanRequest) {
+                return PAGE;
+            } else if (request instanceof GetItemRequest || request instanceof PutItemRequest || request instanceof DeleteItemRequest) {
+                return EXECUTE;
+            } else if (request instanceof BatchExecuteStatementRequest || request instanceof BatchWriteItemRequest
+                    || request instanceof BatchGetItemRequest) {
+                return BATCH;
+            } else if (request instanceof ExecuteTransactionRequest) {
+                return TRANSACTION;
+            }
+            return null;
+        }
+    }
+
+    private static final class TableMetrics {
+        private final DynamoDBLatencyHistogram[] latencies = new DynamoDBLatencyHistogram[Call.values().length];
+        private final DoubleAdder readCapacityUnits = new DoubleAdder();
+        private final DoubleAdder writeCapacityUnits = new DoubleAdder();
+        private final LongAdder throttles = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        private TableMetrics() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new DynamoDBLatencyHistogram();
+            }
+        }
+
+        private DynamoDBLatencyHistogram latency(Call call) {
+            return latencies[call.ordinal()];
+        }
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            for (Call call : Call.values()) {
+                DynamoDBLatencyHistogram latency = latency(call);
+                snapshot.put(call.prefix + "Count", latency.count());
+                snapshot.put(call.prefix + "MeanMillis", millis((long) latency.mean()));
+                snapshot.put(call.prefix + "P50Millis", millis(latency.percentile(50)));
+                snapshot.put(call.prefix + "P99Millis", millis(latency.percentile(99)));
+                snapshot.put(call.prefix + "P999Millis", millis(latency.percentile(99.9)));
+                snapshot.put(call.prefix + "MaxMillis", millis(latency.max()));
+            }
+            snapshot.put("readCapacityUnits", readCapacityUnits.sum());
+            snapshot.put("writeCapacityUnits", writeCapacityUnits.sum());
+            snapshot.put("throttles", throttles.sum());
+            snapshot.put("retries", retries.sum());
+            snapshot.put("errors", errors.sum());
+            snapshot.put("pages", pages.sum());
+            snapshot.put("items", items.sum());
+            snapshot.put("bytes", bytes.sum());
+            return snapshot;
+        }
+    }
+
+    private static final class OperationMetrics {
+        private final DynamoDBLatencyHistogram latency = new DynamoDBLatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder throttledAttempts = new LongAdder();
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("count", latency.count());
+            snapshot.put("meanMillis", millis((long) latency.mean()));
+            snapshot.put("p50Millis", millis(latency.percentile(50)));
+            snapshot.put("p99Millis", millis(latency.percentile(99)));
+            snapshot.put("p999Millis", millis(latency.percentile(99.9)));
+            snapshot.put("maxMillis", millis(latency.max()));
+            snapshot.put("failures", failures.sum());
+            snapshot.put("retries", retries.sum());
+            snapshot.put("throttledAttempts", throttledAttempts.sum());
+            return snapshot;
+        }
+    }
+
+    /**
+     * The state of a request, from its first attempt to its response or failure
+     */
+    private static final class Execution {
+        private final Call call;
+        private final TableUsage usage;
+        private final List<String> tables;
+        private final long startNanos = System.nanoTime();
+        // The SDK runs the stages of a request one after the other, so these need no synchronization
+        private int attempts;
+        private long bytes;
+
+        private Execution(Call call, TableUsage usage) {
+            this.call = call;
+            this.usage = usage;
+            Set<String> all = new LinkedHashSet<>(usage.reads());
+            all.addAll(usage.writes());
+            this.tables = new ArrayList<>(all);
+        }
+    }
+
+    /**
+     * Records the latency, capacity, pages, items and bytes of each table, and the throttles DynamoDB reports
+     * for the items of a batch or the statements of a transaction
+     */
+    private final class Interceptor implements ExecutionInterceptor {
+        @Override
+        public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+            Call call = Call.of(context.request());
+            if (call == null) return;
+            TableUsage usage = TableUsage.of(context.request());
+            if (usage.isEmpty()) return;
+            executionAttributes.putAttribute(EXECUTION, new Execution(call, usage));
+        }
+
+        @Override
+        public SdkRequest modifyRequest(Context.ModifyRequest context, ExecutionAttributes executionAttributes) {
+            if (executionAttributes.getAttribute(EXECUTION) == null) return context.request();
+            return DynamoDBCapacityLimiter.withConsumedCapacity(context.request());
+        }
+
+        @Override
+        public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+            Execution execution = executionAttributes.getAttribute(EXECUTION);
+            if (execution != null) execution.attempts++;
+        }
+
+        @Override
+        public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+            Execution execution = executionAttributes.getAttribute(EXECUTION);
+            if (execution == null) return;
+            context.httpResponse().firstMatchingHeader("Content-Length").ifPresent(length -> {
+                try {
+                    execution.bytes += Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    // Not counted
+                }
+            });
+        }
+
+        @Override
+        public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+            Execution execution = executionAttributes.getAttribute(EXECUTION);
+            if (execution == null) return;
+            record(execution);
+            SdkResponse response = context.response();
+            DynamoDBCapacityLimiter.consumedCapacity(response).forEach(consumed -> {
+                if (consumed == null || consumed.tableName() == null) return;
+                TableMetrics metrics = table(consumed.tableName());
+                if (consumed.readCapacityUnits() != null || consumed.writeCapacityUnits() != null) {
+                    if (consumed.readCapacityUnits() != null) metrics.readCapacityUnits.add(consumed.readCapacityUnits());
+                    if (consumed.writeCapacityUnits() != null) metrics.writeCapacityUnits.add(consumed.writeCapacityUnits());
+                } else if (consumed.capacityUnits() != null) {
+                    if (execution.usage.writes().contains(consumed.tableName())) {
+                        metrics.writeCapacityUnits.add(consumed.capacityUnits());
+                    } else {
+                        metrics.readCapacityUnits.add(consumed.capacityUnits());
+                    }
+                }
+            });
+            recordItems(execution, context.request(), response);
+        }
+
+        @Override
+        public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+            Execution execution = executionAttributes.getAttribute(EXECUTION);
+            if (execution == null) return;
+            record(execution);
+            Throwable error = context.exception();
+            if (error instanceof TransactionCanceledException && ((TransactionCanceledException) error).hasCancellationReasons()) {
+                List<CancellationReason> reasons = ((TransactionCanceledException) error).cancellationReasons();
+                List<ParameterizedStatement> statements = ((ExecuteTransactionRequest) context.request()).transactStatements();
+                boolean throttled = false;
+                for (int i = 0; i < reasons.size() && i < statements.size(); i++) {
+                    if ("ThrottlingError".equals(reasons.get(i).code())) {
+                        throttled = true;
+                        String table = DynamoDBStatementDescriptor.lookup(statements.get(i).statement()).table;
+                        if (table != null) table(table).throttles.increment();
+                    }
+                }
+                if (throttled) return;
+            }
+            boolean throttling = DynamoDBAdaptiveBackoff.isThrottling(error);
+            for (String table : execution.tables) {
+                (throttling ? table(table).throttles : table(table).errors).increment();
+            }
+        }
+
+        private void record(Execution execution) {
+            long latency = System.nanoTime() - execution.startNanos;
+            int retries = Math.max(0, execution.attempts - 1);
+            // The bytes of a request of several tables are split between them
+            long bytes = execution.bytes / execution.tables.size();
+            for (String table : execution.tables) {
+                TableMetrics metrics = table(table);
+                metrics.latency(execution.call).record(latency);
+                if (retries > 0) metrics.retries.add(retries);
+                if (bytes > 0) metrics.bytes.add(bytes);
+            }
+        }
+
+        private void recordItems(Execution execution, SdkRequest request, SdkResponse response) {
+            if (response instanceof ExecuteStatementResponse) {
+                addPage(execution.tables.get(0), ((ExecuteStatementResponse) response).items().size());
+            } else if (response instanceof QueryResponse) {
+                addPage(execution.tables.get(0), ((QueryResponse) response).items().size());
+            } else if (response instanceof ScanResponse) {
+                addPage(execution.tables.get(0), ((ScanResponse) response).items().size());
+            } else if (response instanceof GetItemResponse) {
+                if (((GetItemResponse) response).hasItem()) table(execution.tables.get(0)).items.increment();
+            } else if (response instanceof BatchGetItemResponse) {
+                BatchGetItemResponse batchGetResponse = (BatchGetItemResponse) response;
+                batchGetResponse.responses().forEach((table, items) -> table(table).items.add(items.size()));
+                batchGetResponse.unprocessedKeys().forEach((table, keys) -> table(table).throttles.add(keys.keys().size()));
+            } else if (response instanceof BatchWriteItemResponse) {
+                ((BatchWriteItemResponse) response).unprocessedItems().forEach((table, writes) -> table(table).throttles.add(writes.size()));
+            } else if (response instanceof BatchExecuteStatementResponse) {
+                List<BatchStatementResponse> responses = ((BatchExecuteStatementResponse) response).responses();
+                List<BatchStatementRequest> statements = ((BatchExecuteStatementRequest) request).statements();
+                for (int i = 0; i < responses.size() && i < statements.size(); i++) {
+                    BatchStatementResponse statementResponse = responses.get(i);
+                    String table = statementResponse.tableName() != null ? statementResponse.tableName()
+                            : DynamoDBStatementDescriptor.lookup(statements.get(i).statement()).table;
+                    if (table == null) continue;
+                    if (statementResponse.error() != null) {
+                        BatchStatementErrorCodeEnum code = statementResponse.error().code();
+                        (code == BatchStatementErrorCodeEnum.THROTTLING_ERROR
+                                || code == BatchStatementErrorCodeEnum.PROVISIONED_THROUGHPUT_EXCEEDED
+                                || code == BatchStatementErrorCodeEnum.REQUEST_LIMIT_EXCEEDED ? table(table).throttles : table(table).errors).increment();
+                    } else if (statementResponse.item() != null && !statementResponse.item().isEmpty()) {
+                        table(table).items.increment();
+                    }
+                }
+            }
+        }
+
+        private void addPage(String table, int items) {
+            TableMetrics metrics = table(table);
+            metrics.pages.increment();
+            metrics.items.add(items);
+        }
+    }
+
+    /**
+     * Records the latency, retries and throttled attempts of each DynamoDB operation, as collected by the SDK
+     */
+    private final class Publisher implements MetricPublisher {
+        @Override
+        public void publish(MetricCollection metricCollection) {
+            List<String> operationNames = metricCollection.metricValues(CoreMetric.OPERATION_NAME);
+            if (operationNames.isEmpty()) return;
+            OperationMetrics metrics = operation(operationNames.get(0));
+            for (Duration duration : metricCollection.metricValues(CoreMetric.API_CALL_DURATION)) {
+                metrics.latency.record(duration.toNanos());
+            }
+            for (Boolean successful : metricCollection.metricValues(CoreMetric.API_CALL_SUCCESSFUL)) {
+                if (!successful) metrics.failures.increment();
+            }
+            for (Integer retries : metricCollection.metricValues(CoreMetric.RETRY_COUNT)) {
+                metrics.retries.add(retries);
+            }
+            for (MetricCollection attempt : metricCollection.children()) {
+                if (attempt.metricValues(CoreMetric.ERROR_TYPE).contains(THROTTLING_ERROR_TYPE)) {
+                    metrics.throttledAttempts.increment();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // Called when a client is closed, while the metrics outlive the clients
+        }
+    }
+
+    /**
+     * Exposes a snapshot of metrics as read-only JMX attributes
+     */
+    private static final class SnapshotMBean implements DynamicMBean {
+        private final Supplier<Map<String, Object>> snapshot;
+
+        private SnapshotMBean(Supplier<Map<String, Object>> snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot.get().get(attribute);
+            if (value == null) throw new AttributeNotFoundException("Unknown DynamoDB metric " + attribute + "!");
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot.get();
+            AttributeList list = new AttributeList(attributes.length);
+            for (String attribute : attributes) {
+                Object value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("DynamoDB metrics are read-only!");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "DynamoDB metrics have no operations!");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            snapshot.get().forEach((name, value) -> attributes.add(
+                    new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+            return new MBeanInfo(getClass().getName(), "DynamoDB metrics", attributes.toArray(new MBeanAttributeInfo[0]),
+                    null, null, null);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import java.math.BigDecimal;
+
+/**
+ * How number (N) attributes are decoded
+ */
+public enum DynamoDBNumberMode {
+    /**
+     * Always a BigDecimal
+     */
+    BIG_DECIMAL {
+        @Override
+        public Object parse(String number) {
+            return new BigDecimal(number);
+        }
+
+        @Override
+        public String dataType() {
+            return "BIG_DECIMAL";
+        }
+    },
+    /**
+     * A Long if the number is integral and fits, otherwise a BigDecimal
+     */
+    AUTO {
+        @Override
+        public Object parse(String number) {
+            long value = parseIntegral(number);
+            if (value != NOT_INTEGRAL || isIntegralMinValue(number)) return value;
+            BigDecimal decimal = new BigDecimal(number);
+            if (decimal.scale() <= 0 || decimal.stripTrailingZeros().scale() <= 0) {
+                try {
+                    return decimal.longValueExact();
+                } catch (ArithmeticException e) {
+                    // Doesn't fit a long
+                }
+            }
+            return decimal;
+        }
+
+        @Override
+        public String dataType() {
+            // Either a Long or a BigDecimal, so the wider of the two
+            return "BIG_DECIMAL";
+        }
+    },
+    /**
+     * Always a Double, which may lose precision
+     */
+    DOUBLE {
+        @Override
+        public Object parse(String number) {
+            long value = parseIntegral(number);
+            // Longs beyond 2^53 aren't exactly representable, let the JDK round them
+            if ((value != NOT_INTEGRAL || isIntegralMinValue(number)) && Math.abs(value) <= MAX_EXACT_DOUBLE) {
+                return (double) value;
+            }
+            return Double.parseDouble(number);
+        }
+
+        @Override
+        public String dataType() {
+            return "DOUBLE";
+        }
+    };
+
+    // Returned by parseIntegral() for anything that isn't a plain integer that fits a long
+    private static final long NOT_INTEGRAL = Long.MIN_VALUE;
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+    // Up to 18 digits always fit a long, so they are accumulated without overflow checks
+    private static final int SAFE_DIGITS = 18;
+
+    /**
+     * @param number A DynamoDB number
+     * @return The decoded number
+     */
+    public abstract Object parse(String number);
+
+    /**
+     * @return The data type reported for number attributes
+     */
+    public abstract String dataType();
+
+    /**
+     * @param mode The mode name, case insensitive
+     * @return The mode, or BIG_DECIMAL if the name is empty
+     */
+    public static DynamoDBNumberMode of(String mode) {
+        if (mode == null || mode.trim().isEmpty()) return BIG_DECIMAL;
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown number mode " + mode + ", expected one of BIG_DECIMAL, AUTO or DOUBLE!", e);
+        }
+    }
+
+    /**
+     * Parses a plain integer (an optional sign followed by digits) without allocating
+     * @return The integer, or NOT_INTEGRAL if the number isn't a plain integer or doesn't fit a long
+     */
+    static long parseIntegral(String number) {
+        int length = number.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (number.charAt(0) == '-' || number.charAt(0) == '+')) {
+            negative = number.charAt(0) == '-';
+            i = 1;
+        }
+        int digits = length - i;
+        if (digits < 1) return NOT_INTEGRAL;
+        if (digits > SAFE_DIGITS) {
+            for (int j = i; j < length; j++) {
+                if (!isDigit(number.charAt(j))) return NOT_INTEGRAL;
+            }
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                return NOT_INTEGRAL;
+            }
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = number.charAt(i);
+            if (!isDigit(c)) return NOT_INTEGRAL;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIntegralMinValue(String number) {
+        return number.equals("-9223372036854775808");
+    }
+}
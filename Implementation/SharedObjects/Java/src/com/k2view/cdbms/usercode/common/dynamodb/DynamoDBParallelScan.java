@@ -0,0 +1,406 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Log;
+import com.k2view.fabric.common.io.IoCommand;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a whole table with a parallel Scan.
+ * <p>
+ * The table is split into segments which are scanned by a bounded number of workers, on threads shared by all the scans.
+ * The pages they read are handed to the consumer through a bounded queue, so the workers wait when the consumer falls behind.
+ * The workers stop once the scan is closed, or once its iterator is dropped without being closed.
+ * The order of the rows is not defined.
+ * <p>
+ * The scan can be given a budget of read capacity units, e.g. when sampling a table, in which case the workers stop
+ * once it's consumed. The pages are then limited to the items the rest of the budget is expected to pay for, from the
+ * capacity consumed by the items read so far, so the budget is only exceeded by the pages in flight when it runs out.
+ * <p>
+ * A scan can also sample the table, reading a slice of a few items from each segment, in a random order of the
+ * segments, until the limit is reached. With many small segments, the sample is spread over the whole table
+ * instead of being read from its first segments.
+ */
+class DynamoDBParallelScan implements IoCommand.Result {
+    // AWS limit for TotalSegments
+    static final int MAX_SEGMENTS = 1_000_000;
+    // The items of the first page of a scan with a capacity budget, before the capacity of an item is known
+    private static final int FIRST_BUDGETED_PAGE = 10;
+
+    private static final Pattern HINT = Pattern.compile("^\\s*/\\*\\+\\s*parallel_scan\\s*(?:\\(\\s*(\\d+)\\s*\\))?\\s*\\*/\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FULL_TABLE_SELECT = Pattern.compile("^\\s*select\\s+\\*\\s+from\\s+(?:\"([^\"]+)\"|([\\w\\-]+))\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+    // Marks the end of the scan in the pages queue
+    private static final List<Map<String, AttributeValue>> END = new ArrayList<>(0);
+    // How often a worker waiting for the consumer checks whether the consumer is gone
+    private static final long CONSUMER_CHECK_MILLIS = 1000;
+    // The threads shared by the workers of all the scans, the workers beyond them wait for a thread
+    private static final int MAX_SCAN_THREADS = 64;
+    private static volatile ExecutorService scanExecutor;
+
+    private final Log log = Log.a(this.getClass());
+    private final DynamoDbClient dbClient;
+    private final String table;
+    private final int totalSegments;
+    private final int workers;
+    private final Long limit;
+    // Read capacity units, 0 if unlimited
+    private final double capacityBudget;
+    // The items read from each segment, 0 to read whole segments
+    private final int sliceItems;
+    // The segments are visited in the order (stride * i + offset) % totalSegments, a random permutation when sampling
+    private final long segmentStride;
+    private final long segmentOffset;
+    private final Function<Map<String, AttributeValue>, IoCommand.Row> translator;
+
+    private final BlockingQueue<List<Map<String, AttributeValue>>> pages;
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong remaining;
+    private final DoubleAdder consumedCapacity = new DoubleAdder();
+    private final AtomicLong budgetedItems = new AtomicLong();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile boolean closed;
+    // Weak, so the iterator dropped by the consumer without closing the scan can be collected, and the workers stop
+    private volatile WeakReference<ScanIterator> consumer;
+    private final AtomicBoolean abandoned = new AtomicBoolean();
+    private List<Future<?>> workerTasks;
+
+    DynamoDBParallelScan(DynamoDbClient dbClient, String table, int totalSegments, int workers, Integer limit,
+                         Function<Map<String, AttributeValue>, IoCommand.Row> translator) {
+        this(dbClient, table, totalSegments, workers, limit, 0, translator);
+    }
+
+    /**
+     * @param capacityBudget The read capacity units the scan may consume, 0 for no limit
+     */
+    DynamoDBParallelScan(DynamoDbClient dbClient, String table, int totalSegments, int workers, Integer limit,
+                         double capacityBudget, Function<Map<String, AttributeValue>, IoCommand.Row> translator) {
+        this(dbClient, table, totalSegments, workers, limit, capacityBudget, 0, translator);
+    }
+
+    /**
+     * @param sliceItems The items to read from each segment, visiting the segments in a random order,
+     *                   or 0 to read whole segments in order
+     */
+    DynamoDBParallelScan(DynamoDbClient dbClient, String table, int totalSegments, int workers, Integer limit,
+                         double capacityBudget, int sliceItems, Function<Map<String, AttributeValue>, IoCommand.Row> translator) {
+        if (totalSegments < 1 || totalSegments > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("The number of scan segments must be between 1 and " + MAX_SEGMENTS);
+        }
+        this.dbClient = dbClient;
+        this.table = table;
+        this.totalSegments = totalSegments;
+        this.workers = Math.max(1, Math.min(workers, totalSegments));
+        this.limit = limit == null ? null : limit.longValue();
+        this.remaining = new AtomicLong(limit == null ? Long.MAX_VALUE : limit);
+        this.capacityBudget = Math.max(0, capacityBudget);
+        this.sliceItems = Math.max(0, sliceItems);
+        if (this.sliceItems > 0 && totalSegments > 1) {
+            // Any stride coprime with the number of segments visits each of them once
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long stride;
+            do {
+                stride = random.nextLong(1, totalSegments);
+            } while (gcd(stride, totalSegments) != 1);
+            this.segmentStride = stride;
+            this.segmentOffset = random.nextLong(totalSegments);
+        } else {
+            this.segmentStride = 1;
+            this.segmentOffset = 0;
+        }
+        this.translator = translator;
+        this.pages = new ArrayBlockingQueue<>(this.workers * 2);
+    }
+
+    /**
+     * @param itemCount The item count of the table, as returned by DescribeTable
+     * @param sampleSize The number of items to sample
+     * @param sliceItems The items to read from each segment
+     * @return The number of segments to sample the table with, so that each holds about a slice
+     */
+    static int sampleSegmentsFor(long itemCount, long sampleSize, int sliceItems) {
+        long segments = Math.max(itemCount, sampleSize) / Math.max(sliceItems, 1);
+        return (int) Math.max(1, Math.min(segments, MAX_SEGMENTS));
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * @param tableSizeBytes The table size, as returned by DescribeTable
+     * @param segmentBytes The target size of a single segment
+     * @return The number of segments to scan the table with
+     */
+    static int segmentsFor(long tableSizeBytes, long segmentBytes) {
+        long segments = (tableSizeBytes + segmentBytes - 1) / Math.max(segmentBytes, 1);
+        return (int) Math.max(1, Math.min(segments, MAX_SEGMENTS));
+    }
+
+    /**
+     * Parses the parallel scan hint at the beginning of a statement, e.g.
+     * <code>/*+ PARALLEL_SCAN *&#47; SELECT * FROM "table"</code> or <code>/*+ PARALLEL_SCAN(16) *&#47; SELECT * FROM "table"</code>
+     * @return The hint, or null if the statement isn't hinted
+     */
+    static Hint hint(String command) {
+        if (command == null) return null;
+        Matcher matcher = HINT.matcher(command);
+        if (!matcher.find()) return null;
+        String segments = matcher.group(1);
+        return new Hint(command.substring(matcher.end()), segments == null ? null : Integer.parseInt(segments));
+    }
+
+    /**
+     * @param command A PartiQL statement, without its LIMIT
+     * @return The table name if the statement reads the whole table, otherwise null
+     */
+    static String fullTableSelect(String command) {
+        Matcher matcher = FULL_TABLE_SELECT.matcher(command);
+        if (!matcher.matches()) return null;
+        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    }
+
+    @Override
+    public String[] labels() {
+        // Each item may have different attributes/fields
+        return new String[]{};
+    }
+
+    @Override
+    public synchronized Iterator<IoCommand.Row> iterator() {
+        if (workerTasks != null) {
+            throw new IllegalStateException("A parallel scan can only be iterated once");
+        }
+        if (sliceItems > 0) {
+            log.debug("Sampling table {} with slices of {} items out of {} segments and {} workers", table, sliceItems, totalSegments, workers);
+        } else {
+            log.debug("Scanning table {} with {} segments and {} workers", table, totalSegments, workers);
+        }
+        ScanIterator iterator = new ScanIterator();
+        consumer = new WeakReference<>(iterator);
+        activeWorkers.set(workers);
+        workerTasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            workerTasks.add(scanExecutor().submit(this::scanSegments));
+        }
+        return iterator;
+    }
+
+    /**
+     * @return The threads of the workers of all the scans. They aren't shared with the interface's requests,
+     * which a consumer of a scan may wait for while the workers wait for it.
+     */
+    private static ExecutorService scanExecutor() {
+        ExecutorService executor = scanExecutor;
+        if (executor == null) {
+            synchronized (DynamoDBParallelScan.class) {
+                if (scanExecutor == null) {
+                    AtomicInteger threadNumber = new AtomicInteger();
+                    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(MAX_SCAN_THREADS, MAX_SCAN_THREADS,
+                            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "DynamoDB-Scan-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    threadPool.allowCoreThreadTimeOut(true);
+                    scanExecutor = threadPool;
+                }
+                executor = scanExecutor;
+            }
+        }
+        return executor;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (workerTasks != null) workerTasks.forEach(task -> task.cancel(true));
+        }
+        pages.clear();
+    }
+
+    private void scanSegments() {
+        try {
+            int index;
+            while (!closed && error.get() == null && remaining.get() > 0 && withinBudget()
+                    && (index = nextSegment.getAndIncrement()) < totalSegments) {
+                scanSegment((int) ((segmentStride * index + segmentOffset) % totalSegments));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            error.compareAndSet(null, t);
+        } finally {
+            if (activeWorkers.decrementAndGet() == 0) {
+                end();
+            }
+        }
+    }
+
+    private void scanSegment(int segment) throws InterruptedException {
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        long sliceLeft = sliceItems > 0 ? sliceItems : Long.MAX_VALUE;
+        do {
+            long left = Math.min(remaining.get(), sliceLeft);
+            ScanRequest.Builder requestBuilder = ScanRequest.builder()
+                    .tableName(table)
+                    .segment(segment)
+                    .totalSegments(totalSegments)
+                    .exclusiveStartKey(exclusiveStartKey);
+            if (capacityBudget > 0) {
+                left = Math.min(left, budgetedPageItems());
+                requestBuilder.returnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+            if (left < Integer.MAX_VALUE) {
+                requestBuilder.limit((int) left);
+            }
+            ScanResponse response = dbClient.scan(requestBuilder.build());
+            if (response.consumedCapacity() != null && response.consumedCapacity().capacityUnits() != null) {
+                consumedCapacity.add(response.consumedCapacity().capacityUnits());
+                budgetedItems.addAndGet(response.count() == null ? 0 : response.count());
+            }
+            if (response.hasItems() && !response.items().isEmpty()) {
+                remaining.addAndGet(-response.items().size());
+                sliceLeft -= response.items().size();
+                if (!put(response.items())) return;
+            }
+            exclusiveStartKey = response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty() ?
+                    response.lastEvaluatedKey()
+                    : null;
+        } while (exclusiveStartKey != null && sliceLeft > 0 && !closed && error.get() == null && remaining.get() > 0 && withinBudget());
+    }
+
+    /**
+     * Waits for the consumer to make room for a page
+     *
+     * @return false if the scan was closed, or its consumer is gone, meanwhile
+     */
+    private boolean put(List<Map<String, AttributeValue>> page) throws InterruptedException {
+        while (!pages.offer(page, CONSUMER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed) return false;
+            if (consumer.get() == null) {
+                if (abandoned.compareAndSet(false, true)) log.warn("The scan of table {} was dropped without being closed, stopping its workers", table);
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean withinBudget() {
+        return capacityBudget == 0 || consumedCapacity.sum() < capacityBudget;
+    }
+
+    /**
+     * @return The items a worker's share of the rest of the capacity budget is expected to pay for
+     */
+    private long budgetedPageItems() {
+        double consumed = consumedCapacity.sum();
+        long items = budgetedItems.get();
+        if (items == 0 || consumed == 0) return FIRST_BUDGETED_PAGE;
+        double share = (capacityBudget - consumed) / workers;
+        return Math.max(1, (long) Math.ceil(share * items / consumed));
+    }
+
+    /**
+     * @return The read capacity units consumed so far, if the scan has a budget
+     */
+    double consumedCapacity() {
+        return consumedCapacity.sum();
+    }
+
+    private void end() {
+        if (closed) {
+            pages.offer(END);
+            return;
+        }
+        try {
+            // Closed meanwhile, the queue is cleared so the consumer still sees the end
+            if (!put(END)) pages.offer(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ScanIterator implements Iterator<IoCommand.Row> {
+        private Iterator<Map<String, AttributeValue>> page = Collections.emptyIterator();
+        private long returned;
+        private boolean done;
+
+        @Override
+        public boolean hasNext() {
+            if (limit != null && returned >= limit) {
+                finish();
+                return false;
+            }
+            while (!page.hasNext()) {
+                if (done) return false;
+                List<Map<String, AttributeValue>> next = take();
+                if (next == END) {
+                    finish();
+                    Throwable failure = error.get();
+                    if (failure != null) {
+                        throw failure instanceof RuntimeException ? (RuntimeException) failure : new IllegalStateException(failure);
+                    }
+                    return false;
+                }
+                page = next.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public IoCommand.Row next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            returned++;
+            return translator.apply(page.next());
+        }
+
+        private List<Map<String, AttributeValue>> take() {
+            try {
+                return pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while scanning table " + table, e);
+            }
+        }
+
+        private void finish() {
+            if (done) return;
+            done = true;
+            close();
+        }
+    }
+
+    static class Hint {
+        final String command;
+        final Integer segments;
+
+        private Hint(String command, Integer segments) {
+            this.command = command;
+            this.segments = segments;
+        }
+    }
+}
@@ -3,22 +3,34 @@ package com.k2view.cdbms.usercode.common.dynamodb;
 import com.k2view.fabric.common.ByteStream;
 import com.k2view.fabric.common.ParamConvertor;
 import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.enhanced.dynamodb.internal.converter.string.BigDecimalStringConverter;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
-import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.sql.Blob;
 import java.util.*;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static com.k2view.fabric.common.ParamConvertor.toBuffer;
 
 /**
  * Provides utility functions for parsing to/from AttributeValue
  */
 public class DynamoDBParseUtils {
+    // AttributeValues are immutable, so the common constant ones are shared
+    static final AttributeValue NULL_VALUE = AttributeValue.builder().nul(true).build();
+    static final AttributeValue TRUE_VALUE = AttributeValue.builder().bool(true).build();
+    static final AttributeValue FALSE_VALUE = AttributeValue.builder().bool(false).build();
+
+    private static final Function<Object, AttributeValue> PARAM_FALLOUT = param -> {
+        if(param instanceof Set<?>) {
+            Set<?> set = (Set<?>) param;
+            if (set.isEmpty()) return null;
+            // Skip empty sets instead of throwing exception
+            // as they're not supported by DynamoDB
+            throw new IllegalArgumentException(String.format("Unsupported type of Set: Set<%s>",
+                    set.iterator().next().getClass().getName()));
+        }
+        throw new IllegalArgumentException(String.format("Unsupported param of type %s, a converter can be registered for it with DynamoDBConverters.register", param.getClass().getName()));
+    };
+
     private DynamoDBParseUtils() {}
 
     /**
@@ -27,60 +39,91 @@ public class DynamoDBParseUtils {
      * null will be returned in case value is an empty set.
      */
     protected static AttributeValue toAttributeValue(Object value, Function<Object, AttributeValue> fallout) {
-        AttributeValue.Builder attributeValueBuilder = AttributeValue.builder();
-        if (value == null) {
-            attributeValueBuilder.nul(true);
-        } else if (value instanceof String) {
-            attributeValueBuilder.s((String) value);
-        } else if (value instanceof Number) {
-            attributeValueBuilder.n(String.valueOf(value));
-        } else if (value instanceof byte[]
-        || value instanceof ByteStream
-        || value instanceof ByteBuffer
-        || value instanceof Blob) {
-            attributeValueBuilder.b(toSdkBytes(toBuffer(value)));
-        } else if (value instanceof Boolean) {
-            attributeValueBuilder.bool((Boolean) value);
-        } else if (value instanceof Set<?>) {
-            return attributeValueFromSet((Set<?>) value, fallout);
-        } else if (value instanceof List) {
-            List<?> valueAsList = (List<?>) value;
-            List<AttributeValue> parsedList = new LinkedList<>();
-            valueAsList.stream().map(innerValue -> toAttributeValue(innerValue, fallout))
-                    .filter(DynamoDBParseUtils::notEmptyAttributeValue)
-                    .forEach(parsedList::add);
-            attributeValueBuilder.l(parsedList);
-        } else if (value instanceof Map) {
-            @SuppressWarnings("unchecked") Map<String, Object> valueAsMap = (Map<String, Object>) value;
-            Map<String, AttributeValue> parsedMap = valueAsMap.entrySet().stream()
-                    .map(entry -> new Object[]{entry.getKey(), toAttributeValue(entry.getValue(), fallout)})
-                    .filter(arr -> notEmptyAttributeValue((AttributeValue) arr[1]))
-                    .collect(Collectors.toMap(arr -> (String)arr[0], arr -> (AttributeValue)arr[1]));
-            attributeValueBuilder.m(parsedMap);
-        } else if(value instanceof Date) {
-            attributeValueBuilder.s(ParamConvertor.toString(value));
-        }
-        else if (value instanceof Iterable<?>) {
-            Iterator<?> valueAsIterator = ((Iterable<?>) value).iterator();
-            List<AttributeValue> parsedIterable = new LinkedList<>();
-            while(valueAsIterator.hasNext()) {
-                AttributeValue attributeValue = toAttributeValue(valueAsIterator.next(), fallout);
-                if (notEmptyAttributeValue(attributeValue)) parsedIterable.add(attributeValue);
+        return toAttributeValue(value, fallout, DynamoDBBinaryMode.BASE64);
+    }
+
+    /**
+     * @param value The object to be parsed
+     * @param binaryMode How binary values are written
+     * @return The object parsed to AttributeValue, or null if it needs to be skipped.
+     * null will be returned in case value is an empty set.
+     */
+    protected static AttributeValue toAttributeValue(Object value, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+        if (value == null) return NULL_VALUE;
+        return DynamoDBConverters.converterOf(value.getClass()).convert(value, fallout, binaryMode);
+    }
+
+    /**
+     * @param type The runtime class of a value
+     * @return The built-in converter of its values, resolved once per class by {@link DynamoDBConverters}
+     */
+    static DynamoDBConverters.Converter builtInConverter(Class<?> type) {
+        if (type == String.class) {
+            return (value, fallout, binaryMode) -> AttributeValue.builder().s((String) value).build();
+        } else if (Number.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> AttributeValue.builder().n(String.valueOf(value)).build();
+        } else if (isBinary(type)) {
+            return (value, fallout, binaryMode) -> AttributeValue.builder().b(binaryMode.toSdkBytes(value)).build();
+        } else if (type == Boolean.class) {
+            return (value, fallout, binaryMode) -> (Boolean) value ? TRUE_VALUE : FALSE_VALUE;
+        } else if (Set.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> attributeValueFromSet((Set<?>) value, fallout, binaryMode);
+        } else if (List.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> attributeValueFromList((List<?>) value, fallout, binaryMode);
+        } else if (Map.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> attributeValueFromMap((Map<?, ?>) value, fallout, binaryMode);
+        } else if (Date.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> AttributeValue.builder().s(ParamConvertor.toString(value)).build();
+        } else if (Iterable.class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> attributeValueFromIterable((Iterable<?>) value, fallout, binaryMode);
+        } else if (Object[].class.isAssignableFrom(type)) {
+            return (value, fallout, binaryMode) -> attributeValueFromList(Arrays.asList((Object[]) value), fallout, binaryMode);
+        }
+        return (value, fallout, binaryMode) -> fallout.apply(value);
+    }
+
+    private static boolean isBinary(Class<?> type) {
+        return type == byte[].class
+                || ByteStream.class.isAssignableFrom(type)
+                || ByteBuffer.class.isAssignableFrom(type)
+                || Blob.class.isAssignableFrom(type);
+    }
+
+    private static AttributeValue attributeValueFromList(List<?> list, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+        List<AttributeValue> parsedList = new ArrayList<>(list.size());
+        if (list instanceof RandomAccess) {
+            for (int i = 0, size = list.size(); i < size; i++) {
+                AttributeValue attributeValue = toAttributeValue(list.get(i), fallout, binaryMode);
+                if (notEmptyAttributeValue(attributeValue)) parsedList.add(attributeValue);
             }
-            attributeValueBuilder.l(parsedIterable);
-        } else if(value.getClass().isArray()) {
-            List<AttributeValue> parsedArray = Arrays.stream((Object[]) value).map(
-                    innerValue -> toAttributeValue(innerValue, fallout))
-                    .filter(DynamoDBParseUtils::notEmptyAttributeValue)
-                    .collect(Collectors.toList());
-            attributeValueBuilder.l(parsedArray);
         } else {
-            return fallout.apply(value);
+            for (Object item : list) {
+                AttributeValue attributeValue = toAttributeValue(item, fallout, binaryMode);
+                if (notEmptyAttributeValue(attributeValue)) parsedList.add(attributeValue);
+            }
         }
-        return attributeValueBuilder.build();
+        return AttributeValue.builder().l(parsedList).build();
+    }
+
+    private static AttributeValue attributeValueFromIterable(Iterable<?> iterable, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+        List<AttributeValue> parsedIterable = new ArrayList<>();
+        for (Object item : iterable) {
+            AttributeValue attributeValue = toAttributeValue(item, fallout, binaryMode);
+            if (notEmptyAttributeValue(attributeValue)) parsedIterable.add(attributeValue);
+        }
+        return AttributeValue.builder().l(parsedIterable).build();
+    }
+
+    private static AttributeValue attributeValueFromMap(Map<?, ?> map, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+        Map<String, AttributeValue> parsedMap = new HashMap<>(Math.max(4, (int) (map.size() / 0.75f) + 1));
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            AttributeValue attributeValue = toAttributeValue(entry.getValue(), fallout, binaryMode);
+            if (notEmptyAttributeValue(attributeValue)) parsedMap.put((String) entry.getKey(), attributeValue);
+        }
+        return AttributeValue.builder().m(parsedMap).build();
     }
 
-    private static AttributeValue attributeValueFromSet(Set<?> set, Function<Object, AttributeValue> fallout) {
+    private static AttributeValue attributeValueFromSet(Set<?> set, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
         AttributeValue.Builder attributeValueBuilder = AttributeValue.builder();
         Iterator<?> setItr = set.iterator();
         if (!setItr.hasNext()) {
@@ -91,21 +134,19 @@ public class DynamoDBParseUtils {
         if (firstItemClass == String.class) {
             @SuppressWarnings("unchecked") Set<String> strSet = (Set<String>) set;
             attributeValueBuilder.ss(strSet);
-        } else if (firstItemClass == byte[].class
-                || firstItemClass == ByteStream.class
-                || firstItemClass == Blob.class
-                || firstItemClass == ByteBuffer.class) {
-            Set<SdkBytes> sdkBytesSet = new HashSet<>();
-            set.forEach(val ->
-                    sdkBytesSet.add(toSdkBytes(toBuffer(val))));
+        } else if (DynamoDBConverters.isRegistered(firstItemClass)) {
+            return attributeValueFromConvertedSet(set, fallout, binaryMode);
+        } else if (isBinary(firstItemClass)) {
+            Set<SdkBytes> sdkBytesSet = new HashSet<>(Math.max(4, (int) (set.size() / 0.75f) + 1));
+            for (Object val : set) sdkBytesSet.add(binaryMode.toSdkBytes(val));
             attributeValueBuilder.bs(sdkBytesSet);
         } else if (Number.class.isAssignableFrom(firstItemClass)) {
-            Set<String> stringSet = new HashSet<>();
-            set.forEach(val -> stringSet.add(String.valueOf(val)));
+            Set<String> stringSet = new HashSet<>(Math.max(4, (int) (set.size() / 0.75f) + 1));
+            for (Object val : set) stringSet.add(String.valueOf(val));
             attributeValueBuilder.ns(stringSet);
         } else if (Date.class.isAssignableFrom(firstItemClass)) {
-            Set<String> stringSet = new HashSet<>();
-            set.forEach(val -> stringSet.add(ParamConvertor.toString(val)));
+            Set<String> stringSet = new HashSet<>(Math.max(4, (int) (set.size() / 0.75f) + 1));
+            for (Object val : set) stringSet.add(ParamConvertor.toString(val));
             attributeValueBuilder.ss(stringSet);
         } else {
             return fallout.apply(set);
@@ -113,8 +154,43 @@ public class DynamoDBParseUtils {
         return attributeValueBuilder.build();
     }
 
-    private static SdkBytes toSdkBytes(byte[] byteArr) {
-        return SdkBytes.fromByteArray(Base64.getEncoder().encode(byteArr));
+    /**
+     * A set of a type with a registered converter, which becomes a string, number or binary set
+     * according to what its members are converted to
+     */
+    private static AttributeValue attributeValueFromConvertedSet(Set<?> set, Function<Object, AttributeValue> fallout, DynamoDBBinaryMode binaryMode) {
+        Set<String> strings = new HashSet<>();
+        Set<SdkBytes> bytes = new HashSet<>();
+        AttributeValue.Type setType = null;
+        for (Object val : set) {
+            AttributeValue attributeValue = toAttributeValue(val, fallout, binaryMode);
+            if (attributeValue == null) continue;
+            AttributeValue.Type type = attributeValue.type();
+            if (setType == null) setType = type;
+            if (type != setType) return fallout.apply(set);
+            switch (type) {
+                case S:
+                    strings.add(attributeValue.s());
+                    break;
+                case N:
+                    strings.add(attributeValue.n());
+                    break;
+                case B:
+                    bytes.add(attributeValue.b());
+                    break;
+                default:
+                    return fallout.apply(set);
+            }
+        }
+        if (setType == null) return fallout.apply(set);
+        switch (setType) {
+            case S:
+                return AttributeValue.builder().ss(strings).build();
+            case N:
+                return AttributeValue.builder().ns(strings).build();
+            default:
+                return AttributeValue.builder().bs(bytes).build();
+        }
     }
 
     /**
@@ -123,35 +199,43 @@ public class DynamoDBParseUtils {
      * that is supported by fabric
      */
     protected static Object fromAttributeValue(AttributeValue value) {
+        return fromAttributeValue(value, DynamoDBNumberMode.BIG_DECIMAL, DynamoDBBinaryMode.BASE64);
+    }
+
+    /**
+     * @param value An AttributeValue object
+     * @param numberMode How numbers, including the members of number sets, are decoded
+     * @param binaryMode How binary values, including the members of binary sets, are decoded
+     * @return The object converted to an equivalent type
+     * that is supported by fabric
+     */
+    protected static Object fromAttributeValue(AttributeValue value, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
         switch (value.type()) {
             case S:
                 return value.s();
             case N:
-                BigDecimalStringConverter bigDecimalStringConverter = BigDecimalStringConverter.create();
-                return bigDecimalStringConverter.fromString(value.n());
-                // Double/Long or BigDecimal?
-//                return ParamConvertor.toNumber(value.n());
+                return numberMode.parse(value.n());
             case BOOL:
                 return value.bool();
             case B:
-                return value.b().asByteArray();
+                return binaryMode.fromSdkBytes(value.b());
             case NUL:
                 return null;
             case L:
-                List<Object> parsedList = new LinkedList<>();
-                value.l().forEach(listItem -> parsedList.add(fromAttributeValue(listItem)));
+                List<Object> parsedList = new ArrayList<>(value.l().size());
+                value.l().forEach(listItem -> parsedList.add(fromAttributeValue(listItem, numberMode, binaryMode)));
                 return parsedList;
             case M:
                 Map<String, Object> parsedMap = new LinkedHashMap<>();
-                value.m().forEach((mapKey, mapVal) -> parsedMap.put(mapKey, fromAttributeValue(mapVal)));
+                value.m().forEach((mapKey, mapVal) -> parsedMap.put(mapKey, fromAttributeValue(mapVal, numberMode, binaryMode)));
                 return parsedMap;
             case BS:
-                Set<byte[]> parsedByteSet = new HashSet<>();
-                value.bs().forEach(sdkBytes -> parsedByteSet.add(sdkBytes.asByteArray()));
+                Set<Object> parsedByteSet = new HashSet<>();
+                value.bs().forEach(sdkBytes -> parsedByteSet.add(binaryMode.fromSdkBytes(sdkBytes)));
                 return parsedByteSet;
             case NS:
-                Set<BigDecimal> parsedNumberSet = new HashSet<>();
-                value.ns().forEach(number -> parsedNumberSet.add(new BigDecimal(number)));
+                Set<Object> parsedNumberSet = new HashSet<>();
+                value.ns().forEach(number -> parsedNumberSet.add(numberMode.parse(number)));
                 return parsedNumberSet;
             case SS:
                 return new HashSet<>(value.ss());
@@ -161,30 +245,113 @@ public class DynamoDBParseUtils {
     }
 
     /**
+     * @param binaryMode How binary parameters are written
      * @param params The array of parameters to be parsed
      * @return A list of AttributeValue objects
      */
-    protected static List<AttributeValue> toAttributeValueList(Object... params) {
-        Function<Object, AttributeValue> fallout = param -> {
-            if(param instanceof Set<?>) {
-                Set<?> set = (Set<?>) param;
-                if (set.isEmpty()) return null;
-                // Skip empty sets instead of throwing exception
-                // as they're not supported by DynamoDB
-                throw new IllegalArgumentException(String.format("Unsupported type of Set: Set<%s>",
-                        set.iterator().next().getClass().getName()));
-            }
-            throw new IllegalArgumentException(String.format("Unsupported param of type %s", param.getClass().getName()));
-        };
+    protected static List<AttributeValue> toAttributeValueList(DynamoDBBinaryMode binaryMode, Object... params) {
         if (params == null || params.length == 0) {
-            return Collections.singletonList(DynamoDBParseUtils.toAttributeValue(null, fallout));
+            return Collections.singletonList(NULL_VALUE);
+        }
+        List<AttributeValue> attributeValues = new ArrayList<>(params.length);
+        for (Object param : params) {
+            AttributeValue attributeValue = DynamoDBParseUtils.toAttributeValue(param, PARAM_FALLOUT, binaryMode);
+            if (attributeValue != null) attributeValues.add(attributeValue);
+        }
+        return attributeValues;
+    }
+
+    /**
+     * @return The size of a value, following the DynamoDB item size rules
+     */
+    static long sizeOf(AttributeValue value) {
+        switch (value.type()) {
+            case S:
+                return utf8Length(value.s());
+            case N:
+                return numberSize(value.n());
+            case B:
+                return value.b().asByteBuffer().remaining();
+            case SS:
+                long strings = 0;
+                for (String s : value.ss()) strings += utf8Length(s);
+                return strings;
+            case NS:
+                long numbers = 0;
+                for (String n : value.ns()) numbers += numberSize(n);
+                return numbers;
+            case BS:
+                long bytes = 0;
+                for (SdkBytes b : value.bs()) bytes += b.asByteBuffer().remaining();
+                return bytes;
+            case M:
+                long map = 3;
+                for (Map.Entry<String, AttributeValue> entry : value.m().entrySet()) {
+                    map += 1 + utf8Length(entry.getKey()) + sizeOf(entry.getValue());
+                }
+                return map;
+            case L:
+                long list = 3;
+                for (AttributeValue element : value.l()) list += 1 + sizeOf(element);
+                return list;
+            default:
+                // BOOL and NULL
+                return 1;
+        }
+    }
+
+    /**
+     * A number takes a byte per two significant digits, plus a byte
+     */
+    private static long numberSize(String number) {
+        int first = -1;
+        int last = -1;
+        int digits = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == 'e' || c == 'E') break;
+            if (c < '0' || c > '9') continue;
+            if (c != '0') {
+                if (first < 0) first = digits;
+                last = digits;
+            }
+            digits++;
+        }
+        return first < 0 ? 1 : (last - first + 2) / 2 + 1;
+    }
+
+    static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param item An item as returned by DynamoDB
+     * @return The size of the item in bytes, following the DynamoDB item size rules, see {@link #sizeOf(AttributeValue)}
+     */
+    protected static long estimateSize(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += utf8Length(attribute.getKey()) + sizeOf(attribute.getValue());
         }
-        return Arrays.stream(params).map(param -> DynamoDBParseUtils.toAttributeValue(param, fallout))
-                .filter(Objects::nonNull).collect(Collectors.toList());
+        return size;
     }
 
     protected static boolean notEmptyAttributeValue(AttributeValue val) {
-        if(val == null) return false;
-        return !val.toBuilder().equals(AttributeValue.builder());
+        // An AttributeValue that has none of its members set has an unknown type
+        return val != null && val.type() != AttributeValue.Type.UNKNOWN_TO_SDK_VERSION;
     }
 }
@@ -0,0 +1,211 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.io.IoCommand;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+
+/**
+ * A row that decodes each attribute of the item only when it's first read, and keeps the decoded value.
+ * <p>
+ * Map (M) and list (L) attributes are decoded lazily as well, so reading a single field of a large document
+ * decodes just the path to it. Lazily decoded maps and lists are read only.
+ * Iterating the entries of a row decodes them, reading a single field doesn't.
+ */
+class DynamoDBRow extends AbstractMap<String, Object> implements IoCommand.Row {
+    private final DynamoDBRowTranslator.Layout layout;
+    private final DynamoDBNumberMode numberMode;
+    private final DynamoDBBinaryMode binaryMode;
+    // An attribute is decoded once its raw value is cleared
+    @GuardedBy("this")
+    private final AttributeValue[] raw;
+    @GuardedBy("this")
+    private final Object[] values;
+    private Set<Entry<String, Object>> entrySet;
+
+    DynamoDBRow(DynamoDBRowTranslator.Layout layout, AttributeValue[] raw, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
+        this.layout = layout;
+        this.numberMode = numberMode;
+        this.binaryMode = binaryMode;
+        this.raw = raw;
+        this.values = new Object[raw.length];
+    }
+
+    /**
+     * @return The decoded value, where maps and lists are decoded lazily
+     */
+    static Object decode(AttributeValue value, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
+        switch (value.type()) {
+            case L:
+                return new LazyList(value.l(), numberMode, binaryMode);
+            case M:
+                return new LazyMap(value.m(), numberMode, binaryMode);
+            default:
+                return DynamoDBParseUtils.fromAttributeValue(value, numberMode, binaryMode);
+        }
+    }
+
+    private synchronized Object value(int i) {
+        AttributeValue value = raw[i];
+        if (value != null) {
+            values[i] = decode(value, numberMode, binaryMode);
+            raw[i] = null;
+        }
+        return values[i];
+    }
+
+    @Override
+    public Object get(Object key) {
+        Integer i = layout.index.get(key);
+        return i == null ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return layout.index.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return layout.names.length;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int i;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < layout.names.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            int index = i++;
+                            // Iterating the entries reads the values, there's no point in deferring it any further
+                            return new SimpleImmutableEntry<>(layout.names[index], value(index));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return layout.names.length;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * A list attribute, whose elements are decoded when they're first read
+     */
+    static final class LazyList extends AbstractList<Object> implements RandomAccess {
+        @GuardedBy("this")
+        private final AttributeValue[] raw;
+        @GuardedBy("this")
+        private final Object[] values;
+        private final DynamoDBNumberMode numberMode;
+        private final DynamoDBBinaryMode binaryMode;
+
+        private LazyList(List<AttributeValue> list, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
+            this.raw = list.toArray(new AttributeValue[0]);
+            this.values = new Object[raw.length];
+            this.numberMode = numberMode;
+            this.binaryMode = binaryMode;
+        }
+
+        @Override
+        public synchronized Object get(int index) {
+            AttributeValue value = raw[index];
+            if (value != null) {
+                values[index] = decode(value, numberMode, binaryMode);
+                raw[index] = null;
+            }
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+
+    /**
+     * A map attribute, whose entries are decoded when they're first read
+     */
+    static final class LazyMap extends AbstractMap<String, Object> {
+        private final Map<String, AttributeValue> raw;
+        @GuardedBy("this")
+        private final Map<String, Object> values = new HashMap<>();
+        private final DynamoDBNumberMode numberMode;
+        private final DynamoDBBinaryMode binaryMode;
+        private Set<Entry<String, Object>> entrySet;
+
+        private LazyMap(Map<String, AttributeValue> raw, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
+            this.raw = raw;
+            this.numberMode = numberMode;
+            this.binaryMode = binaryMode;
+        }
+
+        private synchronized Object value(String key, AttributeValue value) {
+            if (values.containsKey(key)) return values.get(key);
+            Object decoded = decode(value, numberMode, binaryMode);
+            values.put(key, decoded);
+            return decoded;
+        }
+
+        @Override
+        public Object get(Object key) {
+            AttributeValue value = raw.get(key);
+            return value == null ? null : value((String) key, value);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return raw.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return raw.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Entry<String, Object>> iterator() {
+                        Iterator<Entry<String, AttributeValue>> entries = raw.entrySet().iterator();
+                        return new Iterator<Entry<String, Object>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return entries.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, Object> next() {
+                                Entry<String, AttributeValue> entry = entries.next();
+                                return new SimpleImmutableEntry<>(entry.getKey(), value(entry.getKey(), entry.getValue()));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return raw.size();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Util;
+import com.k2view.fabric.common.io.IoCommand;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ExecuteStatementRequest;
+import software.amazon.awssdk.services.dynamodb.model.ExecuteStatementResponse;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Publishes the rows of a PartiQL statement, page by page.
+ * <p>
+ * A page is requested from DynamoDB only when the subscriber has demand that the rows already received can't satisfy,
+ * so a slow subscriber never makes the publisher buffer more than a single page.
+ */
+class DynamoDBRowPublisher implements Publisher<IoCommand.Row> {
+    private final Function<ExecuteStatementRequest, CompletableFuture<ExecuteStatementResponse>> sender;
+    private final String command;
+    private final List<AttributeValue> params;
+    private final Integer limit;
+    private final Function<Map<String, AttributeValue>, IoCommand.Row> translator;
+
+    DynamoDBRowPublisher(Function<ExecuteStatementRequest, CompletableFuture<ExecuteStatementResponse>> sender,
+                         String command, List<AttributeValue> params, Integer limit,
+                         Function<Map<String, AttributeValue>, IoCommand.Row> translator) {
+        this.sender = sender;
+        this.command = command;
+        this.params = params;
+        this.limit = limit;
+        this.translator = translator;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super IoCommand.Row> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+    private class RowSubscription implements Subscription {
+        private final Subscriber<? super IoCommand.Row> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // Serializes the drain loop, so onNext is never called concurrently
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private Iterator<Map<String, AttributeValue>> items = Collections.emptyIterator();
+        private String nextToken;
+        private boolean started;
+        private Integer remaining = limit;
+        private volatile boolean fetching;
+        private volatile boolean done;
+        private volatile boolean cancelled;
+        private volatile CompletableFuture<?> inFlight;
+
+        private RowSubscription(Subscriber<? super IoCommand.Row> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested a non-positive number of rows: " + n));
+                return;
+            }
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            CompletableFuture<?> future = inFlight;
+            if (future != null) future.cancel(false);
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                try {
+                    while (!cancelled && !done && !fetching) {
+                        if (items.hasNext()) {
+                            if (demand.get() == 0) break;
+                            IoCommand.Row row = translator.apply(items.next());
+                            demand.decrementAndGet();
+                            subscriber.onNext(row);
+                        } else if (started && (nextToken == null || (remaining != null && remaining <= 0))) {
+                            done = true;
+                            subscriber.onComplete();
+                        } else if (demand.get() > 0) {
+                            fetching = true;
+                            fetchPage();
+                        } else {
+                            break;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void fetchPage() {
+            ExecuteStatementRequest.Builder requestBuilder = ExecuteStatementRequest.builder()
+                    .statement(command)
+                    .nextToken(nextToken)
+                    .limit(remaining);
+            if (!Util.isEmpty(params)) {
+                requestBuilder.parameters(params);
+            }
+            inFlight = sender.apply(requestBuilder.build()).whenComplete((response, error) -> {
+                if (error != null) {
+                    fail(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+                started = true;
+                nextToken = response.nextToken();
+                items = response.hasItems() ? response.items().iterator() : Collections.emptyIterator();
+                if (remaining != null) remaining = remaining - response.items().size();
+                fetching = false;
+                drain();
+            });
+        }
+
+        private void fail(Throwable error) {
+            if (cancelled || done) return;
+            done = true;
+            subscriber.onError(error);
+        }
+    }
+}
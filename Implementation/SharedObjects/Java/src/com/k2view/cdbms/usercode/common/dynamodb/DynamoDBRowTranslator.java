@@ -0,0 +1,90 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.io.IoCommand;
+import com.k2view.fabric.common.io.basic.IoSimpleRow;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Translates the items of a single result to rows.
+ * <p>
+ * The items of a result mostly share the same attributes, so the column layout (attribute name to column index)
+ * is interned per distinct list of attribute names, and shared by all the rows having it.
+ * A row then only allocates its values array.
+ * <p>
+ * In lazy mode, the rows keep the raw attribute values and decode each of them on first access, see {@link DynamoDBRow}.
+ * <p>
+ * Not thread safe, each result (or consumer) has a translator of its own.
+ */
+class DynamoDBRowTranslator implements Function<Map<String, AttributeValue>, IoCommand.Row> {
+    // Items beyond this number of distinct layouts get a layout of their own
+    private static final int MAX_LAYOUTS = 64;
+
+    private final boolean lazy;
+    private final DynamoDBNumberMode numberMode;
+    private final DynamoDBBinaryMode binaryMode;
+    private final Map<List<String>, Layout> layouts = new HashMap<>();
+    private Layout lastLayout;
+
+    /**
+     * @param lazy Whether the attribute values are decoded on first access, rather than when the row is created
+     * @param numberMode How number attributes are decoded
+     * @param binaryMode How binary attributes are decoded
+     */
+    DynamoDBRowTranslator(boolean lazy, DynamoDBNumberMode numberMode, DynamoDBBinaryMode binaryMode) {
+        this.lazy = lazy;
+        this.numberMode = numberMode;
+        this.binaryMode = binaryMode;
+    }
+
+    @Override
+    public IoCommand.Row apply(Map<String, AttributeValue> item) {
+        Layout layout = layoutOf(item);
+        if (lazy) {
+            return new DynamoDBRow(layout, item.values().toArray(new AttributeValue[0]), numberMode, binaryMode);
+        }
+        Object[] values = new Object[layout.names.length];
+        int i = 0;
+        for (AttributeValue value : item.values()) {
+            values[i++] = DynamoDBParseUtils.fromAttributeValue(value, numberMode, binaryMode);
+        }
+        return new IoSimpleRow(values, layout.index);
+    }
+
+    private Layout layoutOf(Map<String, AttributeValue> item) {
+        if (lastLayout != null && lastLayout.matches(item)) return lastLayout;
+        List<String> names = new ArrayList<>(item.keySet());
+        Layout layout = layouts.get(names);
+        if (layout == null) {
+            layout = new Layout(names);
+            if (layouts.size() < MAX_LAYOUTS) layouts.put(names, layout);
+        }
+        lastLayout = layout;
+        return layout;
+    }
+
+    static final class Layout {
+        final String[] names;
+        final Map<String, Integer> index;
+
+        private Layout(List<String> names) {
+            this.names = names.toArray(new String[0]);
+            Map<String, Integer> nameIndex = new LinkedHashMap<>(names.size() * 2);
+            for (int i = 0; i < this.names.length; i++) {
+                nameIndex.put(this.names[i], i);
+            }
+            this.index = Collections.unmodifiableMap(nameIndex);
+        }
+
+        private boolean matches(Map<String, AttributeValue> item) {
+            if (item.size() != names.length) return false;
+            int i = 0;
+            for (String name : item.keySet()) {
+                if (!names[i++].equals(name)) return false;
+            }
+            return true;
+        }
+    }
+}
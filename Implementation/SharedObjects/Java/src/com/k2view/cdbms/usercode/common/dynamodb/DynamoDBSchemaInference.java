@@ -0,0 +1,227 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+
+/**
+ * Infers the attributes of a table from a sample of its items.
+ * <p>
+ * The items are folded into per-attribute statistics as they're read, and aren't kept: the type histogram,
+ * the ratio of missing or NULL values, the approximate number of distinct values (a HyperLogLog sketch) and
+ * the maximal size. Each attribute takes a fixed amount of memory, and at most a given number of attributes
+ * are tracked, so the memory used doesn't depend on the number of items sampled.
+ * <p>
+ * Only the top level attributes of the items are tracked, maps and lists are counted as a single value.
+ */
+public final class DynamoDBSchemaInference {
+    private final int maxAttributes;
+    private final Map<String, AttributeStatistics> attributes = new LinkedHashMap<>();
+    private long sampledItems;
+    private long ignoredValues;
+
+    /**
+     * @param maxAttributes The maximal number of attributes to track, the values of any other attribute are ignored
+     */
+    DynamoDBSchemaInference(int maxAttributes) {
+        this.maxAttributes = Math.max(1, maxAttributes);
+    }
+
+    /**
+     * Folds an item into the statistics of its attributes
+     */
+    void add(Map<String, AttributeValue> item) {
+        sampledItems++;
+        item.forEach((name, value) -> {
+            AttributeStatistics statistics = attributes.get(name);
+            if (statistics == null) {
+                if (attributes.size() >= maxAttributes) {
+                    ignoredValues++;
+                    return;
+                }
+                statistics = new AttributeStatistics();
+                attributes.put(name, statistics);
+            }
+            statistics.add(name, value);
+        });
+    }
+
+    /**
+     * @return The number of items the statistics were inferred from
+     */
+    public long sampledItems() {
+        return sampledItems;
+    }
+
+    /**
+     * @return The statistics of each attribute, in the order the attributes were first seen
+     */
+    public Map<String, AttributeStatistics> attributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return Whether some attributes weren't tracked, having reached the maximal number of attributes
+     */
+    public boolean truncated() {
+        return ignoredValues > 0;
+    }
+
+    public final class AttributeStatistics {
+        private final long[] types = new long[Type.values().length];
+        private final DistinctSketch distinct = new DistinctSketch();
+        private long present;
+        private long maxSizeBytes;
+
+        private AttributeStatistics() {}
+
+        private void add(String name, AttributeValue value) {
+            Type type = Type.of(value);
+            types[type.ordinal()]++;
+            present++;
+            if (type != Type.NULL) distinct.add(hash(type, value));
+            maxSizeBytes = Math.max(maxSizeBytes, DynamoDBParseUtils.utf8Length(name) + DynamoDBParseUtils.sizeOf(value));
+        }
+
+        /**
+         * @return The number of values of each DynamoDB type (S, N, B, SS, NS, BS, M, L, BOOL or NULL), most frequent first
+         */
+        public Map<String, Long> types() {
+            List<Type> observed = new ArrayList<>();
+            for (Type type : Type.values()) {
+                if (types[type.ordinal()] > 0) observed.add(type);
+            }
+            observed.sort((a, b) -> Long.compare(types[b.ordinal()], types[a.ordinal()]));
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            observed.forEach(type -> histogram.put(type.name(), types[type.ordinal()]));
+            return histogram;
+        }
+
+        /**
+         * @return The most frequent type other than NULL, or NULL if all the values are NULL
+         */
+        public String dominantType() {
+            Type dominant = Type.NULL;
+            for (Type type : Type.values()) {
+                if (type != Type.NULL && types[type.ordinal()] > (dominant == Type.NULL ? 0 : types[dominant.ordinal()])) {
+                    dominant = type;
+                }
+            }
+            return dominant.name();
+        }
+
+        /**
+         * @return The ratio of the values of the dominant type out of the non NULL values
+         */
+        public double dominantTypeRatio() {
+            long nonNull = present - types[Type.NULL.ordinal()];
+            return nonNull == 0 ? 1.0 : (double) types[Type.valueOf(dominantType()).ordinal()] / nonNull;
+        }
+
+        /**
+         * @return The ratio of the sampled items in which the attribute is missing or NULL
+         */
+        public double nullRatio() {
+            return sampledItems == 0 ? 0 : (double) (sampledItems - present + types[Type.NULL.ordinal()]) / sampledItems;
+        }
+
+        /**
+         * @return The approximate number of distinct non NULL values
+         */
+        public long distinctCount() {
+            return distinct.estimate();
+        }
+
+        /**
+         * @return The maximal size of the attribute, its name and value, as DynamoDB counts it towards the item size
+         */
+        public long maxSizeBytes() {
+            return maxSizeBytes;
+        }
+    }
+
+    private enum Type {
+        S, N, B, SS, NS, BS, M, L, BOOL, NULL;
+
+        private static Type of(AttributeValue value) {
+            switch (value.type()) {
+                case S: return S;
+                case N: return N;
+                case B: return B;
+                case SS: return SS;
+                case NS: return NS;
+                case BS: return BS;
+                case M: return M;
+                case L: return L;
+                case BOOL: return BOOL;
+                default: return NULL;
+            }
+        }
+    }
+
+    private static long hash(Type type, AttributeValue value) {
+        // FNV-1a over the type and the value, mixed by the MurmurHash3 finalizer
+        long hash = 0xcbf29ce484222325L ^ type.ordinal();
+        switch (type) {
+            case S:
+                hash = fnv(hash, value.s());
+                break;
+            case N:
+                hash = fnv(hash, value.n());
+                break;
+            case B:
+                for (byte b : value.b().asByteArrayUnsafe()) hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+                break;
+            case BOOL:
+                hash = (hash ^ (value.bool() ? 1 : 0)) * 0x100000001b3L;
+                break;
+            default:
+                hash = (hash ^ value.hashCode()) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long fnv(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * A HyperLogLog sketch of 2^10 registers, with a standard error of about 3%
+     */
+    private static final class DistinctSketch {
+        private static final int PRECISION = 10;
+        private static final int REGISTERS = 1 << PRECISION;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+        private final byte[] registers = new byte[REGISTERS];
+
+        private void add(long hash) {
+            int register = (int) (hash >>> (Long.SIZE - PRECISION));
+            int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+            if (rank > registers[register]) registers[register] = (byte) rank;
+        }
+
+        private long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte rank : registers) {
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) zeros++;
+            }
+            double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                // Linear counting is more accurate for small cardinalities
+                estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }
+}
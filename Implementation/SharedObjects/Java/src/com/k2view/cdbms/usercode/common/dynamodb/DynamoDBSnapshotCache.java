@@ -0,0 +1,483 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.Log;
+import com.k2view.fabric.common.io.IoCommand;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBDefaults.*;
+
+/**
+ * An on-disk cache of table snapshots, e.g. the samples read by discovery.
+ * <p>
+ * A snapshot is stored as the raw items of the table, in LZ4-compressed blocks, so it's decoded with the
+ * number and binary modes of the session reading it. A scan is written to the cache as it's consumed,
+ * and the file replaces the previous snapshot only once the scan is complete.
+ * A snapshot is served from the cache until its TTL expires; once half of the TTL has passed,
+ * it's also read again from DynamoDB in the background, so it's usually fresh when it's next needed.
+ * <p>
+ * File layout: a magic header, then blocks of [raw length][compressed length][LZ4 block],
+ * and an end block of [0][0][number of items], which tells a complete snapshot from a partial one.
+ * <p>
+ * The snapshots hold the items of the tables, so the directories and files are created readable by their owner only,
+ * and the snapshots of each interface are kept apart by region and endpoint.
+ */
+public final class DynamoDBSnapshotCache {
+    private static final Log log = Log.a(DynamoDBSnapshotCache.class);
+    private static final byte[] MAGIC = "DDBSNAP1".getBytes(StandardCharsets.US_ASCII);
+    private static final int END_BLOCK_BYTES = 2 * Integer.BYTES + Long.BYTES;
+    // The raw size a block is compressed at
+    private static final int BLOCK_BYTES = 256 * 1024;
+    private static final String SUFFIX = ".lz4";
+
+    private static final byte TYPE_S = 1;
+    private static final byte TYPE_N = 2;
+    private static final byte TYPE_B = 3;
+    private static final byte TYPE_BOOL = 4;
+    private static final byte TYPE_NULL = 5;
+    private static final byte TYPE_M = 6;
+    private static final byte TYPE_L = 7;
+    private static final byte TYPE_SS = 8;
+    private static final byte TYPE_NS = 9;
+    private static final byte TYPE_BS = 10;
+
+    // The snapshots being read again in the background, by file
+    private static final Set<Path> refreshing = ConcurrentHashMap.newKeySet();
+    private static final ThreadPoolExecutor refresher = refresher();
+
+    private final String identifier;
+    private final Map<String, Object> params;
+    private final Path directory;
+    private final long ttlMillis;
+
+    private DynamoDBSnapshotCache(String identifier, Map<String, Object> params) {
+        this.identifier = identifier;
+        this.params = params;
+        String dir = getString(params, SNAPSHOT_CACHE_DIR, null);
+        Path root = dir != null ? Paths.get(dir) : Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_SNAPSHOT_CACHE_DIR);
+        String region = getString(params, REGION, null);
+        String endpoint = getString(params, ENDPOINT_OVERRIDE, null);
+        String location = (region == null ? "default" : region.toLowerCase()) + (endpoint == null ? "" : "@" + endpoint);
+        this.directory = root.resolve(encode(identifier == null ? "default" : identifier)).resolve(encode(location));
+        this.ttlMillis = getLong(params, SNAPSHOT_CACHE_TTL, DEFAULT_SNAPSHOT_CACHE_TTL);
+    }
+
+    /**
+     * @param identifier The interface identifier
+     * @param params The interface properties
+     * @return The snapshot cache of the interface, or null if snapshots aren't cached
+     */
+    static DynamoDBSnapshotCache of(String identifier, Map<String, Object> params) {
+        return getBoolean(params, SNAPSHOT_CACHE, DEFAULT_SNAPSHOT_CACHE) ? new DynamoDBSnapshotCache(identifier, params) : null;
+    }
+
+    private static ThreadPoolExecutor refresher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "DynamoDB-SnapshotCache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @param session The session to scan the table with, if the snapshot isn't cached
+     * @param table The table name
+     * @param key What the snapshot is of, besides the table, e.g. the sample size
+     * @param limit The number of items to read, called only when the table is scanned
+     * @return The rows of the snapshot, to be closed if not read to the end
+     */
+    public CachedRows fetch(DynamoDBIoSession session, String table, String key, IntSupplier limit) throws IOException {
+        Path file = directory.resolve(encode(table) + "-" + encode(key) + SUFFIX);
+        long age = ageMillis(file);
+        if (age < ttlMillis) {
+            try {
+                CachedRows rows = read(file, session.rowTranslator());
+                if (age >= ttlMillis / 2 && !refreshing.contains(file)) refreshInBackground(file, table, limit.getAsInt());
+                log.debug("Reading snapshot of table {} from {}", table, file);
+                return rows;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to read snapshot {}, scanning table {} instead", file, table, e);
+            }
+        }
+        return scan(session, file, table, limit.getAsInt());
+    }
+
+    /**
+     * @param permissions The POSIX permissions, e.g. rw-------
+     * @return The attribute to create a file with, or none if the file system doesn't support POSIX permissions
+     */
+    private static FileAttribute<?>[] ownerOnly(String permissions) {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) return new FileAttribute<?>[0];
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+    }
+
+    private static long ageMillis(Path file) {
+        try {
+            // The file system clock may be slightly ahead
+            return Math.max(0, System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void refreshInBackground(Path file, String table, int limit) {
+        if (!refreshing.add(file)) return;
+        refresher.execute(() -> {
+            try (DynamoDBIoSession session = new DynamoDBIoSession(identifier, params);
+                 CachedRows rows = scan(session, file, table, limit)) {
+                while (rows.hasNext()) rows.next();
+                log.debug("Refreshed snapshot of table {} in {}", table, file);
+            } catch (Exception e) {
+                log.warn("Failed to refresh snapshot of table {}", table, e);
+            } finally {
+                refreshing.remove(file);
+            }
+        });
+    }
+
+    private CachedRows scan(DynamoDBIoSession session, Path file, String table, int limit) throws IOException {
+        Files.createDirectories(directory, ownerOnly("rwx------"));
+        SnapshotWriter writer = new SnapshotWriter(file);
+        IoCommand.Result result;
+        try {
+            result = session.sampleScan(table, limit, writer::append);
+        } catch (RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+        Iterator<IoCommand.Row> rows = result.iterator();
+        return new CachedRows() {
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (done) return false;
+                boolean hasNext;
+                try {
+                    hasNext = rows.hasNext();
+                } catch (RuntimeException e) {
+                    close();
+                    throw e;
+                }
+                if (!hasNext) {
+                    done = true;
+                    writer.commit();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return rows.next();
+            }
+
+            @Override
+            public void close() {
+                if (!done) {
+                    done = true;
+                    writer.discard();
+                }
+                try {
+                    result.close();
+                } catch (Exception e) {
+                    log.debug("Failed to close the scan of table {}", table, e);
+                }
+            }
+        };
+    }
+
+    private static CachedRows read(Path file, DynamoDBRowTranslator translator) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Snapshot " + file + " is too large to map!");
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        // The mapping stays valid once the channel is closed
+        ByteBuffer buffer = mapped.duplicate();
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < MAGIC.length + END_BLOCK_BYTES) throw new IOException("Snapshot " + file + " is truncated!");
+        buffer.get(magic);
+        ByteBuffer end = mapped.duplicate();
+        end.position(end.limit() - END_BLOCK_BYTES);
+        if (!Arrays.equals(magic, MAGIC) || end.getInt() != 0 || end.getInt() != 0) {
+            throw new IOException("Snapshot " + file + " is incomplete!");
+        }
+        LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+        return new CachedRows() {
+            private ByteBuffer block = ByteBuffer.allocate(0);
+
+            @Override
+            public boolean hasNext() {
+                while (!block.hasRemaining()) {
+                    int rawLength = buffer.getInt();
+                    int compressedLength = buffer.getInt();
+                    if (rawLength == 0) {
+                        buffer.position(buffer.position() - 2 * Integer.BYTES);
+                        return false;
+                    }
+                    if (block.capacity() < rawLength) block = ByteBuffer.allocate(Math.max(rawLength, BLOCK_BYTES));
+                    int decompressed = decompressor.decompress(buffer, buffer.position(), compressedLength, block, 0, rawLength);
+                    buffer.position(buffer.position() + compressedLength);
+                    block.clear();
+                    block.limit(decompressed);
+                }
+                return true;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return translator.apply(readItem(block));
+            }
+
+            @Override
+            public void close() {
+                block = ByteBuffer.allocate(0);
+            }
+        };
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The rows of a snapshot, read from the cache or from a scan
+     */
+    public interface CachedRows extends Iterator<Map<String, Object>>, AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Writes the items of a scan to a temporary file, which replaces the snapshot once the scan is complete
+     */
+    private static class SnapshotWriter {
+        private final Path file;
+        private final Path temp;
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + BLOCK_BYTES / 4);
+        private final DataOutputStream blockData = new DataOutputStream(block);
+        private final DataOutputStream out;
+        private byte[] compressed = new byte[0];
+        private long items;
+        private boolean failed;
+
+        private SnapshotWriter(Path file) throws IOException {
+            this.file = file;
+            this.temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp", ownerOnly("rw-------"));
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+            out.write(MAGIC);
+        }
+
+        private void append(Map<String, AttributeValue> item) {
+            if (failed) return;
+            try {
+                writeItem(blockData, item);
+                items++;
+                if (block.size() >= BLOCK_BYTES) flushBlock();
+            } catch (IOException e) {
+                log.warn("Failed to write snapshot {}, it's not cached", file, e);
+                discard();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size() == 0) return;
+            byte[] raw = block.toByteArray();
+            int maxLength = compressor.maxCompressedLength(raw.length);
+            if (compressed.length < maxLength) compressed = new byte[maxLength];
+            int length = compressor.compress(raw, 0, raw.length, compressed, 0, maxLength);
+            out.writeInt(raw.length);
+            out.writeInt(length);
+            out.write(compressed, 0, length);
+            block.reset();
+        }
+
+        private void commit() {
+            if (failed) return;
+            try {
+                flushBlock();
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeLong(items);
+                out.close();
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Failed to write snapshot {}, it's not cached", file, e);
+                discard();
+            }
+        }
+
+        private void discard() {
+            failed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleted anyway
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                log.debug("Failed to delete {}", temp, e);
+            }
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, Map<String, AttributeValue> item) throws IOException {
+        out.writeInt(item.size());
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            writeString(out, attribute.getKey());
+            writeValue(out, attribute.getValue());
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, AttributeValue value) throws IOException {
+        switch (value.type()) {
+            case S:
+                out.writeByte(TYPE_S);
+                writeString(out, value.s());
+                break;
+            case N:
+                out.writeByte(TYPE_N);
+                writeString(out, value.n());
+                break;
+            case B:
+                out.writeByte(TYPE_B);
+                writeBytes(out, value.b());
+                break;
+            case BOOL:
+                out.writeByte(TYPE_BOOL);
+                out.writeBoolean(value.bool());
+                break;
+            case NUL:
+                out.writeByte(TYPE_NULL);
+                break;
+            case M:
+                out.writeByte(TYPE_M);
+                writeItem(out, value.m());
+                break;
+            case L:
+                out.writeByte(TYPE_L);
+                out.writeInt(value.l().size());
+                for (AttributeValue element : value.l()) writeValue(out, element);
+                break;
+            case SS:
+                out.writeByte(TYPE_SS);
+                out.writeInt(value.ss().size());
+                for (String element : value.ss()) writeString(out, element);
+                break;
+            case NS:
+                out.writeByte(TYPE_NS);
+                out.writeInt(value.ns().size());
+                for (String element : value.ns()) writeString(out, element);
+                break;
+            case BS:
+                out.writeByte(TYPE_BS);
+                out.writeInt(value.bs().size());
+                for (SdkBytes element : value.bs()) writeBytes(out, element);
+                break;
+            default:
+                throw new IOException("Unsupported attribute type " + value.type() + "!");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream out, SdkBytes value) throws IOException {
+        byte[] bytes = value.asByteArrayUnsafe();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Map<String, AttributeValue> readItem(ByteBuffer in) {
+        int size = in.getInt();
+        Map<String, AttributeValue> item = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            item.put(readString(in), readValue(in));
+        }
+        return item;
+    }
+
+    private static AttributeValue readValue(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case TYPE_S:
+                return AttributeValue.builder().s(readString(in)).build();
+            case TYPE_N:
+                return AttributeValue.builder().n(readString(in)).build();
+            case TYPE_B:
+                return AttributeValue.builder().b(readBytes(in)).build();
+            case TYPE_BOOL:
+                return in.get() != 0 ? DynamoDBParseUtils.TRUE_VALUE : DynamoDBParseUtils.FALSE_VALUE;
+            case TYPE_NULL:
+                return DynamoDBParseUtils.NULL_VALUE;
+            case TYPE_M:
+                return AttributeValue.builder().m(readItem(in)).build();
+            case TYPE_L: {
+                int size = in.getInt();
+                List<AttributeValue> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) list.add(readValue(in));
+                return AttributeValue.builder().l(list).build();
+            }
+            case TYPE_SS:
+            case TYPE_NS: {
+                int size = in.getInt();
+                List<String> set = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) set.add(readString(in));
+                return type == TYPE_SS ? AttributeValue.builder().ss(set).build() : AttributeValue.builder().ns(set).build();
+            }
+            case TYPE_BS: {
+                int size = in.getInt();
+                List<SdkBytes> set = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) set.add(readBytes(in));
+                return AttributeValue.builder().bs(set).build();
+            }
+            default:
+                throw new IllegalStateException("Corrupted snapshot, unknown attribute type " + type + "!");
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static SdkBytes readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return SdkBytes.fromByteArrayUnsafe(bytes);
+    }
+}
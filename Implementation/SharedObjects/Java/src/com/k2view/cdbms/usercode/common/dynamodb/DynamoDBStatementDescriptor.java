@@ -0,0 +1,178 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A PartiQL command, parsed once: its statement kind, target table and LIMIT.
+ * <p>
+ * DynamoDB doesn't accept a LIMIT clause in PartiQL, so the limit is stripped from the command
+ * and sent as the request's limit instead. It's either a literal, or the last parameter of the command.
+ * <p>
+ * Descriptors are cached by command text, so executing the same command again doesn't parse it again.
+ * The least recently used commands are evicted once the cache is full.
+ */
+final class DynamoDBStatementDescriptor {
+    private static final int MAX_CACHED_COMMANDS = 4096;
+    @GuardedBy("cache")
+    private static final Map<String, DynamoDBStatementDescriptor> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DynamoDBStatementDescriptor> eldest) {
+            return size() > MAX_CACHED_COMMANDS;
+        }
+    };
+
+    private static final Pattern LIMIT = Pattern.compile("(.*)\\blimit\\b\\s*(\\d+|\\?)\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TABLE = Pattern.compile("\\b(?:from|into|update)\\s+(?:\"([^\"]+)\"|([\\w\\-]+))", Pattern.CASE_INSENSITIVE);
+
+    enum Kind {
+        SELECT, INSERT, UPDATE, DELETE, OTHER
+    }
+
+    /**
+     * The command as given, sent as is in batches and transactions
+     */
+    final String command;
+    /**
+     * The command without its parallel scan hint and LIMIT
+     */
+    final String commandWithoutLimit;
+    final Kind kind;
+    /**
+     * The table the command reads from or writes to, or null if it can't be found
+     */
+    final String table;
+    /**
+     * Whether the command has a parallel scan hint, and the number of segments in the hint (if any)
+     */
+    final boolean parallelScanHint;
+    final Integer parallelScanSegments;
+    /**
+     * The table name if the command reads a whole table, otherwise null
+     */
+    final String fullTableSelect;
+    /**
+     * The command, if it's simple enough to be executed with the native key-value API, otherwise null
+     */
+    final DynamoDBKeyValueStatement keyValue;
+    private final Integer literalLimit;
+    private final boolean parameterLimit;
+
+    private DynamoDBStatementDescriptor(String command) {
+        this.command = command;
+        String statement = command;
+        DynamoDBParallelScan.Hint hint = DynamoDBParallelScan.hint(command);
+        if (hint != null) statement = hint.command;
+        this.parallelScanHint = hint != null;
+        this.parallelScanSegments = hint == null ? null : hint.segments;
+
+        Matcher matcher = LIMIT.matcher(statement);
+        if (matcher.find()) {
+            String limit = matcher.group(2);
+            this.parameterLimit = limit.equals("?");
+            this.literalLimit = parameterLimit ? null : Integer.parseInt(limit);
+            statement = matcher.group(1);
+        } else {
+            this.parameterLimit = false;
+            this.literalLimit = null;
+        }
+        this.commandWithoutLimit = statement;
+        this.kind = kindOf(statement);
+        Matcher tableMatcher = TABLE.matcher(statement);
+        this.table = tableMatcher.find() ?
+                tableMatcher.group(1) != null ? tableMatcher.group(1) : tableMatcher.group(2)
+                : null;
+        this.fullTableSelect = kind == Kind.SELECT ? DynamoDBParallelScan.fullTableSelect(statement) : null;
+        // Only a Query has a limit
+        boolean hasLimit = parameterLimit || literalLimit != null;
+        this.keyValue = hint == null && (kind == Kind.SELECT || !hasLimit) ?
+                DynamoDBKeyValueStatement.parse(kind, statement)
+                : null;
+    }
+
+    /**
+     * @param command A PartiQL command
+     * @return The parsed command, from the cache if it was already parsed
+     */
+    static DynamoDBStatementDescriptor of(String command) {
+        if (command == null) {
+            throw new IllegalArgumentException("The PartiQL command must not be null!");
+        }
+        DynamoDBStatementDescriptor descriptor = cached(command);
+        if (descriptor != null) return descriptor;
+        // Parsed outside of the lock, a command parsed concurrently is cached once
+        descriptor = parse(command);
+        synchronized (cache) {
+            DynamoDBStatementDescriptor existing = cache.putIfAbsent(command, descriptor);
+            return existing != null ? existing : descriptor;
+        }
+    }
+
+    /**
+     * For the statements the connector builds or passes on, rather than the commands it's given,
+     * e.g. the UPDATEs merged by {@link DynamoDBWriteCoalescing}, which would otherwise evict the commands of the user
+     *
+     * @param command A PartiQL command
+     * @return The parsed command, from the cache if it was already parsed, otherwise parsed without being cached
+     */
+    static DynamoDBStatementDescriptor lookup(String command) {
+        if (command == null) {
+            throw new IllegalArgumentException("The PartiQL command must not be null!");
+        }
+        DynamoDBStatementDescriptor descriptor = cached(command);
+        return descriptor != null ? descriptor : parse(command);
+    }
+
+    private static DynamoDBStatementDescriptor cached(String command) {
+        synchronized (cache) {
+            return cache.get(command);
+        }
+    }
+
+    /**
+     * @param command A PartiQL command
+     * @return The parsed command, bypassing the cache
+     */
+    static DynamoDBStatementDescriptor parse(String command) {
+        return new DynamoDBStatementDescriptor(command);
+    }
+
+    private static Kind kindOf(String statement) {
+        int start = 0;
+        while (start < statement.length() && Character.isWhitespace(statement.charAt(start))) start++;
+        for (Kind kind : Kind.values()) {
+            String keyword = kind.name();
+            if (kind != Kind.OTHER && statement.regionMatches(true, start, keyword, 0, keyword.length())) {
+                return kind;
+            }
+        }
+        return Kind.OTHER;
+    }
+
+    /**
+     * @param parameters The parameters of an execution of the command
+     * @return The parameters to send, i.e. without the limit parameter
+     */
+    List<AttributeValue> parameters(List<AttributeValue> parameters) {
+        if (!parameterLimit || parameters == null || parameters.isEmpty()) return parameters;
+        return parameters.subList(0, parameters.size() - 1);
+    }
+
+    /**
+     * @param parameters The parameters of an execution of the command
+     * @return The LIMIT of the execution, or null if the command has no limit
+     */
+    Integer limit(List<AttributeValue> parameters) {
+        if (!parameterLimit) return literalLimit;
+        if (parameters == null || parameters.isEmpty()) {
+            throw new IllegalArgumentException("Missing the LIMIT parameter of the command: " + command);
+        }
+        return Integer.parseInt(parameters.get(parameters.size() - 1).n());
+    }
+}
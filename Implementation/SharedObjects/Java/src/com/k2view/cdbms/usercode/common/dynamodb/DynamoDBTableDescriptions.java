@@ -0,0 +1,179 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The descriptions of the tables of an interface, cached for a TTL and shared by its sessions,
+ * its capacity limiter and discovery.
+ * <p>
+ * Tables can be described concurrently, by a bounded pool of threads, at a limited rate of DescribeTable requests,
+ * e.g. when crawling an account with many tables. Concurrent misses of the same table may describe it more than once.
+ * A table that fails to be described (e.g. without the DescribeTable permission) fails again, without being described,
+ * until the TTL expires.
+ */
+class DynamoDBTableDescriptions {
+    private final Supplier<DynamoDbClient> dbClient;
+    private final String identifier;
+    private final long ttlNanos;
+    private final int concurrency;
+    // The time between two DescribeTable requests, 0 if they aren't limited
+    private final long intervalNanos;
+    private final AtomicLong nextRequestNanos = new AtomicLong(System.nanoTime());
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // The tables described in the background for cachedKeySchema()
+    private final Set<String> describing = ConcurrentHashMap.newKeySet();
+    private volatile ExecutorService executor;
+
+    /**
+     * @param dbClient The client to describe the tables with
+     * @param identifier The interface identifier, naming the threads
+     * @param ttlMillis The time a description is cached for
+     * @param concurrency The maximal number of concurrent DescribeTable requests of {@link #describeAsync(String)}
+     * @param requestsPerSecond The maximal rate of DescribeTable requests, 0 for no limit
+     */
+    DynamoDBTableDescriptions(Supplier<DynamoDbClient> dbClient, String identifier, long ttlMillis, int concurrency, int requestsPerSecond) {
+        this.dbClient = dbClient;
+        this.identifier = identifier;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+        this.concurrency = Math.max(1, concurrency);
+        this.intervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+    }
+
+    /**
+     * @param table The table name
+     * @return The description of the table, described again once its TTL expires
+     */
+    TableDescription describe(String table) {
+        return entry(table).description();
+    }
+
+    /**
+     * @param table The table name
+     * @return The description of the table, read in the background unless it's cached
+     */
+    CompletableFuture<TableDescription> describeAsync(String table) {
+        Entry entry = entries.get(table);
+        if (entry != null && !entry.expired()) return CompletableFuture.supplyAsync(entry::description, Runnable::run);
+        return CompletableFuture.supplyAsync(() -> describe(table), executor());
+    }
+
+    /**
+     * @param table The table name
+     * @return The key schema of the table
+     */
+    KeySchema keySchema(String table) {
+        return entry(table).keySchema();
+    }
+
+    /**
+     * Never waits for a DescribeTable request, e.g. on the write path
+     *
+     * @param table The table name
+     * @return The key schema of the table if it's cached, even if expired, otherwise null while it's described in the background
+     */
+    KeySchema cachedKeySchema(String table) {
+        Entry entry = entries.get(table);
+        if ((entry == null || entry.expired()) && describing.add(table)) {
+            CompletableFuture.runAsync(() -> entry(table), executor())
+                    .whenComplete((ignored, error) -> describing.remove(table));
+        }
+        return entry == null || entry.failure != null ? null : entry.keySchema();
+    }
+
+    private Entry entry(String table) {
+        Entry entry = entries.get(table);
+        if (entry != null && !entry.expired()) return entry;
+        acquire();
+        try {
+            entry = new Entry(dbClient.get().describeTable(DescribeTableRequest.builder().tableName(table).build()).table(), null);
+        } catch (DynamoDbException e) {
+            entry = new Entry(null, e);
+        }
+        entries.put(table, entry);
+        return entry;
+    }
+
+    /**
+     * Waits for the next DescribeTable request slot
+     */
+    private void acquire() {
+        if (intervalNanos == 0) return;
+        long now = System.nanoTime();
+        long slot = Math.max(now, nextRequestNanos.getAndAccumulate(now, (next, time) -> Math.max(next, time) + intervalNanos));
+        if (slot <= now) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(slot - now);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to describe a table", e);
+        }
+    }
+
+    private ExecutorService executor() {
+        ExecutorService pool = executor;
+        if (pool == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    AtomicInteger threadNumber = new AtomicInteger();
+                    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "DynamoDB-Describe-" + identifier + "-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    threadPool.allowCoreThreadTimeOut(true);
+                    executor = threadPool;
+                }
+                pool = executor;
+            }
+        }
+        return pool;
+    }
+
+    void close() {
+        if (executor != null) executor.shutdown();
+    }
+
+    private final class Entry {
+        private final TableDescription description;
+        // Thrown instead of describing the table again until the entry expires
+        private final DynamoDbException failure;
+        private final long describedAt = System.nanoTime();
+        // Derived on first use
+        private volatile KeySchema keySchema;
+
+        private Entry(TableDescription description, DynamoDbException failure) {
+            this.description = description;
+            this.failure = failure;
+        }
+
+        private TableDescription description() {
+            if (failure != null) throw failure;
+            return description;
+        }
+
+        private KeySchema keySchema() {
+            KeySchema schema = keySchema;
+            if (schema == null) {
+                schema = KeySchema.of(description());
+                keySchema = schema;
+            }
+            return schema;
+        }
+
+        private boolean expired() {
+            return System.nanoTime() - describedAt >= ttlNanos;
+        }
+    }
+}
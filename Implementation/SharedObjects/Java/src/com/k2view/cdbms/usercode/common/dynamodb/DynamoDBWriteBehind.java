@@ -0,0 +1,135 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.BatchWrite;
+import com.k2view.fabric.common.Log;
+import software.amazon.awssdk.services.dynamodb.model.BatchStatementRequest;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Writes the statements a session executes outside of a transaction in the background, grouped into batches.
+ * <p>
+ * A write returns as soon as it's added to the current batch. Full batches are sent by the batch pipelines,
+ * up to a fixed number in flight, and the writer waits when they're all in flight, so the writes buffered are bounded.
+ * Partial batches are sent on a timer, on {@link #flush()} and on {@link #close()}. The timer is shared by all
+ * the sessions, so it never waits: the partial batches of a session that has all its batches in flight
+ * are left for the next flush.
+ * <p>
+ * Writes that fail are given to the failure handler of the session, or logged, and don't fail the writer.
+ */
+class DynamoDBWriteBehind implements AutoCloseable {
+    private static volatile ScheduledExecutorService timer;
+
+    private final Log log = Log.a(this.getClass());
+
+    private final DynamoDBBatchPipeline<BatchStatementRequest> statements;
+    private final DynamoDBBatchPipeline<BatchWrite> writes;
+    private final Function<BatchStatementRequest, Object> statementKey;
+    private final ScheduledFuture<?> flushTask;
+    private volatile BiConsumer<String, Throwable> failureHandler;
+
+    /**
+     * @param statementKey The item a statement writes, or null if it isn't known
+     * @param coalescing Coalesces the writes of a batch to the same item, or null
+     * @param flushIntervalMillis The time between the flushes of the partial batches, 0 to flush them only on demand
+     */
+    DynamoDBWriteBehind(int batchSize, int maxInFlight, int maxRetries, DynamoDBAdaptiveBackoff backoff,
+                        Function<BatchStatementRequest, Object> statementKey,
+                        Function<List<BatchStatementRequest>, CompletableFuture<DynamoDBBatchPipeline.Outcome<BatchStatementRequest>>> sendBatch,
+                        Function<List<BatchWrite>, CompletableFuture<DynamoDBBatchPipeline.Outcome<BatchWrite>>> sendBatchWrite,
+                        DynamoDBWriteCoalescing coalescing, long flushIntervalMillis) {
+        this.statementKey = statementKey;
+        DynamoDBWriteOrder order = new DynamoDBWriteOrder();
+        this.statements = new DynamoDBBatchPipeline<>(batchSize, maxInFlight, maxRetries, backoff,
+                order, statementKey, DynamoDBIoSession::statementTable, coalescing == null ? null : coalescing::coalesce, sendBatch,
+                (statement, error) -> failed(statement.statement() + " " + statement.parameters(), error));
+        this.writes = new DynamoDBBatchPipeline<>(batchSize, maxInFlight, maxRetries, backoff,
+                order, BatchWrite::itemKey, write -> write.table, coalescing == null ? null : coalescing::coalesce, sendBatchWrite,
+                (write, error) -> failed(write.toString(), error));
+        this.flushTask = flushIntervalMillis > 0 ?
+                timer().scheduleWithFixedDelay(this::flushInBackground, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    private static ScheduledExecutorService timer() {
+        ScheduledExecutorService scheduler = timer;
+        if (scheduler == null) {
+            synchronized (DynamoDBWriteBehind.class) {
+                if (timer == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "DynamoDB-WriteBehind-Flush");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    timer = executor;
+                }
+                scheduler = timer;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * @param failureHandler Given the statement and error of each write that failed, or null to log them
+     */
+    void onFailure(BiConsumer<String, Throwable> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    void add(BatchStatementRequest statement) {
+        // A buffered write of the same item through the other pipeline is sent first, so the writes stay in order
+        Object key = statementKey.apply(statement);
+        writes.flushBefore(key, DynamoDBIoSession.statementTable(statement));
+        statements.add(statement, key);
+    }
+
+    void add(BatchWrite write) {
+        statements.flushBefore(write.itemKey(), write.table);
+        writes.add(write);
+    }
+
+    /**
+     * Sends the partial batches, and waits for all the writes in flight
+     */
+    void flush() {
+        statements.flush();
+        writes.flush();
+        try {
+            statements.await();
+        } finally {
+            writes.await();
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            statements.tryFlush();
+            writes.tryFlush();
+        } catch (RuntimeException e) {
+            log.warn("Failed to flush the write-behind batches", e);
+        }
+    }
+
+    private void failed(String statement, Throwable error) {
+        BiConsumer<String, Throwable> handler = failureHandler;
+        if (handler == null) {
+            log.error("Write-behind statement failed: {}", statement, error);
+            return;
+        }
+        try {
+            handler.accept(statement, error);
+        } catch (RuntimeException e) {
+            log.error("Write-behind failure handler failed on statement: {}", statement, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flushTask != null) flushTask.cancel(false);
+        flush();
+    }
+}
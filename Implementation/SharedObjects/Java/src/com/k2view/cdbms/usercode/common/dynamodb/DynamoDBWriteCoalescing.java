@@ -0,0 +1,45 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.BatchWrite;
+import software.amazon.awssdk.services.dynamodb.model.BatchStatementRequest;
+
+/**
+ * Coalesces the writes of a batch to the same item into a single write.
+ * <p>
+ * A batch request can't write the same item twice, so a write to an item already written by the batch
+ * being filled is either coalesced with the earlier write, or starts a new batch, which is sent only once the earlier
+ * batch is done (see {@link DynamoDBWriteOrder}). Writes are coalesced only
+ * when the single write leaves the item as the two writes would, one after the other:
+ * <ul>
+ *     <li>A DELETE absorbs any earlier write of the item</li>
+ *     <li>Two UPDATEs that only SET attributes are merged, the later value of an attribute set by both wins</li>
+ * </ul>
+ * A PartiQL INSERT fails if the item exists, so it isn't coalesced with an earlier write of the item.
+ * Statements whose item can't be told from the statement (e.g. with conditions other than the key) pass through.
+ */
+final class DynamoDBWriteCoalescing {
+
+    /**
+     * @param earlier A statement of the batch
+     * @param later A later statement of the same item
+     * @return The single statement that writes both, or null if they can't be coalesced
+     */
+    BatchStatementRequest coalesce(BatchStatementRequest earlier, BatchStatementRequest later) {
+        DynamoDBKeyValueStatement earlierStatement = DynamoDBStatementDescriptor.lookup(earlier.statement()).keyValue;
+        DynamoDBKeyValueStatement laterStatement = DynamoDBStatementDescriptor.lookup(later.statement()).keyValue;
+        if (laterStatement.kind == DynamoDBStatementDescriptor.Kind.DELETE) {
+            return later;
+        }
+        if (earlierStatement.kind == DynamoDBStatementDescriptor.Kind.UPDATE && laterStatement.kind == DynamoDBStatementDescriptor.Kind.UPDATE) {
+            return earlierStatement.mergeUpdate(earlier.parameters(), laterStatement, later.parameters());
+        }
+        return null;
+    }
+
+    /**
+     * @return The later write, since only a DELETE is written natively in a batch
+     */
+    BatchWrite coalesce(BatchWrite earlier, BatchWrite later) {
+        return later;
+    }
+}
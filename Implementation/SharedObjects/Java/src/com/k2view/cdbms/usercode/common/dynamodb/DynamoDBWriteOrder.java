@@ -0,0 +1,82 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the batches that write the same items in the order they're sent, while the others run concurrently.
+ * <p>
+ * A batch waits for the earlier batches in flight that write any of its items, including their retries.
+ * The item of a write is known from its key parameters; any other write is ordered after all the earlier batches
+ * of its table, and before all the later ones. A write of an unknown table is ordered after and before all the others.
+ * <p>
+ * It's shared by the batch pipelines of a session, so the order holds across the pipelines as well.
+ */
+final class DynamoDBWriteOrder {
+    private final Map<Object, CompletableFuture<Void>> lastByItem = new HashMap<>();
+    private final Map<String, CompletableFuture<Void>> lastUnknownByTable = new HashMap<>();
+    private final Map<String, Set<CompletableFuture<Void>>> inFlightByTable = new HashMap<>();
+    private final Set<CompletableFuture<Void>> inFlight = new HashSet<>();
+    private CompletableFuture<Void> lastUnknownTable;
+
+    /**
+     * Registers a batch, in the order the batches are sent
+     *
+     * @param items The items the batch writes, as {@link DynamoDBKeyValueStatement.BatchWrite#itemKey()}
+     * @param tables The tables of the writes of known items
+     * @param unknownTables The tables of the writes whose item isn't known, null for a write of an unknown table
+     * @param done Completed once the batch is done, including its retries
+     * @return Completed once all the earlier batches the batch is ordered after are done
+     */
+    synchronized CompletableFuture<Void> register(Collection<Object> items, Collection<String> tables,
+                                                  Collection<String> unknownTables, CompletableFuture<Void> done) {
+        Set<CompletableFuture<Void>> dependencies = new HashSet<>();
+        if (lastUnknownTable != null) dependencies.add(lastUnknownTable);
+        boolean unknownTable = unknownTables.contains(null);
+        if (unknownTable) {
+            dependencies.addAll(inFlight);
+        }
+        items.forEach(item -> addIfPresent(dependencies, lastByItem.get(item)));
+        tables.forEach(table -> addIfPresent(dependencies, lastUnknownByTable.get(table)));
+        unknownTables.forEach(table -> {
+            if (table != null) dependencies.addAll(inFlightByTable.getOrDefault(table, Collections.emptySet()));
+        });
+
+        inFlight.add(done);
+        items.forEach(item -> lastByItem.put(item, done));
+        tables.forEach(table -> inFlightByTable.computeIfAbsent(table, t -> new HashSet<>()).add(done));
+        unknownTables.forEach(table -> {
+            if (table == null) return;
+            lastUnknownByTable.put(table, done);
+            inFlightByTable.computeIfAbsent(table, t -> new HashSet<>()).add(done);
+        });
+        if (unknownTable) lastUnknownTable = done;
+        // Only the batches in flight are kept, so a long-lived session doesn't hold on to every item it wrote
+        done.whenComplete((ignored, error) -> release(items, tables, unknownTables, done));
+        return CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0]));
+    }
+
+    private synchronized void release(Collection<Object> items, Collection<String> tables, Collection<String> unknownTables,
+                                      CompletableFuture<Void> done) {
+        inFlight.remove(done);
+        items.forEach(item -> lastByItem.remove(item, done));
+        tables.forEach(table -> removeInFlight(table, done));
+        unknownTables.forEach(table -> {
+            if (table == null) return;
+            lastUnknownByTable.remove(table, done);
+            removeInFlight(table, done);
+        });
+        if (lastUnknownTable == done) lastUnknownTable = null;
+    }
+
+    private void removeInFlight(String table, CompletableFuture<Void> done) {
+        Set<CompletableFuture<Void>> batches = inFlightByTable.get(table);
+        if (batches == null) return;
+        batches.remove(done);
+        if (batches.isEmpty()) inFlightByTable.remove(table);
+    }
+
+    private static void addIfPresent(Set<CompletableFuture<Void>> dependencies, CompletableFuture<Void> dependency) {
+        if (dependency != null) dependencies.add(dependency);
+    }
+}
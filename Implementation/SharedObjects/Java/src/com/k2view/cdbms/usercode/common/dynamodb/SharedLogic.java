@@ -32,6 +32,10 @@ public class SharedLogic {
 	public static IoProvider dynamoDBIoProvider() {
 		return new DynamoDBIoProvider();	
 	}
+
+	public static Map<String, Object> dynamoDBMetrics() {
+		return DynamoDBMetrics.snapshot();
+	}
 	
 
 }
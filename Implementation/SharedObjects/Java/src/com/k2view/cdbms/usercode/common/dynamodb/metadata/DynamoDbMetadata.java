@@ -1,6 +1,9 @@
 package com.k2view.cdbms.usercode.common.dynamodb.metadata;
 
 import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBIoSession;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBNumberMode;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBSchemaInference;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBSchemaInference.AttributeStatistics;
 import com.k2view.discovery.schema.io.IoMetadata;
 import com.k2view.discovery.schema.io.SnapshotDataset;
 import com.k2view.discovery.schema.model.Category;
@@ -10,13 +13,16 @@ import com.k2view.discovery.schema.model.types.BytesClass;
 import com.k2view.discovery.schema.model.types.StringClass;
 import com.k2view.discovery.schema.model.types.UnknownClass;
 import com.k2view.discovery.schema.utils.SampleSize;
+import com.k2view.fabric.common.Log;
 import com.k2view.fabric.common.Util;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
 
 import static com.k2view.discovery.crawl.JdbcIoMetadata.EXCLUDE_LIST;
 import static com.k2view.discovery.crawl.JdbcIoMetadata.INCLUDE_LIST;
@@ -27,13 +33,14 @@ public class DynamoDbMetadata implements IoMetadata {
     private static final String ENTITY_NAME = "entityName";
     private static final String CRAWLER = "Crawler";
 
+    private final Log log = Log.a(this.getClass());
     private final String interfaceId;
     private final DynamoDbClient dbClient;
     private final DynamoDBIoSession session;
     private boolean selfCreatedSession;
 
-    private List<String> tablesInclude = new LinkedList<>();
-    private List<String> tablesExclude = new LinkedList<>();
+    private final TableFilter tablesInclude;
+    private final TableFilter tablesExclude;
 
     public DynamoDbMetadata(String interfaceIdentifier, DynamoDbClient dbClient, Map<String, Object> props) {
         this(interfaceIdentifier, new DynamoDBIoSession(), dbClient, props);
@@ -44,12 +51,8 @@ public class DynamoDbMetadata implements IoMetadata {
     public DynamoDbMetadata(String interfaceIdentifier, DynamoDBIoSession dynamoDBIoSession, DynamoDbClient dbClient, Map<String, Object> props) {
         this.interfaceId=interfaceIdentifier;
         this.dbClient=dbClient;
-        if (!Util.isEmpty(props) && props.containsKey(EXCLUDE_LIST)) {
-            tablesExclude = (List<String>) props.get(EXCLUDE_LIST);
-        }
-        if (!Util.isEmpty(props) && props.containsKey(INCLUDE_LIST)) {
-            tablesInclude = (List<String>) props.get(INCLUDE_LIST);
-        }
+        this.tablesExclude = TableFilter.of(Util.isEmpty(props) ? null : (List<String>) props.get(EXCLUDE_LIST));
+        this.tablesInclude = TableFilter.of(Util.isEmpty(props) ? null : (List<String>) props.get(INCLUDE_LIST));
         this.session = dynamoDBIoSession;
     }
 
@@ -83,6 +86,8 @@ public class DynamoDbMetadata implements IoMetadata {
     }
 
     private void addDatasetNodes(ConcreteSchemaNode schemaNode) {
+        // Tables are described in the background while the next pages of names are listed, and added in the listed order
+        Map<String, CompletableFuture<TableDescription>> tables = new LinkedHashMap<>();
         String lastEvaluatedTableName = null;
         do {
             ListTablesRequest.Builder requestBuilder = ListTablesRequest.builder();
@@ -90,22 +95,29 @@ public class DynamoDbMetadata implements IoMetadata {
                 requestBuilder.exclusiveStartTableName(lastEvaluatedTableName);
             }
             ListTablesResponse response = dbClient.listTables(requestBuilder.build());
-            List<String> tableNames = response.tableNames();
-            if (!Util.isEmpty(tablesExclude)) {
-                tableNames = tableNames.stream().filter(table -> !tablesExclude.contains(table)).collect(Collectors.toList());
-            } else if (!Util.isEmpty(tablesInclude)) {
-                tableNames = tableNames.stream().filter(table -> tablesInclude.contains(table)).collect(Collectors.toList());
+            for (String table : response.tableNames()) {
+                boolean included = !tablesExclude.isEmpty() ? !tablesExclude.matches(table)
+                        : tablesInclude.isEmpty() || tablesInclude.matches(table);
+                if (included) tables.put(table, session.describeTableAsync(table));
             }
-            tableNames.forEach(table -> addDatasetNode(table, schemaNode));
             lastEvaluatedTableName = response.lastEvaluatedTableName();
         } while (lastEvaluatedTableName != null);
+        tables.forEach((table, description) -> addDatasetNode(table, schemaNode, join(description)));
+    }
+
+    private static TableDescription join(CompletableFuture<TableDescription> description) {
+        try {
+            return description.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
     }
 
     private String idPrefix(String prefix, ConcreteNode node) {
         return prefix + ":" + node.getId();
     }
 
-    private void addDatasetNode(String table, ConcreteSchemaNode schemaNode) {
+    private void addDatasetNode(String table, ConcreteSchemaNode schemaNode, TableDescription tableDescription) {
         ConcreteClassNode datasetClassNode = new ConcreteClassNode(table);
         datasetClassNode.addProperty("class:" + datasetClassNode.getId(), ENTITY_NAME, "Name of the table", table, 1.0, CRAWLER, "");
 
@@ -114,16 +126,24 @@ public class DynamoDbMetadata implements IoMetadata {
         datasetNode.addProperty(this.idPrefix(DATASET, datasetNode), ENTITY_NAME, "Name of the table", table, 1.0, CRAWLER, "");
         schemaNode.contains(datasetNode, 1.0, CRAWLER, "");
 
-        DescribeTableRequest describeTableRequest = DescribeTableRequest
-                .builder()
-                .tableName(table)
-                .build();
-        TableDescription tableDescription = dbClient.describeTable(describeTableRequest).table();
         addSecondaryIndices(datasetClassNode, tableDescription);
         addOtherTableMetadata(datasetClassNode, tableDescription);
+        DynamoDBSchemaInference inference = inferSchema(table);
         addFieldNodes(datasetClassNode,
                 tableDescription.attributeDefinitions(),
-                tableDescription.keySchema());
+                tableDescription.keySchema(),
+                inference);
+        if (inference != null) addInferredFieldNodes(datasetClassNode, tableDescription.attributeDefinitions(), inference);
+    }
+
+    private DynamoDBSchemaInference inferSchema(String table) {
+        try {
+            return session.inferSchema(table);
+        } catch (Exception e) {
+            // The key attributes are still discovered, e.g. without a permission to scan the table
+            log.warn("Failed to infer the attributes of table {}", table, e);
+            return null;
+        }
     }
 
     private void addSecondaryIndices(ConcreteClassNode datasetClassNode, TableDescription tableDescription) {
@@ -230,13 +250,14 @@ public class DynamoDbMetadata implements IoMetadata {
                 "");
     }
 
-    private void addFieldNodes(ConcreteClassNode tableClassNode, List<AttributeDefinition> attributeDefinitions, List<KeySchemaElement> keySchemaElements) {
+    private void addFieldNodes(ConcreteClassNode tableClassNode, List<AttributeDefinition> attributeDefinitions,
+                               List<KeySchemaElement> keySchemaElements, DynamoDBSchemaInference inference) {
         attributeDefinitions.forEach(attributeDef -> {
             ConcreteField fieldNode = new ConcreteField(attributeDef.attributeName());
             fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceDataType.name(), "Column type", attributeDef.attributeTypeAsString(), 1.0, CRAWLER, "");
             fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceNullable.name(), "Nullability of the field 1 or 0", "FALSE", 1.0, CRAWLER, "");
             fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceEntityType.name(), "Role", "Column", 1.0, CRAWLER, "");
-            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.definedBy.name(), "Data type for field", getFieldDataType(attributeDef),1.0, CRAWLER,"");
+            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.definedBy.name(), "Data type for field", getFieldDataType(attributeDef, session.numberMode()),1.0, CRAWLER,"");
             keySchemaElements
                     .stream()
                     .filter(keySchemaElement ->
@@ -251,25 +272,127 @@ public class DynamoDbMetadata implements IoMetadata {
                             1.0,
                             CRAWLER,
                             ""));
+            if (inference != null) {
+                AttributeStatistics statistics = inference.attributes().get(attributeDef.attributeName());
+                if (statistics != null) addStatistics(fieldNode, statistics, inference.sampledItems());
+            }
             tableClassNode.contains(fieldNode, 1.0, CRAWLER, "");
         });
 
     }
 
+    /**
+     * Adds the sampled attributes which aren't key or index attributes, and so aren't described by the table
+     */
+    private void addInferredFieldNodes(ConcreteClassNode tableClassNode, List<AttributeDefinition> attributeDefinitions, DynamoDBSchemaInference inference) {
+        Set<String> defined = new HashSet<>();
+        attributeDefinitions.forEach(attributeDef -> defined.add(attributeDef.attributeName()));
+        inference.attributes().forEach((attribute, statistics) -> {
+            if (defined.contains(attribute)) return;
+            String type = statistics.dominantType();
+            double typeScore = statistics.dominantTypeRatio();
+            ConcreteField fieldNode = new ConcreteField(attribute);
+            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceDataType.name(), "Column type", type, typeScore, CRAWLER, "");
+            // Any attribute other than the keys may be missing from an item
+            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceNullable.name(), "Nullability of the field 1 or 0", "TRUE", 1.0, CRAWLER, "");
+            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.sourceEntityType.name(), "Role", "Column", 1.0, CRAWLER, "");
+            fieldNode.addProperty(this.idPrefix(FIELD, fieldNode), Category.definedBy.name(), "Data type for field", getFieldDataType(type, session.numberMode()), typeScore, CRAWLER, "");
+            addStatistics(fieldNode, statistics, inference.sampledItems());
+            tableClassNode.contains(fieldNode, 1.0, CRAWLER, "");
+        });
+        if (inference.truncated()) {
+            log.warn("Table {} has more attributes than the schema inference tracks, only {} were added", tableClassNode.getName(), inference.attributes().size());
+        }
+    }
+
+    private void addStatistics(ConcreteField fieldNode, AttributeStatistics statistics, long sampledItems) {
+        String idPrefix = this.idPrefix(FIELD, fieldNode);
+        fieldNode.addProperty(idPrefix, "sampledTypes", "Types of the sampled values", String.valueOf(statistics.types()), 1.0, CRAWLER, "");
+        fieldNode.addProperty(idPrefix, "nullRatio", "Ratio of the sampled items missing the value", statistics.nullRatio(), 1.0, CRAWLER, "");
+        fieldNode.addProperty(idPrefix, "distinctCount", "Approximate number of distinct sampled values", statistics.distinctCount(), 1.0, CRAWLER, "");
+        fieldNode.addProperty(idPrefix, "maxSizeBytes", "Maximal size of the sampled values (bytes)", statistics.maxSizeBytes(), 1.0, CRAWLER, "");
+        fieldNode.addProperty(idPrefix, "sampledItems", "Number of sampled items", sampledItems, 1.0, CRAWLER, "");
+    }
+
     public static String getFieldDataType(AttributeDefinition attributeDefinition) {
-        switch (attributeDefinition.attributeType()) {
-            case S:
+        return getFieldDataType(attributeDefinition, DynamoDBNumberMode.BIG_DECIMAL);
+    }
+
+    /**
+     * @param attributeDefinition A key attribute of a table
+     * @param numberMode How number attributes are decoded by the interface
+     * @return The data type of the values read for the attribute
+     */
+    public static String getFieldDataType(AttributeDefinition attributeDefinition, DynamoDBNumberMode numberMode) {
+        return getFieldDataType(attributeDefinition.attributeTypeAsString(), numberMode);
+    }
+
+    /**
+     * @param attributeType A DynamoDB type, e.g. S, N or M
+     * @param numberMode How number attributes are decoded by the interface
+     * @return The data type of the values read for attributes of the type
+     */
+    public static String getFieldDataType(String attributeType, DynamoDBNumberMode numberMode) {
+        switch (String.valueOf(attributeType)) {
+            case "S":
                 return StringClass.STRING.getClassName();
-            case B:
+            case "B":
                 return BytesClass.BYTES.getClassName();
-            case N:
-                // TO-DO
-                return "BIG_DECIMAL";
+            case "N":
+                return numberMode.dataType();
             default:
                 return UnknownClass.UNKNOWN.getClassName();
         }
     }
 
+    /**
+     * Table names to include or exclude, matched exactly or as glob patterns (* and ?)
+     */
+    private static final class TableFilter {
+        private final Set<String> names = new HashSet<>();
+        private final Pattern patterns;
+
+        private TableFilter(Collection<String> tables) {
+            StringJoiner globs = new StringJoiner("|");
+            for (String table : tables) {
+                if (table.indexOf('*') < 0 && table.indexOf('?') < 0) {
+                    names.add(table);
+                } else {
+                    globs.add(glob(table));
+                }
+            }
+            this.patterns = globs.length() == 0 ? null : Pattern.compile(globs.toString());
+        }
+
+        private static TableFilter of(Collection<String> tables) {
+            return new TableFilter(tables == null ? Collections.emptyList() : tables);
+        }
+
+        private static String glob(String glob) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+            return "(?:" + regex + ")";
+        }
+
+        private boolean isEmpty() {
+            return names.isEmpty() && patterns == null;
+        }
+
+        private boolean matches(String table) {
+            return names.contains(table) || (patterns != null && patterns.matcher(table).matches());
+        }
+    }
+
     @Override
     public void close() {
         if (selfCreatedSession) {
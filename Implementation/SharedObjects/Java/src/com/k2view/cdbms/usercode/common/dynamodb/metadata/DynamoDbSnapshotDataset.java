@@ -1,6 +1,7 @@
 package com.k2view.cdbms.usercode.common.dynamodb.metadata;
 
 import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBIoSession;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBSnapshotCache;
 import com.k2view.discovery.schema.io.SnapshotDataset;
 import com.k2view.discovery.schema.model.impl.DatasetEntry;
 import com.k2view.discovery.schema.utils.SampleSize;
@@ -9,8 +10,6 @@ import com.k2view.fabric.common.ParamConvertor;
 import com.k2view.fabric.common.Util;
 import com.k2view.fabric.common.io.IoCommand;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
-import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
 
 import java.util.*;
 import java.util.function.Consumer;
@@ -25,6 +24,7 @@ public class DynamoDbSnapshotDataset implements SnapshotDataset {
     private final SampleSize size;
     private final DynamoDbClient dbClient;
     private final DynamoDBIoSession session;
+    private DynamoDBSnapshotCache.CachedRows cachedRows;
 
     public DynamoDbSnapshotDataset(DynamoDBIoSession session, DynamoDbClient dbClient, String dataset, SampleSize size) {
         this.session = session;
@@ -35,10 +35,14 @@ public class DynamoDbSnapshotDataset implements SnapshotDataset {
 
     @Override
     public Iterator<Map<String, Object>> fetch() throws Exception {
+        DynamoDBSnapshotCache cache = session.snapshotCache();
+        if (cache != null) {
+            String sample = size.getPercentage() + "-" + size.getMin() + "-" + size.getMax();
+            cachedRows = cache.fetch(session, dataset, sample, () -> getLimit(dataset, size));
+            return cachedRows;
+        }
         final int limit = getLimit(dataset, size);
-        String query=String.format("SELECT * from \"%s\"", dataset);
-        query = query.concat(" LIMIT ?");
-        IoCommand.Result result = session.prepareStatement(query).execute(limit);
+        IoCommand.Result result = session.sampleScan(dataset, limit);
         Iterator<IoCommand.Row> iterator = result.iterator();
         return (Iterator<Map<String, Object>>)((Iterator<?>) iterator);
     }
@@ -58,14 +62,13 @@ public class DynamoDbSnapshotDataset implements SnapshotDataset {
     }
 
     private long getNumberOfRows(String dataset) {
-        DescribeTableResponse describeTableResponse = dbClient.describeTable(DescribeTableRequest
-                .builder()
-                .tableName(dataset)
-                .build());
-        return describeTableResponse.table().itemCount();
+        // Shares the description read by the crawler
+        return session.describeTable(dataset).itemCount();
         // Note - itemCount is only updated every 6 hours at AWS
     }
 
     @Override
-    public void close() {}
+    public void close() {
+        Util.safeClose(cachedRows);
+    }
 }
@@ -0,0 +1,58 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.RequestLimitExceededException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBAdaptiveBackoffTest {
+
+    @Test
+    void throttlingDoublesThePacingDelayUpToTheMaximum() {
+        DynamoDBAdaptiveBackoff backoff = new DynamoDBAdaptiveBackoff(10, 50);
+        assertEquals(0, backoff.pacingDelayMillis());
+        backoff.onThrottle();
+        assertEquals(10, backoff.pacingDelayMillis());
+        backoff.onThrottle();
+        assertEquals(20, backoff.pacingDelayMillis());
+        backoff.onThrottle();
+        assertEquals(40, backoff.pacingDelayMillis());
+        backoff.onThrottle();
+        assertEquals(50, backoff.pacingDelayMillis());
+        assertEquals(4, backoff.throttles());
+    }
+
+    @Test
+    void successDecreasesThePacingDelayByTheBaseDelay() {
+        DynamoDBAdaptiveBackoff backoff = new DynamoDBAdaptiveBackoff(10, 1000);
+        backoff.onThrottle();
+        backoff.onThrottle();
+        backoff.onSuccess();
+        assertEquals(10, backoff.pacingDelayMillis());
+        backoff.onSuccess();
+        backoff.onSuccess();
+        assertEquals(0, backoff.pacingDelayMillis());
+    }
+
+    @Test
+    void retryDelayIsJitteredUnderTheExponentialCeiling() {
+        DynamoDBAdaptiveBackoff backoff = new DynamoDBAdaptiveBackoff(10, 100);
+        for (int i = 0; i < 1000; i++) {
+            long first = backoff.retryDelay(0, 1);
+            assertTrue(first >= 0 && first <= 10, "delay " + first);
+            long later = backoff.retryDelay(30, 1);
+            assertTrue(later >= 0 && later <= 100, "delay " + later);
+        }
+        assertEquals(2000, backoff.retries());
+    }
+
+    @Test
+    void throttlingErrorsAreRecognized() {
+        assertTrue(DynamoDBAdaptiveBackoff.isThrottling(ProvisionedThroughputExceededException.builder().message("slow down").build()));
+        assertTrue(DynamoDBAdaptiveBackoff.isThrottling(RequestLimitExceededException.builder().message("slow down").build()));
+        assertFalse(DynamoDBAdaptiveBackoff.isThrottling(ConditionalCheckFailedException.builder().message("exists").build()));
+        assertFalse(DynamoDBAdaptiveBackoff.isThrottling(new IllegalStateException()));
+    }
+}
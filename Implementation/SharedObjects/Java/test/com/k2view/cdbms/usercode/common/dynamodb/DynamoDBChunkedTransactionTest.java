@@ -0,0 +1,105 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.ExecuteTransactionRequest;
+import software.amazon.awssdk.services.dynamodb.model.ExecuteTransactionResponse;
+import software.amazon.awssdk.services.dynamodb.model.ParameterizedStatement;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBChunkedTransactionTest {
+    private final List<ExecuteTransactionRequest> sent = new ArrayList<>();
+    private final List<CompletableFuture<ExecuteTransactionResponse>> responses = new ArrayList<>();
+
+    @Test
+    void statementsAreSplitIntoChunks() {
+        List<ParameterizedStatement> statements = new ArrayList<>();
+        for (int i = 0; i < 250; i++) statements.add(statement("t", "k" + i));
+        DynamoDBChunkedTransaction transaction = transaction(statements, 100);
+        assertEquals(3, transaction.chunks());
+        transaction.send();
+        // Chunks of other items run concurrently
+        assertEquals(3, sent.size());
+        assertEquals(100, sent.get(0).transactStatements().size());
+        assertEquals(50, sent.get(2).transactStatements().size());
+    }
+
+    @Test
+    void chunkCantWriteTheSameItemTwice() {
+        DynamoDBChunkedTransaction transaction = transaction(Arrays.asList(statement("t", "k1"), statement("t", "k1")), 100);
+        assertEquals(2, transaction.chunks());
+        transaction.send();
+        assertEquals(1, sent.size());
+        commit(0);
+        assertEquals(2, sent.size());
+        commit(1);
+        transaction.await();
+    }
+
+    @Test
+    void statementOfUnknownTableIsOrderedWithAllChunks() {
+        DynamoDBChunkedTransaction transaction = transaction(Arrays.asList(
+                statement("t", "k1"), statement("u", "k2"), statement(null, null), statement("v", "k3")), 1);
+        transaction.send();
+        assertEquals(2, sent.size());
+        commit(0);
+        assertEquals(2, sent.size());
+        commit(1);
+        assertEquals(3, sent.size());
+        commit(2);
+        assertEquals(4, sent.size());
+        commit(3);
+        transaction.await();
+    }
+
+    @Test
+    void chunkAfterFailedChunkOfSameItemIsSkipped() {
+        DynamoDBChunkedTransaction transaction = transaction(Arrays.asList(
+                statement("t", "k1"), statement("t", "k1"), statement("t", "k2")), 1);
+        transaction.send();
+        assertEquals(2, sent.size());
+        responses.get(0).completeExceptionally(new IllegalStateException("failed"));
+        commit(1);
+        // The second write of k1 is never sent
+        assertEquals(2, sent.size());
+        assertThrows(RuntimeException.class, transaction::await);
+        List<DynamoDBChunkedTransaction.Status> statuses = new ArrayList<>();
+        transaction.outcomes().forEach(outcome -> statuses.add(DynamoDBChunkedTransaction.Status.valueOf((String) outcome.get("status"))));
+        assertEquals(Arrays.asList(DynamoDBChunkedTransaction.Status.FAILED, DynamoDBChunkedTransaction.Status.SKIPPED,
+                DynamoDBChunkedTransaction.Status.COMMITTED), statuses);
+    }
+
+    private DynamoDBChunkedTransaction transaction(List<ParameterizedStatement> statements, int chunkSize) {
+        Map<ParameterizedStatement, String> keys = new IdentityHashMap<>();
+        Map<ParameterizedStatement, String> tables = new IdentityHashMap<>();
+        for (ParameterizedStatement statement : statements) {
+            String[] parts = statement.statement().split(" ");
+            tables.put(statement, parts[2].equals("?") ? null : parts[2]);
+            keys.put(statement, parts[4].equals("?") ? null : parts[4]);
+        }
+        return new DynamoDBChunkedTransaction(statements, chunkSize, 10, 0, new DynamoDBAdaptiveBackoff(1, 1),
+                statement -> keys.get(statement) == null ? null : Arrays.asList(tables.get(statement), keys.get(statement)),
+                tables::get, request -> {
+                    CompletableFuture<ExecuteTransactionResponse> response = new CompletableFuture<>();
+                    sent.add(request);
+                    responses.add(response);
+                    return response;
+                });
+    }
+
+    /**
+     * @return A statement the test tells the table and item of, from its text
+     */
+    private static ParameterizedStatement statement(String table, String key) {
+        return ParameterizedStatement.builder()
+                .statement("DELETE FROM " + (table == null ? "?" : table) + " WHERE " + (key == null ? "?" : key))
+                .build();
+    }
+
+    private void commit(int request) {
+        responses.get(request).complete(ExecuteTransactionResponse.builder().build());
+    }
+}
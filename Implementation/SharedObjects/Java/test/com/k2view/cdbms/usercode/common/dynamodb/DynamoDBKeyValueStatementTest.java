@@ -0,0 +1,134 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.Operation;
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBStatementDescriptor.Kind;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBKeyValueStatementTest {
+    private static final KeySchema HASH = keySchema("pk", null);
+    private static final KeySchema HASH_RANGE = keySchema("pk", "sk");
+
+    @Test
+    void selectOnFullKeyIsGetItem() {
+        DynamoDBKeyValueStatement statement = parse("SELECT * FROM \"t\" WHERE \"pk\" = ?");
+        assertEquals("t", statement.table);
+        assertEquals(Operation.GET_ITEM, statement.operation(HASH, params(s("a"))));
+        assertEquals(Operation.GET_ITEM, parse("select * from t where sk = ? and pk = ?").operation(HASH_RANGE, params(n("1"), s("a"))));
+    }
+
+    @Test
+    void selectOnHashKeyOfTableWithSortKeyIsQuery() {
+        DynamoDBKeyValueStatement statement = parse("SELECT * FROM \"t\" WHERE \"pk\" = ?");
+        assertEquals(Operation.QUERY, statement.operation(HASH_RANGE, params(s("a"))));
+        QueryRequest request = statement.query(params(s("a")), 10);
+        assertEquals("#k = :k", request.keyConditionExpression());
+        assertEquals(10, request.limit());
+    }
+
+    @Test
+    void selectOnOtherAttributesIsPartiQL() {
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"a\" = ?").operation(HASH, params(s("a"))));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = ?").operation(null, params(s("a"))));
+        // The parameters don't match the command
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = ?").operation(HASH, params(s("a"), s("b"))));
+    }
+
+    @Test
+    void projectionIsParsed() {
+        DynamoDBKeyValueStatement statement = parse("SELECT \"a\", b FROM \"t\" WHERE \"pk\" = ?");
+        assertFalse(statement.selectsKey(HASH));
+        assertTrue(parse("SELECT \"pk\", a FROM \"t\" WHERE \"pk\" = ?").selectsKey(HASH));
+        GetItemRequest request = statement.getItem(params(s("x")));
+        assertEquals("#p0, #p1", request.projectionExpression());
+        assertEquals("b", request.expressionAttributeNames().get("#p1"));
+    }
+
+    @Test
+    void otherShapesAreNotParsed() {
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" > ?"));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = 'a'"));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"a\" = ? AND \"b\" = ? AND \"c\" = ?"));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = ? AND \"pk\" = ?"));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = ? OR \"sk\" = ?"));
+        assertNull(parse("INSERT INTO \"t\" VALUE {'pk': 'a'}"));
+        assertNull(parse("UPDATE \"t\" SET \"a\" = \"a\" + ? WHERE \"pk\" = ?"));
+        assertNull(parse("UPDATE \"t\" REMOVE \"a\" WHERE \"pk\" = ?"));
+    }
+
+    @Test
+    void insertWithKeyIsPutItem() {
+        DynamoDBKeyValueStatement statement = parse("INSERT INTO \"t\" VALUE {'pk': ?, 'a': ?}");
+        assertEquals(Operation.PUT_ITEM, statement.operation(HASH, params(s("k"), s("v"))));
+        // Without the sort key
+        assertNull(statement.operation(HASH_RANGE, params(s("k"), s("v"))));
+
+        PutItemRequest request = statement.putItem(HASH, params(s("k"), s("v")));
+        assertEquals("attribute_not_exists(#k)", request.conditionExpression());
+        assertEquals("pk", request.expressionAttributeNames().get("#k"));
+        assertEquals(s("v"), request.item().get("a"));
+    }
+
+    @Test
+    void onlyDeletesAreBatchWritten() {
+        assertTrue(parse("DELETE FROM \"t\" WHERE \"pk\" = ?").batchWritable(HASH, params(s("k"))));
+        assertFalse(parse("DELETE FROM \"t\" WHERE \"a\" = ?").batchWritable(HASH, params(s("k"))));
+        // A batch put would overwrite an existing item
+        assertFalse(parse("INSERT INTO \"t\" VALUE {'pk': ?}").batchWritable(HASH, params(s("k"))));
+    }
+
+    @Test
+    void writesOfSameItemHaveSameKey() {
+        Object delete = parse("DELETE FROM \"t\" WHERE \"pk\" = ? AND \"sk\" = ?").itemKey(HASH_RANGE, params(s("k"), n("1.50")));
+        Object insert = parse("INSERT INTO \"t\" VALUE {'a': ?, 'sk': ?, 'pk': ?}").itemKey(HASH_RANGE, params(s("v"), n("1.5"), s("k")));
+        Object update = parse("UPDATE \"t\" SET \"a\" = ? SET b = ? WHERE \"sk\" = ? AND \"pk\" = ?")
+                .itemKey(HASH_RANGE, params(s("v"), s("w"), n("15E-1"), s("k")));
+        assertNotNull(delete);
+        assertEquals(delete, insert);
+        assertEquals(delete, update);
+        assertEquals(delete, parse("DELETE FROM \"t\" WHERE \"pk\" = ? AND \"sk\" = ?").batchWrite(HASH_RANGE, params(s("k"), n("1.5"))).itemKey());
+
+        assertNotEquals(delete, parse("DELETE FROM \"u\" WHERE \"pk\" = ? AND \"sk\" = ?").itemKey(HASH_RANGE, params(s("k"), n("1.5"))));
+        assertNotEquals(delete, parse("DELETE FROM \"t\" WHERE \"pk\" = ? AND \"sk\" = ?").itemKey(HASH_RANGE, params(s("k"), n("2"))));
+    }
+
+    @Test
+    void itemOfPartialKeyIsUnknown() {
+        assertNull(parse("UPDATE \"t\" SET \"a\" = ? WHERE \"pk\" = ?").itemKey(HASH_RANGE, params(s("v"), s("k"))));
+        assertNull(parse("DELETE FROM \"t\" WHERE \"pk\" = ?").itemKey(HASH_RANGE, params(s("k"))));
+        assertNull(parse("DELETE FROM \"t\" WHERE \"pk\" = ?").itemKey(null, params(s("k"))));
+        assertNull(parse("SELECT * FROM \"t\" WHERE \"pk\" = ?").itemKey(HASH, params(s("k"))));
+    }
+
+    private static DynamoDBKeyValueStatement parse(String command) {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.parse(command);
+        return DynamoDBKeyValueStatement.parse(descriptor.kind, descriptor.commandWithoutLimit);
+    }
+
+    static KeySchema keySchema(String hashKey, String rangeKey) {
+        List<KeySchemaElement> elements = rangeKey == null ?
+                Collections.singletonList(KeySchemaElement.builder().attributeName(hashKey).keyType(KeyType.HASH).build())
+                : Arrays.asList(KeySchemaElement.builder().attributeName(hashKey).keyType(KeyType.HASH).build(),
+                KeySchemaElement.builder().attributeName(rangeKey).keyType(KeyType.RANGE).build());
+        return KeySchema.of(TableDescription.builder().keySchema(elements).build());
+    }
+
+    static List<AttributeValue> params(AttributeValue... values) {
+        return Arrays.asList(values);
+    }
+
+    static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    static AttributeValue n(String value) {
+        return AttributeValue.builder().n(value).build();
+    }
+}
@@ -0,0 +1,74 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBStatementDescriptor.Kind;
+import org.junit.jupiter.api.Test;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatementTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBStatementDescriptorTest {
+
+    @Test
+    void kindAndTableAreParsed() {
+        DynamoDBStatementDescriptor select = DynamoDBStatementDescriptor.parse("  select * from \"my-table\" where \"a\" = ?");
+        assertEquals(Kind.SELECT, select.kind);
+        assertEquals("my-table", select.table);
+        assertEquals(Kind.INSERT, DynamoDBStatementDescriptor.parse("INSERT INTO t VALUE {'pk': ?}").kind);
+        assertEquals("t", DynamoDBStatementDescriptor.parse("INSERT INTO t VALUE {'pk': ?}").table);
+        assertEquals(Kind.UPDATE, DynamoDBStatementDescriptor.parse("UPDATE t SET a = ? WHERE pk = ?").kind);
+        assertEquals(Kind.DELETE, DynamoDBStatementDescriptor.parse("DELETE FROM t WHERE pk = ?").kind);
+        assertEquals(Kind.OTHER, DynamoDBStatementDescriptor.parse("EXISTS(SELECT * FROM t WHERE pk = ?)").kind);
+    }
+
+    @Test
+    void literalLimitIsStripped() {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.parse("SELECT * FROM \"t\" WHERE \"a\" = ? LIMIT 10");
+        assertEquals("SELECT * FROM \"t\" WHERE \"a\" = ?", descriptor.commandWithoutLimit.trim());
+        assertEquals(10, descriptor.limit(params(s("x"))));
+        assertEquals(params(s("x")), descriptor.parameters(params(s("x"))));
+    }
+
+    @Test
+    void parameterLimitIsTheLastParameter() {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.parse("SELECT * FROM \"t\" WHERE \"a\" = ? limit ?");
+        assertEquals(5, descriptor.limit(params(s("x"), n("5"))));
+        assertEquals(params(s("x")), descriptor.parameters(params(s("x"), n("5"))));
+        assertThrows(IllegalArgumentException.class, () -> descriptor.limit(params()));
+    }
+
+    @Test
+    void commandWithoutLimitHasNone() {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.parse("SELECT * FROM \"t\" WHERE \"limit\" = ?");
+        assertNull(descriptor.limit(params(s("x"))));
+        assertNotNull(descriptor.keyValue);
+    }
+
+    @Test
+    void commandsAreCachedOnlyThroughOf() {
+        String command = "SELECT * FROM \"cached\" WHERE \"pk\" = ? -- " + System.nanoTime();
+        // Looked up without being cached, e.g. a statement merged by write coalescing
+        assertNotSame(DynamoDBStatementDescriptor.lookup(command), DynamoDBStatementDescriptor.lookup(command));
+        DynamoDBStatementDescriptor cached = DynamoDBStatementDescriptor.of(command);
+        assertSame(cached, DynamoDBStatementDescriptor.of(command));
+        assertSame(cached, DynamoDBStatementDescriptor.lookup(command));
+    }
+
+    @Test
+    void leastRecentlyUsedCommandsAreEvicted() {
+        String hot = "SELECT * FROM \"hot\" WHERE \"pk\" = ? -- " + System.nanoTime();
+        DynamoDBStatementDescriptor cached = DynamoDBStatementDescriptor.of(hot);
+        for (int i = 0; i < 10_000; i++) {
+            DynamoDBStatementDescriptor.of("SELECT * FROM \"cold\" WHERE \"pk\" = ? -- " + i);
+            // Used in between, so it stays cached
+            if (i % 1000 == 0) assertSame(cached, DynamoDBStatementDescriptor.of(hot));
+        }
+        assertSame(cached, DynamoDBStatementDescriptor.lookup(hot));
+        String cold = "SELECT * FROM \"cold\" WHERE \"pk\" = ? -- 0";
+        assertNotSame(DynamoDBStatementDescriptor.lookup(cold), DynamoDBStatementDescriptor.lookup(cold));
+    }
+
+    @Test
+    void nullCommandIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> DynamoDBStatementDescriptor.of(null));
+    }
+}
@@ -0,0 +1,77 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.BatchWrite;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchStatementRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatementTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamoDBWriteCoalescingTest {
+    private final DynamoDBWriteCoalescing coalescing = new DynamoDBWriteCoalescing();
+
+    @Test
+    void updatesAreMergedWithLaterValuesWinning() {
+        BatchStatementRequest merged = coalescing.coalesce(
+                statement("UPDATE \"t\" SET \"a\" = ? SET \"b\" = ? WHERE \"pk\" = ?", s("a1"), s("b1"), s("k")),
+                statement("UPDATE t SET c = ?, a = ? WHERE pk = ?", s("c2"), s("a2"), s("k")));
+        assertNotNull(merged);
+        assertEquals("UPDATE \"t\" SET \"a\" = ? SET \"b\" = ? SET \"c\" = ? WHERE \"pk\" = ?", merged.statement());
+        assertEquals(params(s("a2"), s("b1"), s("c2"), s("k")), merged.parameters());
+    }
+
+    @Test
+    void mergedUpdateKeepsTheKeyOfTheItem() {
+        BatchStatementRequest earlier = statement("UPDATE \"t\" SET \"a\" = ? WHERE \"pk\" = ? AND \"sk\" = ?", s("a1"), s("k"), n("1"));
+        BatchStatementRequest merged = coalescing.coalesce(earlier,
+                statement("UPDATE \"t\" SET \"b\" = ? WHERE \"sk\" = ? AND \"pk\" = ?", s("b2"), n("1"), s("k")));
+        assertNotNull(merged);
+        Object mergedKey = DynamoDBStatementDescriptor.lookup(merged.statement()).keyValue
+                .itemKey(keySchema("pk", "sk"), merged.parameters());
+        Object earlierKey = DynamoDBStatementDescriptor.lookup(earlier.statement()).keyValue
+                .itemKey(keySchema("pk", "sk"), earlier.parameters());
+        assertEquals(earlierKey, mergedKey);
+        // Merged again with a later update
+        BatchStatementRequest mergedAgain = coalescing.coalesce(merged,
+                statement("UPDATE \"t\" SET \"a\" = ? WHERE \"pk\" = ? AND \"sk\" = ?", s("a3"), s("k"), n("1")));
+        assertEquals(params(s("a3"), s("b2"), s("k"), n("1")), mergedAgain.parameters());
+    }
+
+    @Test
+    void deleteAbsorbsEarlierWrites() {
+        BatchStatementRequest delete = statement("DELETE FROM \"t\" WHERE \"pk\" = ?", s("k"));
+        assertSame(delete, coalescing.coalesce(statement("UPDATE \"t\" SET \"a\" = ? WHERE \"pk\" = ?", s("a1"), s("k")), delete));
+        assertSame(delete, coalescing.coalesce(statement("INSERT INTO \"t\" VALUE {'pk': ?, 'a': ?}", s("k"), s("a1")), delete));
+    }
+
+    @Test
+    void insertIsNotCoalesced() {
+        // A PartiQL INSERT fails if the item exists, so it can't be folded into the earlier write
+        assertNull(coalescing.coalesce(statement("DELETE FROM \"t\" WHERE \"pk\" = ?", s("k")),
+                statement("INSERT INTO \"t\" VALUE {'pk': ?, 'a': ?}", s("k"), s("a1"))));
+        assertNull(coalescing.coalesce(statement("INSERT INTO \"t\" VALUE {'pk': ?, 'a': ?}", s("k"), s("a1")),
+                statement("UPDATE \"t\" SET \"a\" = ? WHERE \"pk\" = ?", s("a2"), s("k"))));
+    }
+
+    @Test
+    void laterBatchWriteWins() {
+        BatchWrite earlier = delete("k");
+        BatchWrite later = delete("k");
+        assertSame(later, coalescing.coalesce(earlier, later));
+    }
+
+    private static BatchStatementRequest statement(String command, AttributeValue... parameters) {
+        return BatchStatementRequest.builder().statement(command).parameters(parameters).build();
+    }
+
+    private static BatchWrite delete(String key) {
+        Map<String, AttributeValue> item = Collections.singletonMap("pk", s(key));
+        return new BatchWrite("t", WriteRequest.builder().deleteRequest(DeleteRequest.builder().key(item).build()).build(), item);
+    }
+}
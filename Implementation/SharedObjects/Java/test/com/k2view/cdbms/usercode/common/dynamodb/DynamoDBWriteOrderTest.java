@@ -0,0 +1,100 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DynamoDBWriteOrderTest {
+    private final DynamoDBWriteOrder order = new DynamoDBWriteOrder();
+
+    @Test
+    void batchOfSameItemWaitsForEarlierBatch() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        assertTrue(register(items("k1"), tables("t"), tables(), first).isDone());
+        CompletableFuture<Void> second = register(items("k1"), tables("t"), tables(), new CompletableFuture<>());
+        assertFalse(second.isDone());
+        first.complete(null);
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    void batchesOfOtherItemsRunConcurrently() {
+        register(items("k1"), tables("t"), tables(), new CompletableFuture<>());
+        assertTrue(register(items("k2"), tables("t"), tables(), new CompletableFuture<>()).isDone());
+    }
+
+    @Test
+    void failedBatchStillReleasesLaterBatches() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        register(items("k1"), tables("t"), tables(), first);
+        CompletableFuture<Void> second = register(items("k1"), tables("t"), tables(), new CompletableFuture<>());
+        first.completeExceptionally(new IllegalStateException("failed"));
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    void writeOfUnknownItemIsOrderedWithItsTable() {
+        CompletableFuture<Void> known = new CompletableFuture<>();
+        register(items("k1"), tables("t"), tables(), known);
+        CompletableFuture<Void> unknown = new CompletableFuture<>();
+        CompletableFuture<Void> unknownAfter = register(items(), tables(), tables("t"), unknown);
+        assertFalse(unknownAfter.isDone());
+        // A later write of any item of the table waits for the write of the unknown item
+        CompletableFuture<Void> laterAfter = register(items("k2"), tables("t"), tables(), new CompletableFuture<>());
+        assertFalse(laterAfter.isDone());
+        // Other tables aren't held
+        assertTrue(register(items("k3"), tables("u"), tables(), new CompletableFuture<>()).isDone());
+
+        known.complete(null);
+        assertTrue(unknownAfter.isDone());
+        assertFalse(laterAfter.isDone());
+        unknown.complete(null);
+        assertTrue(laterAfter.isDone());
+    }
+
+    @Test
+    void writeOfUnknownTableIsOrderedWithAllWrites() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        register(items("k1"), tables("t"), tables(), first);
+        register(items("k2"), tables("u"), tables(), second);
+        CompletableFuture<Void> unknown = new CompletableFuture<>();
+        CompletableFuture<Void> unknownAfter = register(items(), tables(), tables((String) null), unknown);
+        CompletableFuture<Void> laterAfter = register(items("k3"), tables("v"), tables(), new CompletableFuture<>());
+
+        first.complete(null);
+        assertFalse(unknownAfter.isDone());
+        second.complete(null);
+        assertTrue(unknownAfter.isDone());
+        assertFalse(laterAfter.isDone());
+        unknown.complete(null);
+        assertTrue(laterAfter.isDone());
+    }
+
+    @Test
+    void doneBatchesAreReleased() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        register(items("k1"), tables("t"), tables("t", null), first);
+        first.complete(null);
+        assertTrue(register(items("k1"), tables("t"), tables("t", null), new CompletableFuture<>()).isDone());
+    }
+
+    private CompletableFuture<Void> register(List<Object> items, List<String> tables, List<String> unknownTables,
+                                             CompletableFuture<Void> done) {
+        return order.register(items, tables, unknownTables, done);
+    }
+
+    private static List<Object> items(String... keys) {
+        return keys.length == 0 ? Collections.emptyList() : Arrays.asList((Object[]) keys);
+    }
+
+    private static List<String> tables(String... tables) {
+        return Arrays.asList(tables);
+    }
+}
@@ -0,0 +1,88 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+
+/**
+ * Runs the JMH benchmarks of the connector's CPU hot paths, with the gc profiler, offline:
+ * <ul>
+ *     <li>{@link DynamoDBParseBenchmark} - statement parameters to AttributeValues, and items back to Fabric values</li>
+ *     <li>{@link DynamoDBTranslateBenchmark} - result pages to rows</li>
+ *     <li>{@link DynamoDBStatementBenchmark} - parsing and processing PartiQL commands</li>
+ * </ul>
+ * The arguments are JMH command line options, e.g. a regular expression of the benchmarks to run,
+ * or "-p lazy=true" to run with a single value of a parameter.
+ */
+public class DynamoDBBenchmarks {
+    // The key attribute of the benchmark items
+    static final String KEY = "id";
+
+    private DynamoDBBenchmarks() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (args.length == 0) {
+            options.include(DynamoDBBenchmarks.class.getPackage().getName() + ".DynamoDB\\w+Benchmark");
+        }
+        new Runner(options.addProfiler(GCProfiler.class).build()).run();
+    }
+
+    /**
+     * @param shape wide - 50 top level attributes of all the scalar types,
+     *              deep - a document nested 8 levels deep, with 4 attributes per level
+     * @return A synthetic item, as returned by DynamoDB
+     */
+    static Map<String, AttributeValue> item(String shape) {
+        Random random = new Random(42);
+        Map<String, AttributeValue> item = new LinkedHashMap<>();
+        item.put(KEY, AttributeValue.builder().s("customer#" + random.nextInt(1_000_000)).build());
+        switch (shape) {
+            case "wide":
+                for (int i = 1; i < 50; i++) {
+                    item.put("attribute" + i, scalar(i, random));
+                }
+                return item;
+            case "deep":
+                AttributeValue level = scalar(0, random);
+                for (int depth = 0; depth < 8; depth++) {
+                    Map<String, AttributeValue> document = new LinkedHashMap<>();
+                    document.put("name", AttributeValue.builder().s("level" + depth).build());
+                    document.put("count", AttributeValue.builder().n(String.valueOf(random.nextInt())).build());
+                    document.put("tags", AttributeValue.builder().l(scalar(0, random), scalar(5, random)).build());
+                    document.put("child", level);
+                    level = AttributeValue.builder().m(document).build();
+                }
+                item.put("document", level);
+                return item;
+            default:
+                throw new IllegalArgumentException("Unknown item shape " + shape + "!");
+        }
+    }
+
+    private static AttributeValue scalar(int i, Random random) {
+        switch (i % 6) {
+            case 0:
+                return AttributeValue.builder().s("value " + random.nextInt()).build();
+            case 1:
+                return AttributeValue.builder().n(String.valueOf(random.nextLong())).build();
+            case 2:
+                return AttributeValue.builder().n(random.nextInt(100_000) + "." + random.nextInt(100)).build();
+            case 3:
+                return AttributeValue.builder().bool(random.nextBoolean()).build();
+            case 4:
+                byte[] bytes = new byte[64];
+                random.nextBytes(bytes);
+                return AttributeValue.builder().b(SdkBytes.fromByteArray(bytes)).build();
+            default:
+                return AttributeValue.builder().ss("a" + random.nextInt(), "b" + random.nextInt()).build();
+        }
+    }
+}
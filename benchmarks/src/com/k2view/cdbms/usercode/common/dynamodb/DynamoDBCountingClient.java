@@ -0,0 +1,113 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests sent through a client, for the operations the connector uses, see {@link DynamoDBLoadHarness}
+ */
+class DynamoDBCountingClient implements DynamoDbClient {
+    private final DynamoDbClient client;
+    private final LongAdder requests = new LongAdder();
+
+    DynamoDBCountingClient(DynamoDbClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @return The number of requests sent so far
+     */
+    long requests() {
+        return requests.sum();
+    }
+
+    @Override
+    public String serviceName() {
+        return client.serviceName();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    @Override
+    public CreateTableResponse createTable(CreateTableRequest request) {
+        requests.increment();
+        return client.createTable(request);
+    }
+
+    @Override
+    public DescribeTableResponse describeTable(DescribeTableRequest request) {
+        requests.increment();
+        return client.describeTable(request);
+    }
+
+    @Override
+    public ListTablesResponse listTables(ListTablesRequest request) {
+        requests.increment();
+        return client.listTables(request);
+    }
+
+    @Override
+    public ExecuteStatementResponse executeStatement(ExecuteStatementRequest request) {
+        requests.increment();
+        return client.executeStatement(request);
+    }
+
+    @Override
+    public BatchExecuteStatementResponse batchExecuteStatement(BatchExecuteStatementRequest request) {
+        requests.increment();
+        return client.batchExecuteStatement(request);
+    }
+
+    @Override
+    public ExecuteTransactionResponse executeTransaction(ExecuteTransactionRequest request) {
+        requests.increment();
+        return client.executeTransaction(request);
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        requests.increment();
+        return client.getItem(request);
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        requests.increment();
+        return client.query(request);
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        requests.increment();
+        return client.scan(request);
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        requests.increment();
+        return client.putItem(request);
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        requests.increment();
+        return client.deleteItem(request);
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        requests.increment();
+        return client.batchWriteItem(request);
+    }
+
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        requests.increment();
+        return client.batchGetItem(request);
+    }
+}
@@ -0,0 +1,398 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.cdbms.usercode.common.dynamodb.DynamoDBKeyValueStatement.KeySchema;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An in-memory stand-in for DynamoDB, with injected latency and throttling, see {@link DynamoDBLoadHarness}.
+ * <p>
+ * It supports what the connector sends: the PartiQL statements recognized by {@link DynamoDBKeyValueStatement}
+ * and whole-table selects, their batches and transactions, and the native item, query, scan and batch operations.
+ * Expressions other than those the connector builds (e.g. filters and projections) are ignored.
+ */
+class DynamoDBFakeClient implements DynamoDbClient {
+    // AWS limit for the size of a page of a result
+    private static final long MAX_PAGE_BYTES = 1024 * 1024;
+    // AWS limit for the statements of a transaction
+    private static final int MAX_TRANSACTION_STATEMENTS = 100;
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double throttleRate;
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+    /**
+     * @param latencyMillis The minimal time each request takes
+     * @param jitterMillis The maximal random time added to the latency of each request
+     * @param throttleRate The fraction of requests (or statements and items of a batch) that are throttled
+     */
+    DynamoDBFakeClient(long latencyMillis, long jitterMillis, double throttleRate) {
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.jitterMillis = Math.max(0, jitterMillis);
+        this.throttleRate = throttleRate;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    @Override
+    public CreateTableResponse createTable(CreateTableRequest request) {
+        pause();
+        TableDescription description = TableDescription.builder()
+                .tableName(request.tableName())
+                .keySchema(request.keySchema())
+                .attributeDefinitions(request.attributeDefinitions())
+                .billingModeSummary(BillingModeSummary.builder().billingMode(BillingMode.PAY_PER_REQUEST).build())
+                .tableStatus(TableStatus.ACTIVE)
+                .build();
+        if (tables.putIfAbsent(request.tableName(), new Table(description)) != null) {
+            throw ResourceInUseException.builder().message("Table already exists: " + request.tableName()).build();
+        }
+        return CreateTableResponse.builder().tableDescription(description).build();
+    }
+
+    @Override
+    public DescribeTableResponse describeTable(DescribeTableRequest request) {
+        pause();
+        Table table = table(request.tableName());
+        long size = 0;
+        for (Map<String, AttributeValue> item : table.items.values()) size += DynamoDBParseUtils.estimateSize(item);
+        return DescribeTableResponse.builder()
+                .table(table.description.toBuilder().itemCount((long) table.items.size()).tableSizeBytes(size).build())
+                .build();
+    }
+
+    @Override
+    public ListTablesResponse listTables(ListTablesRequest request) {
+        pause();
+        return ListTablesResponse.builder().tableNames(new TreeSet<>(tables.keySet())).build();
+    }
+
+    @Override
+    public ExecuteStatementResponse executeStatement(ExecuteStatementRequest request) {
+        pause();
+        throttle();
+        Page page = execute(request.statement(), request.parameters(), request.limit(), request.nextToken());
+        return ExecuteStatementResponse.builder().items(page.items).nextToken(page.next).build();
+    }
+
+    @Override
+    public BatchExecuteStatementResponse batchExecuteStatement(BatchExecuteStatementRequest request) {
+        pause();
+        List<BatchStatementResponse> responses = new ArrayList<>(request.statements().size());
+        for (BatchStatementRequest statement : request.statements()) {
+            BatchStatementResponse.Builder response = BatchStatementResponse.builder();
+            if (throttled()) {
+                responses.add(response.error(error(BatchStatementErrorCodeEnum.THROTTLING_ERROR, "Throttled")).build());
+                continue;
+            }
+            try {
+                Page page = execute(statement.statement(), statement.parameters(), null, null);
+                if (!page.items.isEmpty()) response.item(page.items.get(0));
+            } catch (DuplicateItemException e) {
+                response.error(error(BatchStatementErrorCodeEnum.DUPLICATE_ITEM, e.getMessage()));
+            } catch (DynamoDbException e) {
+                response.error(error(BatchStatementErrorCodeEnum.VALIDATION_ERROR, e.getMessage()));
+            }
+            responses.add(response.build());
+        }
+        return BatchExecuteStatementResponse.builder().responses(responses).build();
+    }
+
+    @Override
+    public ExecuteTransactionResponse executeTransaction(ExecuteTransactionRequest request) {
+        pause();
+        throttle();
+        if (request.transactStatements().size() > MAX_TRANSACTION_STATEMENTS) {
+            throw validation("Member must have length less than or equal to " + MAX_TRANSACTION_STATEMENTS);
+        }
+        synchronized (this) {
+            // Validate all the statements before applying any of them, so a cancelled transaction changes nothing
+            Set<String> inserted = new HashSet<>();
+            for (ParameterizedStatement statement : request.transactStatements()) {
+                DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.of(statement.statement());
+                if (descriptor.kind != DynamoDBStatementDescriptor.Kind.INSERT || descriptor.keyValue == null) continue;
+                Table table = table(descriptor.table);
+                Map<String, AttributeValue> item = descriptor.keyValue.putItem(table.keySchema, statement.parameters()).item();
+                String key = table.keyString(item);
+                if (table.items.containsKey(key) || !inserted.add(descriptor.table + '\u0000' + key)) {
+                    throw TransactionCanceledException.builder()
+                            .message("Transaction cancelled, please refer cancellation reasons for specific reasons [DuplicateItem]")
+                            .cancellationReasons(CancellationReason.builder().code("DuplicateItem").build())
+                            .build();
+                }
+            }
+            for (ParameterizedStatement statement : request.transactStatements()) {
+                execute(statement.statement(), statement.parameters(), null, null);
+            }
+        }
+        return ExecuteTransactionResponse.builder().build();
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        pause();
+        throttle();
+        Table table = table(request.tableName());
+        return GetItemResponse.builder().item(table.items.get(table.keyString(request.key()))).build();
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        pause();
+        throttle();
+        Table table = table(request.tableName());
+        AttributeValue hashKey = request.expressionAttributeValues().values().iterator().next();
+        String start = request.hasExclusiveStartKey() ? table.keyString(request.exclusiveStartKey()) : null;
+        Page page = table.page(table.partition(hashKey), request.limit(), start);
+        return QueryResponse.builder().items(page.items).count(page.items.size())
+                .lastEvaluatedKey(page.next == null ? null : table.keySchema.keyOf(table.items.get(page.next)))
+                .build();
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        pause();
+        throttle();
+        Table table = table(request.tableName());
+        NavigableMap<String, Map<String, AttributeValue>> items = table.items;
+        if (request.totalSegments() != null && request.totalSegments() > 1) {
+            // Segments split the items by the hash of their key
+            NavigableMap<String, Map<String, AttributeValue>> segment = new TreeMap<>();
+            items.forEach((key, item) -> {
+                if (Math.floorMod(key.hashCode(), request.totalSegments()) == request.segment()) segment.put(key, item);
+            });
+            items = segment;
+        }
+        String start = request.hasExclusiveStartKey() ? table.keyString(request.exclusiveStartKey()) : null;
+        Page page = table.page(items, request.limit(), start);
+        return ScanResponse.builder().items(page.items).count(page.items.size())
+                .lastEvaluatedKey(page.next == null ? null : table.keySchema.keyOf(items.get(page.next)))
+                .build();
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        pause();
+        throttle();
+        Table table = table(request.tableName());
+        String key = table.keyString(request.item());
+        if (request.conditionExpression() != null) {
+            // The only condition the connector puts with is attribute_not_exists of the key
+            if (table.items.putIfAbsent(key, request.item()) != null) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+        } else {
+            table.items.put(key, request.item());
+        }
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        pause();
+        throttle();
+        Table table = table(request.tableName());
+        table.items.remove(table.keyString(request.key()));
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        pause();
+        Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        request.requestItems().forEach((tableName, writes) -> {
+            Table table = table(tableName);
+            for (WriteRequest write : writes) {
+                if (throttled()) {
+                    unprocessed.computeIfAbsent(tableName, t -> new ArrayList<>()).add(write);
+                } else if (write.putRequest() != null) {
+                    table.items.put(table.keyString(write.putRequest().item()), write.putRequest().item());
+                } else {
+                    table.items.remove(table.keyString(write.deleteRequest().key()));
+                }
+            }
+        });
+        return BatchWriteItemResponse.builder().unprocessedItems(unprocessed).build();
+    }
+
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        pause();
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        request.requestItems().forEach((tableName, keysAndAttributes) -> {
+            Table table = table(tableName);
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            List<Map<String, AttributeValue>> unprocessedKeys = new ArrayList<>();
+            for (Map<String, AttributeValue> key : keysAndAttributes.keys()) {
+                if (throttled()) {
+                    unprocessedKeys.add(key);
+                    continue;
+                }
+                Map<String, AttributeValue> item = table.items.get(table.keyString(key));
+                if (item != null) items.add(item);
+            }
+            responses.put(tableName, items);
+            if (!unprocessedKeys.isEmpty()) {
+                unprocessed.put(tableName, keysAndAttributes.toBuilder().keys(unprocessedKeys).build());
+            }
+        });
+        return BatchGetItemResponse.builder().responses(responses).unprocessedKeys(unprocessed).build();
+    }
+
+    private Page execute(String statement, List<AttributeValue> parameters, Integer limit, String nextToken) {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.of(statement);
+        Table table = table(descriptor.table);
+        DynamoDBKeyValueStatement keyValue = descriptor.keyValue;
+        DynamoDBKeyValueStatement.Operation operation = keyValue == null ? null : keyValue.operation(table.keySchema, parameters);
+        if (operation != null) {
+            switch (operation) {
+                case GET_ITEM:
+                    Map<String, AttributeValue> item = table.items.get(table.keyString(keyValue.key(parameters)));
+                    return new Page(item == null ? Collections.emptyList() : Collections.singletonList(item), null);
+                case QUERY:
+                    return table.page(table.partition(parameters.get(0)), limit, nextToken);
+                case PUT_ITEM:
+                    Map<String, AttributeValue> inserted = keyValue.putItem(table.keySchema, parameters).item();
+                    if (table.items.putIfAbsent(table.keyString(inserted), inserted) != null) {
+                        throw DuplicateItemException.builder().message("Duplicate primary key exists in table").build();
+                    }
+                    return new Page(Collections.emptyList(), null);
+                case DELETE_ITEM:
+                    table.items.remove(table.keyString(keyValue.key(parameters)));
+                    return new Page(Collections.emptyList(), null);
+                default:
+                    break;
+            }
+        }
+        if (descriptor.fullTableSelect != null) {
+            return table.page(table.items, limit, nextToken);
+        }
+        throw validation("Statement not supported by the fake client: " + statement);
+    }
+
+    private Table table(String name) {
+        Table table = name == null ? null : tables.get(name);
+        if (table == null) {
+            throw ResourceNotFoundException.builder().message("Requested resource not found: Table: " + name + " not found").build();
+        }
+        return table;
+    }
+
+    private void pause() {
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        if (delay <= 0) return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating latency", e);
+        }
+    }
+
+    private boolean throttled() {
+        return throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate;
+    }
+
+    private void throttle() {
+        if (throttled()) {
+            throw (ProvisionedThroughputExceededException) ProvisionedThroughputExceededException.builder()
+                    .message("The level of configured provisioned throughput for the table was exceeded")
+                    .awsErrorDetails(AwsErrorDetails.builder().errorCode("ProvisionedThroughputExceededException").build())
+                    .statusCode(400)
+                    .build();
+        }
+    }
+
+    private static BatchStatementError error(BatchStatementErrorCodeEnum code, String message) {
+        return BatchStatementError.builder().code(code).message(message).build();
+    }
+
+    private static AwsServiceException validation(String message) {
+        return DynamoDbException.builder()
+                .message(message)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("ValidationException").build())
+                .statusCode(400)
+                .build();
+    }
+
+    private static final class Table {
+        private final TableDescription description;
+        private final KeySchema keySchema;
+        // Ordered by key, so pages can start after the last key of the previous one
+        private final ConcurrentSkipListMap<String, Map<String, AttributeValue>> items = new ConcurrentSkipListMap<>();
+
+        private Table(TableDescription description) {
+            this.description = description;
+            this.keySchema = KeySchema.of(description);
+        }
+
+        private String keyString(Map<String, AttributeValue> item) {
+            String hash = keyString(item.get(keySchema.hashKey));
+            return keySchema.rangeKey == null ? hash : hash + '\u0000' + keyString(item.get(keySchema.rangeKey));
+        }
+
+        private static String keyString(AttributeValue value) {
+            if (value == null) throw validation("The provided key element does not match the schema");
+            switch (value.type()) {
+                case S:
+                    return value.s();
+                case N:
+                    return value.n();
+                case B:
+                    return Base64.getEncoder().encodeToString(value.b().asByteArray());
+                default:
+                    throw validation("The provided key element does not match the schema");
+            }
+        }
+
+        private ConcurrentNavigableMap<String, Map<String, AttributeValue>> partition(AttributeValue hashKey) {
+            String hash = keyString(hashKey);
+            return items.subMap(hash + '\u0000', hash + '\u0001');
+        }
+
+        private Page page(NavigableMap<String, Map<String, AttributeValue>> items, Integer limit, String start) {
+            NavigableMap<String, Map<String, AttributeValue>> remaining = start == null ? items : items.tailMap(start, false);
+            List<Map<String, AttributeValue>> page = new ArrayList<>();
+            long bytes = 0;
+            String last = null;
+            for (Map.Entry<String, Map<String, AttributeValue>> entry : remaining.entrySet()) {
+                if ((limit != null && page.size() >= limit) || bytes >= MAX_PAGE_BYTES) {
+                    return new Page(page, last);
+                }
+                page.add(entry.getValue());
+                bytes += DynamoDBParseUtils.estimateSize(entry.getValue());
+                last = entry.getKey();
+            }
+            return new Page(page, null);
+        }
+    }
+
+    private static final class Page {
+        private final List<Map<String, AttributeValue>> items;
+        // The key the next page starts after, or null if this is the last page
+        private final String next;
+
+        private Page(List<Map<String, AttributeValue>> items, String next) {
+            this.items = items;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.io.IoCommand;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.k2view.cdbms.usercode.common.dynamodb.DynamoDBDefaults.*;
+
+/**
+ * An end-to-end load test of the connector, driving sessions of {@link DynamoDBIoProvider} the way DbCommand does,
+ * against an in-memory stand-in of DynamoDB ({@link DynamoDBFakeClient}) or DynamoDB Local.
+ * <p>
+ * The arguments are name=value pairs:
+ * <ul>
+ *     <li>scenarios - comma separated, of: select (a prepared point select), scan (a paged whole-table select),
+ *     batch (batch inserts in a transaction, committed every "statements" inserts) and
+ *     transaction (a transaction of "statements" inserts, up to 100). Default all of them.</li>
+ *     <li>threads - the number of concurrent sessions, default 8</li>
+ *     <li>warmup, duration - in seconds, of each scenario, default 5 and 30</li>
+ *     <li>statements - per batch or transaction, default 100</li>
+ *     <li>items - the number of items loaded into the table before the scenarios run, default 10000</li>
+ *     <li>latency, jitter, throttle - of the stand-in: the latency of each request in ms, the maximal random ms added to it,
+ *     and the fraction of requests (or batch items) throttled. Default 5, 2 and 0.</li>
+ *     <li>endpoint - e.g. http://localhost:8000, runs against DynamoDB Local instead of the stand-in</li>
+ *     <li>Any upper case name is passed as an interface property, e.g. BATCH_SIZE=10 or NATIVE_KEY_VALUE=true</li>
+ * </ul>
+ * Reports, per scenario, the operations per second, the p50/p99/p999 latency and the number of requests per operation.
+ */
+public class DynamoDBLoadHarness {
+    private static final String INTERFACE = "dynamodb_load_harness";
+    private static final String TABLE = "load_harness";
+    private static final String KEY = "id";
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+
+    private final Map<String, String> options;
+    private final Map<String, Object> params = new HashMap<>();
+    private final int threads;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final int statements;
+    private final int items;
+    private final AtomicReference<DynamoDBCountingClient> client = new AtomicReference<>();
+    private final AtomicLong inserted = new AtomicLong();
+    private final DynamoDBIoProvider provider;
+
+    private DynamoDBLoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        this.warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "5")));
+        this.durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.statements = Integer.parseInt(options.getOrDefault("statements", "100"));
+        this.items = Integer.parseInt(options.getOrDefault("items", "10000"));
+        params.put(REGION, options.getOrDefault("region", "us-east-1"));
+        String endpoint = options.get("endpoint");
+        if (endpoint != null) {
+            params.put(ENDPOINT_OVERRIDE, endpoint);
+            provider = new DynamoDBIoProvider(build -> counting(build.get()));
+        } else {
+            DynamoDbClient fake = new DynamoDBFakeClient(Long.parseLong(options.getOrDefault("latency", "5")),
+                    Long.parseLong(options.getOrDefault("jitter", "2")),
+                    Double.parseDouble(options.getOrDefault("throttle", "0")));
+            // The stand-in is synchronous, so pages aren't prefetched with the async client
+            params.put(PREFETCH_PAGES, 0);
+            provider = new DynamoDBIoProvider(build -> counting(fake));
+        }
+        options.forEach((name, value) -> {
+            if (name.equals(name.toUpperCase())) params.put(name, value);
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 1) throw new IllegalArgumentException("Expected name=value arguments, got " + arg + "!");
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new DynamoDBLoadHarness(options).run();
+    }
+
+    private DynamoDBCountingClient counting(DynamoDbClient dbClient) {
+        return client.updateAndGet(current -> current != null ? current : new DynamoDBCountingClient(dbClient));
+    }
+
+    private void run() throws Exception {
+        // Keeps the shared client, and its request count, for the whole run
+        try (DynamoDBIoSession setupSession = (DynamoDBIoSession) provider.createSession(INTERFACE, params)) {
+            load();
+            System.out.printf("%-12s %10s %10s %10s %10s %10s %10s %12s %8s%n",
+                    "scenario", "ops", "ops/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "requests/op", "errors");
+            for (String scenario : options.getOrDefault("scenarios", "select,scan,batch,transaction").split(",")) {
+                run(scenario.trim());
+            }
+        }
+    }
+
+    private void load() {
+        DynamoDBCountingClient dbClient = client.get();
+        try {
+            dbClient.createTable(CreateTableRequest.builder()
+                    .tableName(TABLE)
+                    .keySchema(KeySchemaElement.builder().attributeName(KEY).keyType(KeyType.HASH).build())
+                    .attributeDefinitions(AttributeDefinition.builder().attributeName(KEY).attributeType(ScalarAttributeType.S).build())
+                    .billingMode(BillingMode.PAY_PER_REQUEST)
+                    .build());
+        } catch (ResourceInUseException e) {
+            // Left by a previous run
+        }
+        List<WriteRequest> writes = new ArrayList<>(MAX_BATCH_WRITE_ITEMS);
+        for (int i = 0; i < items; i++) {
+            writes.add(WriteRequest.builder().putRequest(PutRequest.builder().item(item("item#" + i)).build()).build());
+            if (writes.size() == MAX_BATCH_WRITE_ITEMS || i == items - 1) {
+                Map<String, List<WriteRequest>> unprocessed = Collections.singletonMap(TABLE, writes);
+                while (!unprocessed.isEmpty()) {
+                    unprocessed = dbClient.batchWriteItem(BatchWriteItemRequest.builder().requestItems(unprocessed).build()).unprocessedItems();
+                }
+                writes = new ArrayList<>(MAX_BATCH_WRITE_ITEMS);
+            }
+        }
+    }
+
+    private void run(String scenario) throws Exception {
+        Operation operation = operation(scenario);
+        DynamoDBLatencyHistogram histogram = new DynamoDBLatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmupMillis;
+        long end = measureFrom + durationMillis;
+        AtomicLong requestsBefore = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            // The request count is sampled when the measurement starts and ends, rather than per operation
+            scheduler.schedule(() -> requestsBefore.set(client.get().requests()), warmupMillis, TimeUnit.MILLISECONDS);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    try (DynamoDBIoSession session = (DynamoDBIoSession) provider.createSession(INTERFACE, params)) {
+                        long now;
+                        while ((now = System.currentTimeMillis()) < end) {
+                            long startNanos = System.nanoTime();
+                            try {
+                                operation.run(session);
+                            } catch (Exception e) {
+                                if (now >= measureFrom) errors.incrementAndGet();
+                                session.abort();
+                                continue;
+                            }
+                            if (now >= measureFrom) histogram.record(System.nanoTime() - startNanos);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } finally {
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+        long ops = histogram.count();
+        long requests = client.get().requests() - requestsBefore.get();
+        System.out.printf("%-12s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %12.2f %8d%n",
+                scenario, ops, ops * 1000.0 / durationMillis, histogram.mean() / 1e6,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6,
+                ops == 0 ? 0 : (double) requests / ops, errors.get());
+    }
+
+    private Operation operation(String scenario) {
+        switch (scenario) {
+            case "select":
+                return session -> {
+                    IoCommand.Statement statement = session.prepareStatement("SELECT * FROM \"" + TABLE + "\" WHERE \"" + KEY + "\" = ?");
+                    try (IoCommand.Result result = statement.execute("item#" + ThreadLocalRandom.current().nextInt(Math.max(1, items)))) {
+                        for (IoCommand.Row row : result) row.get(KEY);
+                    }
+                };
+            case "scan":
+                return session -> {
+                    IoCommand.Statement statement = session.statement();
+                    try (IoCommand.Result result = statement.execute("SELECT * FROM \"" + TABLE + "\"")) {
+                        for (IoCommand.Row row : result) row.get(KEY);
+                    }
+                };
+            case "batch":
+                return session -> {
+                    session.beginTransaction();
+                    IoCommand.Statement statement = session.prepareStatement(insert());
+                    for (int i = 0; i < statements; i++) {
+                        statement.batch(insertParams());
+                    }
+                    session.commit();
+                };
+            case "transaction":
+                return session -> {
+                    session.beginTransaction();
+                    IoCommand.Statement statement = session.prepareStatement(insert());
+                    for (int i = 0; i < statements; i++) {
+                        statement.execute(insertParams());
+                    }
+                    session.commit();
+                };
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario + ", expected one of select, scan, batch or transaction!");
+        }
+    }
+
+    private static String insert() {
+        return "INSERT INTO \"" + TABLE + "\" VALUE {'" + KEY + "': ?, 'name': ?, 'count': ?, 'tags': ?}";
+    }
+
+    private Object[] insertParams() {
+        return new Object[]{"new#" + inserted.incrementAndGet(), "name", 42, Arrays.asList("a", "b")};
+    }
+
+    private static Map<String, AttributeValue> item(String key) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(KEY, AttributeValue.builder().s(key).build());
+        item.put("name", AttributeValue.builder().s("name of " + key).build());
+        item.put("count", AttributeValue.builder().n("42").build());
+        item.put("tags", AttributeValue.builder().l(AttributeValue.builder().s("a").build(), AttributeValue.builder().s("b").build()).build());
+        return item;
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run(DynamoDBIoSession session) throws Exception;
+    }
+}
@@ -0,0 +1,116 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.openjdk.jmh.annotations.*;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the conversion of statement parameters to AttributeValues, and of items back to Fabric values.
+ * See {@link DynamoDBBenchmarks} for running it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBParseBenchmark {
+    @State(Scope.Benchmark)
+    public static class Parameters {
+        /**
+         * The parameters bound to a statement:
+         * scalars - the key and a few plain attributes of a typical insert,
+         * nested - a document with nested maps and lists,
+         * sets - string, number and binary sets,
+         * blob - a single 64KB binary attribute
+         */
+        @Param({"scalars", "nested", "sets", "blob"})
+        public String shape;
+
+        @Param({"BASE64", "RAW"})
+        public DynamoDBBinaryMode binaryMode;
+
+        private Object[] params;
+
+        @Setup
+        public void setup() {
+            params = parametersOf(shape);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Item {
+        /**
+         * The item read, see {@link DynamoDBBenchmarks#item}
+         */
+        @Param({"wide", "deep"})
+        public String shape;
+
+        @Param({"BIG_DECIMAL", "AUTO"})
+        public DynamoDBNumberMode numberMode;
+
+        private AttributeValue value;
+
+        @Setup
+        public void setup() {
+            value = AttributeValue.builder().m(DynamoDBBenchmarks.item(shape)).build();
+        }
+    }
+
+    @Benchmark
+    public List<AttributeValue> toAttributeValueList(Parameters parameters) {
+        return DynamoDBParseUtils.toAttributeValueList(parameters.binaryMode, parameters.params);
+    }
+
+    @Benchmark
+    public Object fromAttributeValue(Item item) {
+        return DynamoDBParseUtils.fromAttributeValue(item.value, item.numberMode, DynamoDBBinaryMode.RAW);
+    }
+
+    private static Object[] parametersOf(String shape) {
+        Random random = new Random(42);
+        switch (shape) {
+            case "scalars":
+                return new Object[]{"customer#" + random.nextInt(1_000_000), 1_700_000_000_000L + random.nextInt(),
+                        "Some description of the item", new BigDecimal("1234.56"), true, 42, null};
+            case "nested":
+                Map<String, Object> address = new LinkedHashMap<>();
+                address.put("street", "1 Main St");
+                address.put("city", "Springfield");
+                address.put("zip", 12345);
+                List<Object> orders = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    Map<String, Object> order = new LinkedHashMap<>();
+                    order.put("id", "order#" + i);
+                    order.put("total", new BigDecimal(random.nextInt(100_000)).movePointLeft(2));
+                    order.put("items", Arrays.asList("sku#" + i, "sku#" + (i + 1)));
+                    orders.add(order);
+                }
+                Map<String, Object> document = new LinkedHashMap<>();
+                document.put("name", "John Smith");
+                document.put("address", address);
+                document.put("orders", orders);
+                return new Object[]{"customer#1", document};
+            case "sets":
+                Set<String> tags = new HashSet<>();
+                Set<Long> numbers = new HashSet<>();
+                Set<byte[]> hashes = new HashSet<>();
+                for (int i = 0; i < 20; i++) {
+                    tags.add("tag" + i);
+                    numbers.add((long) random.nextInt());
+                    byte[] hash = new byte[32];
+                    random.nextBytes(hash);
+                    hashes.add(hash);
+                }
+                return new Object[]{"customer#1", tags, numbers, hashes};
+            case "blob":
+                byte[] blob = new byte[64 * 1024];
+                random.nextBytes(blob);
+                return new Object[]{"customer#1", blob};
+            default:
+                throw new IllegalArgumentException("Unknown parameters shape " + shape + "!");
+        }
+    }
+}
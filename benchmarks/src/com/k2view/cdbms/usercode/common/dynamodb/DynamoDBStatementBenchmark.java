@@ -0,0 +1,54 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the processing of a PartiQL command before it's executed: parsing it (hint, limit, table, kind and
+ * key-value form), and splitting the limit off its parameters.
+ * See {@link DynamoDBBenchmarks} for running it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBStatementBenchmark {
+    @Param({
+            "SELECT * FROM \"customers\" WHERE \"id\" = ?",
+            "SELECT * FROM \"orders\" WHERE \"customer_id\" = ? AND \"date\" > ? LIMIT ?",
+            "INSERT INTO \"customers\" VALUE {'id': ?, 'name': ?, 'address': ?}",
+            "/*+ PARALLEL_SCAN(16) */ SELECT * FROM \"customers\" LIMIT 1000"
+    })
+    public String command;
+
+    private List<AttributeValue> parameters;
+
+    @Setup
+    public void setup() {
+        parameters = DynamoDBParseUtils.toAttributeValueList(DynamoDBBinaryMode.RAW, "customer#1", "2024-01-01", 100);
+    }
+
+    /**
+     * A command executed for the first time
+     */
+    @Benchmark
+    public Object parse() {
+        return DynamoDBStatementDescriptor.parse(command);
+    }
+
+    /**
+     * A command executed again, as all the commands of a flow are
+     */
+    @Benchmark
+    public void process(Blackhole blackhole) {
+        DynamoDBStatementDescriptor descriptor = DynamoDBStatementDescriptor.of(command);
+        blackhole.consume(descriptor.parameters(parameters));
+        blackhole.consume(descriptor.limit(parameters));
+    }
+}
@@ -0,0 +1,67 @@
+package com.k2view.cdbms.usercode.common.dynamodb;
+
+import com.k2view.fabric.common.io.IoCommand;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ExecuteStatementResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks translating a page of a PartiQL result to rows, and reading the rows.
+ * See {@link DynamoDBBenchmarks} for running it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBTranslateBenchmark {
+    // The items of a page, about what fits in the 1MB of a page for the wide items
+    private static final int PAGE_ITEMS = 100;
+
+    /**
+     * The items of the page, see {@link DynamoDBBenchmarks#item}
+     */
+    @Param({"wide", "deep"})
+    public String shape;
+
+    @Param({"true", "false"})
+    public boolean lazy;
+
+    /**
+     * Whether all the fields of each row are read, or only its first one
+     */
+    @Param({"true", "false"})
+    public boolean readAll;
+
+    private ExecuteStatementResponse page;
+
+    @Setup
+    public void setup() {
+        List<Map<String, AttributeValue>> items = new ArrayList<>(PAGE_ITEMS);
+        for (int i = 0; i < PAGE_ITEMS; i++) {
+            items.add(DynamoDBBenchmarks.item(shape));
+        }
+        page = ExecuteStatementResponse.builder().items(items).build();
+    }
+
+    @Benchmark
+    public void translate(Blackhole blackhole) {
+        // A translator per page, as a result has
+        DynamoDBRowTranslator translator = new DynamoDBRowTranslator(lazy, DynamoDBNumberMode.BIG_DECIMAL, DynamoDBBinaryMode.RAW);
+        for (Map<String, AttributeValue> item : page.items()) {
+            IoCommand.Row row = translator.apply(item);
+            if (readAll) {
+                for (Map.Entry<String, Object> field : row.entrySet()) blackhole.consume(field.getValue());
+            } else {
+                blackhole.consume(row.get(DynamoDBBenchmarks.KEY));
+            }
+        }
+    }
+}